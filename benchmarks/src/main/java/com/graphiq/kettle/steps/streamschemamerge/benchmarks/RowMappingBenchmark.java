@@ -0,0 +1,109 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge.benchmarks;
+
+import com.graphiq.kettle.steps.streamschemamerge.SchemaMapper;
+import com.graphiq.kettle.steps.streamschemamerge.StreamRowMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per row work of the step once the mapping is known: finding the infostream of the rowset a row came
+ * from, allocating the output row, copying the values and converting fields with conflicting types to strings.
+ * Every stream shares all of its fields, and the conversion density is the fraction of them that have a different
+ * type in some streams. Run through main to get the allocation rate from the GC profiler as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmark {
+
+	private static final int ROWS = 1024;  // rows cycled through by the benchmarks, a power of 2
+
+	@Param({"10", "50", "200"})
+	public int fields;
+
+	@Param({"2", "8", "32"})
+	public int streams;
+
+	@Param({"0.0", "0.25", "1.0"})
+	public double conversions;  // fraction of the fields converted to strings
+
+	private StreamRowMapper rowMapper;
+	private int[] sources;  // position of the rowset of each row
+	private Object[][] rows;
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		KettleClientEnvironment.init();  // value metas are created through the plugin registry
+		RowMetaInterface[] rowMetas = StreamLayouts.create(streams, fields, 1.0, conversions);
+		int[] rowSetStreams = new int[streams];
+		for (int i = 0; i < streams; i++) {
+			rowSetStreams[i] = i;
+		}
+		rowMapper = new StreamRowMapper(rowSetStreams);
+		rowMapper.setSchemaMapping(new SchemaMapper(rowMetas));
+
+		sources = new int[ROWS];
+		rows = new Object[ROWS][];
+		for (int i = 0; i < ROWS; i++) {
+			int stream = i % streams;
+			sources[i] = stream;
+			rows[i] = StreamLayouts.createRow(rowMetas[stream], i);
+		}
+	}
+
+	@Benchmark
+	public Object[] map() throws Exception {
+		int i = next++ & (ROWS - 1);
+		return rowMapper.mapRow(sources[i], rows[i]);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RowMappingBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge.benchmarks;
+
+import com.graphiq.kettle.steps.streamschemamerge.SchemaMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the merged layout, which happens every time the dialog asks for the output fields and once per
+ * step copy when rows start arriving. The cost grows with the number of streams times the number of fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaMapperBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int streams;
+
+	@Param({"10", "50", "200"})
+	public int fields;
+
+	@Param({"0.0", "0.5", "1.0"})
+	public double overlap;  // fraction of the fields every stream has
+
+	@Param({"0.0", "0.1", "0.5"})
+	public double conflicts;  // fraction of the shared fields with a different type in some streams
+
+	private RowMetaInterface[] rowMetas;
+
+	@Setup
+	public void setUp() throws Exception {
+		KettleClientEnvironment.init();  // value metas are created through the plugin registry
+		rowMetas = StreamLayouts.create(streams, fields, overlap, conflicts);
+	}
+
+	@Benchmark
+	public SchemaMapper createMapping() throws Exception {
+		return new SchemaMapper(rowMetas);
+	}
+}
@@ -0,0 +1,256 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge.benchmarks;
+
+import com.graphiq.kettle.steps.streamschemamerge.RowSetCache;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.variables.Variables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures spilling rows to disk and replaying them, the way the step does while it waits for the row meta of every
+ * infostream. Files go to java.io.tmpdir. The encodings compared are:
+ *
+ * cache		RowSetCache as the step uses it: Java serialization, a flush per row, a reset every 5000 rows and
+ * 				readUnshared on replay
+ * rowMeta		Kettle's own binary row format through RowMetaInterface.writeData and readData, as a baseline
+ * offHeap		RowSetCache with the off heap tier, rows are parked in direct buffers and never reach the disk
+ *
+ * Scores are in rows per second. The bytes counter is reported per second as well, so dividing it by the score
+ * gives the bytes per row and multiplying gives the MB/s. Run through main to get the GC profiler numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpillBenchmark {
+
+	private static final int ROWS = 10000;  // rows spilled per invocation
+	private static final int BUFFER_SIZE = 8388608;  // buffer size the step uses for the cache files
+	private static final long OFF_HEAP_BYTES = 1L << 30;  // enough direct buffers for every row of every shape
+
+	@Param({"cache", "rowMeta", "offHeap"})
+	public String encoding;
+
+	@Param({"numeric", "mixed", "text"})
+	public String shape;
+
+	@Param({"5", "20", "100"})
+	public int fields;
+
+	private RowMetaInterface rowMeta;
+	private Object[][] rows;
+	private Variables space;
+	private LogChannelInterface log;
+
+	/**
+	 * Bytes written to disk, reported next to the row rate
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		KettleClientEnvironment.init();  // value metas are created through the plugin registry
+		space = new Variables();
+		space.initializeVariablesFrom(null);
+		log = new LogChannel("SpillBenchmark");
+
+		rowMeta = new RowMeta();
+		for (int f = 0; f < fields; f++) {
+			rowMeta.addValueMeta(ValueMetaFactory.createValueMeta("field" + f, typeOf(f)));
+		}
+		rows = new Object[ROWS][];
+		for (int r = 0; r < ROWS; r++) {
+			Object[] row = new Object[fields];
+			for (int f = 0; f < fields; f++) {
+				row[f] = createValue(rowMeta.getValueMeta(f).getType(), r + f);
+			}
+			rows[r] = row;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void write(Counters counters) throws Exception {
+		if (!"rowMeta".equals(encoding)) {
+			RowSetCache cache = createCache();
+			try {
+				for (Object[] row : rows) {
+					cache.write(0, "offHeap".equals(encoding) ? rowMeta : null, row);
+				}
+				cache.finishWriting();
+				counters.bytes += cache.getBytesWritten();
+			} finally {
+				cache.dispose();
+			}
+		} else {
+			File file = File.createTempFile("streamschema", ".tmp");
+			try {
+				counters.bytes += writeRows(file);
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void writeAndReplay(Counters counters, Blackhole blackhole) throws Exception {
+		if (!"rowMeta".equals(encoding)) {
+			RowSetCache cache = createCache();
+			try {
+				for (Object[] row : rows) {
+					cache.write(0, "offHeap".equals(encoding) ? rowMeta : null, row);
+				}
+				cache.finishWriting();
+				counters.bytes += cache.getBytesWritten();
+				for (int r = 0; r < ROWS; r++) {
+					blackhole.consume(cache.next());
+				}
+			} finally {
+				cache.dispose();
+			}
+		} else {
+			File file = File.createTempFile("streamschema", ".tmp");
+			try {
+				counters.bytes += writeRows(file);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+				try {
+					for (int r = 0; r < ROWS; r++) {
+						blackhole.consume(rowMeta.readData(in));
+					}
+				} finally {
+					in.close();
+				}
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return a cache like the step creates, with the off heap tier for the offHeap encoding
+	 */
+	private RowSetCache createCache() {
+		return new RowSetCache(1, BUFFER_SIZE, "offHeap".equals(encoding) ? OFF_HEAP_BYTES : 0, space, log);
+	}
+
+	/**
+	 * Write the rows with the Kettle binary format
+	 * @return number of bytes written
+	 */
+	private long writeRows(File file) throws Exception {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			for (Object[] row : rows) {
+				rowMeta.writeData(out, row);
+			}
+		} finally {
+			out.close();
+		}
+		return file.length();
+	}
+
+	private int typeOf(int field) {
+		if ("numeric".equals(shape)) {
+			return field % 2 == 0 ? ValueMetaInterface.TYPE_INTEGER : ValueMetaInterface.TYPE_NUMBER;
+		} else if ("text".equals(shape)) {
+			return ValueMetaInterface.TYPE_STRING;
+		}
+		switch (field % 4) {
+			case 0:
+				return ValueMetaInterface.TYPE_INTEGER;
+			case 1:
+				return ValueMetaInterface.TYPE_STRING;
+			case 2:
+				return ValueMetaInterface.TYPE_NUMBER;
+			default:
+				return ValueMetaInterface.TYPE_DATE;
+		}
+	}
+
+	private static Object createValue(int type, long seed) {
+		switch (type) {
+			case ValueMetaInterface.TYPE_INTEGER:
+				return seed;
+			case ValueMetaInterface.TYPE_NUMBER:
+				return seed * 1.5;
+			case ValueMetaInterface.TYPE_DATE:
+				return new Date(1500000000000L + seed * 1000);
+			default:
+				return "some text value " + seed;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(SpillBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
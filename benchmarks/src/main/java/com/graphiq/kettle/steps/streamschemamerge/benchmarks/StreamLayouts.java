@@ -0,0 +1,94 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge.benchmarks;
+
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+
+/**
+ * Builds the row metas of a set of incoming streams for the benchmarks. Every stream has the same number of fields.
+ * The first part of the fields is shared by all streams, the rest is only sent by one stream. Some of the shared
+ * fields change type from one stream to the next so the merge has to convert them to strings.
+ */
+public class StreamLayouts {
+
+	/**
+	 * @param streams	number of incoming streams
+	 * @param fields	number of fields of each stream
+	 * @param overlap	fraction of the fields that every stream has
+	 * @param conflicts	fraction of the shared fields that are integers in some streams and strings in others
+	 * @return row meta of each stream
+	 */
+	public static RowMetaInterface[] create(int streams, int fields, double overlap, double conflicts)
+			throws KettlePluginException {
+		int shared = (int) Math.round(fields * overlap);
+		int conflicting = (int) Math.round(shared * conflicts);
+		RowMetaInterface[] rowMetas = new RowMetaInterface[streams];
+		for (int s = 0; s < streams; s++) {
+			RowMetaInterface rowMeta = new RowMeta();
+			for (int f = 0; f < fields; f++) {
+				String name;
+				int type;
+				if (f < shared) {
+					name = "shared_" + f;
+					// conflicting fields are strings in odd streams, so the second stream already forces a conversion
+					type = f < conflicting && s % 2 == 1 ? ValueMetaInterface.TYPE_STRING : typeOf(f);
+				} else {
+					name = "stream" + s + "_" + f;
+					type = typeOf(f);
+				}
+				rowMeta.addValueMeta(ValueMetaFactory.createValueMeta(name, type));
+			}
+			rowMetas[s] = rowMeta;
+		}
+		return rowMetas;
+	}
+
+	/**
+	 * Create a row with a value of the right type in every field
+	 * @param rowMeta	layout of the row
+	 * @param seed		varies the values between rows
+	 * @return row data
+	 */
+	public static Object[] createRow(RowMetaInterface rowMeta, long seed) {
+		Object[] row = new Object[rowMeta.size()];
+		for (int i = 0; i < row.length; i++) {
+			if (rowMeta.getValueMeta(i).getType() == ValueMetaInterface.TYPE_STRING) {
+				row[i] = "value" + (seed + i);
+			} else {
+				row[i] = seed + i;
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Fields that aren't in conflict are mostly integers, with every fourth one a string
+	 */
+	private static int typeOf(int field) {
+		return field % 4 == 3 ? ValueMetaInterface.TYPE_STRING : ValueMetaInterface.TYPE_INTEGER;
+	}
+}
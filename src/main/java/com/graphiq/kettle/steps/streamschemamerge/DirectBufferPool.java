@@ -0,0 +1,102 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out fixed size direct buffers up to a limit. Direct buffers live outside the Java heap, so rows parked in them
+ * don't have to be traced or copied by the garbage collector. Allocating a direct buffer is slow and its memory is
+ * only given back once the buffer object is collected, so released buffers are kept in the pool's free list and handed
+ * out again. Buffers in use and free buffers together never exceed the pool's limit, and {@link #dispose()} drops the
+ * free buffers so their memory can be reclaimed once the step is done.
+ *
+ * A pool is used by a single thread.
+ */
+public class DirectBufferPool {
+
+	static final int CHUNK_SIZE = 1 << 20;  // bytes per buffer
+
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();  // released buffers kept for reuse
+	private final long maxChunks;
+	private long chunks;  // buffers handed out and not released
+	private boolean disposed;
+
+	/**
+	 * @param maxBytes bytes the buffers of this pool may take up together, rounded down to whole buffers
+	 */
+	public DirectBufferPool(long maxBytes) {
+		maxChunks = Math.max(0, maxBytes / CHUNK_SIZE);
+	}
+
+	/**
+	 * Get an empty buffer
+	 * @return the buffer or null if the pool's limit has been reached
+	 */
+	public ByteBuffer take() {
+		if (chunks >= maxChunks) {
+			return null;
+		}
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		}
+		chunks++;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back so it can be used again
+	 * @param buffer buffer handed out by {@link #take()}
+	 */
+	public void release(ByteBuffer buffer) {
+		chunks--;
+		if (!disposed) {
+			free.push(buffer);
+		}
+	}
+
+	/**
+	 * Drop the free buffers. Buffers still in use are dropped as soon as they are released.
+	 */
+	public void dispose() {
+		free.clear();
+		disposed = true;
+	}
+
+	/**
+	 * @return bytes of the buffers allocated by this pool, in use or free
+	 */
+	public long getBytesAllocated() {
+		return (chunks + free.size()) * CHUNK_SIZE;
+	}
+
+	/**
+	 * @return bytes of the buffers handed out and not released
+	 */
+	public long getBytesInUse() {
+		return chunks * CHUNK_SIZE;
+	}
+}
@@ -0,0 +1,243 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequence of rows, or ints, encoded into direct buffers taken from a {@link DirectBufferPool}. Rows are encoded with
+ * Kettle's own binary row format, which is more compact than Java serialization and doesn't keep the objects around.
+ *
+ * A write that doesn't fit in the buffers the pool will give is undone, and the caller writes the value somewhere
+ * else. Once writing is done the values are read back in the order they were written, and buffers are given back to
+ * the pool as soon as they have been read.
+ */
+public class DirectRowBuffer {
+
+	private final DirectBufferPool pool;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final DataOutputStream out = new DataOutputStream(new ChunkOutputStream());
+	private DataInputStream in;
+	private int readChunk;  // position in chunks of the buffer being read
+	private boolean exhausted;  // the pool ran out of buffers during the current write
+	private long count;  // values written
+
+	/**
+	 * @param pool pool the buffers are taken from
+	 */
+	public DirectRowBuffer(DirectBufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Encode a row
+	 * @param rowMeta row meta of the row
+	 * @param row the row
+	 * @return false if the row doesn't fit, nothing was written then
+	 * @throws KettleException if the row can't be encoded
+	 */
+	public boolean writeRow(RowMetaInterface rowMeta, Object[] row) throws KettleException {
+		int markChunks = chunks.size();
+		int markPosition = markChunks == 0 ? 0 : chunks.get(markChunks - 1).position();
+		try {
+			rowMeta.writeData(out, row);
+		} catch (KettleException e) {
+			if (!exhausted) {
+				throw e;
+			}
+		}
+		return finishWrite(markChunks, markPosition);
+	}
+
+	/**
+	 * Encode an int
+	 * @param value the value
+	 * @return false if the value doesn't fit, nothing was written then
+	 */
+	public boolean writeInt(int value) {
+		int markChunks = chunks.size();
+		int markPosition = markChunks == 0 ? 0 : chunks.get(markChunks - 1).position();
+		try {
+			out.writeInt(value);
+		} catch (IOException e) {
+			// only thrown when the pool is out of buffers
+		}
+		return finishWrite(markChunks, markPosition);
+	}
+
+	/**
+	 * Switch to reading the values back
+	 */
+	public void finishWriting() {
+		for (ByteBuffer chunk : chunks) {
+			chunk.flip();
+		}
+		in = new DataInputStream(new ChunkInputStream());
+	}
+
+	/**
+	 * Decode the next row
+	 * @param rowMeta row meta the row was written with
+	 * @return the row
+	 * @throws KettleException if the row can't be decoded
+	 */
+	public Object[] readRow(RowMetaInterface rowMeta) throws KettleException {
+		try {
+			return rowMeta.readData(in);
+		} catch (IOException e) {
+			throw new KettleException("Error reading row from direct buffer: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Decode the next int
+	 * @return the value
+	 * @throws KettleException if there are no more values
+	 */
+	public int readInt() throws KettleException {
+		try {
+			return in.readInt();
+		} catch (IOException e) {
+			throw new KettleException("Error reading from direct buffer: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return number of values written
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Give all buffers that haven't been read yet back to the pool
+	 */
+	public void dispose() {
+		for (int i = readChunk; i < chunks.size(); i++) {
+			pool.release(chunks.get(i));
+		}
+		chunks.clear();
+		readChunk = 0;
+	}
+
+	/**
+	 * Count a successful write, or undo a write that ran out of buffers
+	 */
+	private boolean finishWrite(int markChunks, int markPosition) {
+		if (!exhausted) {
+			count++;
+			return true;
+		}
+		exhausted = false;
+		while (chunks.size() > markChunks) {
+			pool.release(chunks.remove(chunks.size() - 1));
+		}
+		if (markChunks > 0) {
+			chunks.get(markChunks - 1).position(markPosition);
+		}
+		return false;
+	}
+
+	/**
+	 * Appends to the last buffer, taking a new one from the pool when it is full
+	 */
+	private class ChunkOutputStream extends OutputStream {
+
+		private ByteBuffer current() throws IOException {
+			ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if (chunk == null || !chunk.hasRemaining()) {
+				chunk = pool.take();
+				if (chunk == null) {
+					exhausted = true;
+					throw new IOException("Out of direct buffers");
+				}
+				chunks.add(chunk);
+			}
+			return chunk;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			current().put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				ByteBuffer chunk = current();
+				int n = Math.min(len, chunk.remaining());
+				chunk.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	/**
+	 * Reads the buffers in order, giving each one back to the pool once it has been read
+	 */
+	private class ChunkInputStream extends InputStream {
+
+		private ByteBuffer current() {
+			while (readChunk < chunks.size()) {
+				ByteBuffer chunk = chunks.get(readChunk);
+				if (chunk.hasRemaining()) {
+					return chunk;
+				}
+				pool.release(chunk);
+				chunks.set(readChunk++, null);
+			}
+			return null;
+		}
+
+		@Override
+		public int read() {
+			ByteBuffer chunk = current();
+			return chunk == null ? -1 : chunk.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer chunk = current();
+			if (chunk == null) {
+				return -1;
+			}
+			int n = Math.min(len, chunk.remaining());
+			chunk.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,512 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Drops rows whose key fields have already been passed on, without sorting. Instead of the rows themselves only a 64
+ * bit hash of the key fields is remembered, so two different rows are only mistaken for each other when their hashes
+ * collide, which for a billion distinct rows happens about once in 40 runs.
+ *
+ * The hashes are kept in partitions, chosen by the top bits of the hash. The budget counts the hash tables actually
+ * allocated, including the moment a table grows and its old and new slots exist side by side. When a table would grow
+ * past the budget, the largest partitions are written to disk first. From then on rows falling into that partition can't be checked,
+ * so they are written to the same file and held back until the input is done. Everything else is still passed on as
+ * it arrives. {@link #nextDeferred()} then works through the spilled partitions one at a time, each of which is a
+ * fraction of the rows, using the next bits of the hash to partition them again if one still doesn't fit.
+ */
+public class DistinctRows {
+
+	static final int PARTITION_BITS = 5;
+	static final int PARTITIONS = 1 << PARTITION_BITS;
+	private static final int MAX_LEVEL = 64 / PARTITION_BITS - 1;  // deepest level that still has unused hash bits
+	private static final int BUFFER_SIZE = 65536;  // buffer of each spill file, there can be one per partition
+	private static final int RESET_INTERVAL = 5000;  // records written to a spill file before we reset its handle table
+
+	private static final byte SEEN = 0;  // spill record of a hash that was passed on already
+	private static final byte ROW = 1;  // spill record of a row that still has to be checked
+
+	private final int[] keys;
+	private final long maxBytes;
+	private final int level;  // how often the rows were partitioned before, decides which hash bits pick the partition
+	private final VariableSpace space;
+	private final LogChannelInterface log;
+
+	private final LongHashSet[] partitions = new LongHashSet[PARTITIONS];  // null once a partition is spilled
+	private final FileObject[] files = new FileObject[PARTITIONS];
+	private final ObjectOutputStream[] outStreams = new ObjectOutputStream[PARTITIONS];
+	private final long[] records = new long[PARTITIONS];  // records written per spilled partition
+	private long slotBytes;  // bytes taken by the hash tables kept in memory
+	private long peakBytes;  // most bytes the hash tables took at any time
+	private boolean finished;
+
+	// working through the spilled partitions
+	private int replayPartition = -1;
+	private ObjectInputStream replayIn;
+	private long replayRemaining;
+	private DistinctRows replay;  // checks the rows of the spilled partition that is being worked through
+
+	private long duplicates;
+	private long deferred;
+
+	/**
+	 * @param keys		positions of the fields rows are compared on
+	 * @param maxBytes	bytes the hash tables may take before partitions are written to disk
+	 * @param space		variable space used to resolve the temp files
+	 * @param log		log channel of the owning step
+	 */
+	public DistinctRows(int[] keys, long maxBytes, VariableSpace space, LogChannelInterface log) {
+		this(keys, maxBytes, space, log, 0);
+	}
+
+	private DistinctRows(int[] keys, long maxBytes, VariableSpace space, LogChannelInterface log, int level) {
+		this.keys = keys;
+		this.maxBytes = maxBytes;
+		this.space = space;
+		this.log = log;
+		this.level = level;
+		for (int i = 0; i < PARTITIONS; i++) {
+			partitions[i] = new LongHashSet();
+			slotBytes += partitions[i].bytes();
+		}
+		peakBytes = slotBytes;
+	}
+
+	/**
+	 * Check a row against the rows seen so far
+	 * @param row row in the merged layout
+	 * @return true if the row should be passed on now, false if it is a duplicate or is held back
+	 * @throws KettleException if the row can't be written to disk
+	 */
+	public boolean add(Object[] row) throws KettleException {
+		return add(hash(row), row);
+	}
+
+	/**
+	 * Get the next row that was held back and isn't a duplicate. The first call marks the end of the input.
+	 * @return the row or null if there are no more rows
+	 * @throws KettleException if the spill files can't be read
+	 */
+	public Object[] nextDeferred() throws KettleException {
+		finish();
+		while (true) {
+			if (replay == null) {
+				if (!openNextPartition()) {
+					return null;
+				}
+			}
+			try {
+				while (replayRemaining > 0) {
+					replayRemaining--;
+					byte type = replayIn.readByte();
+					long hash = replayIn.readLong();
+					Object[] row = type == ROW ? (Object[]) replayIn.readUnshared() : null;
+					if (replay.add(hash, row)) {
+						return row;
+					}
+				}
+			} catch (Exception e) {
+				throw new KettleException("Error reading held back rows: " + e.getMessage(), e);
+			}
+			Object[] row = replay.nextDeferred();
+			if (row != null) {
+				return row;
+			}
+			duplicates += replay.duplicates;
+			peakBytes = Math.max(peakBytes, replay.getPeakBytes());
+			replay.dispose();
+			replay = null;
+			close(replayIn);
+			replayIn = null;
+			delete(files[replayPartition]);
+			files[replayPartition] = null;
+		}
+	}
+
+	/**
+	 * @return number of rows dropped because their keys were seen before
+	 */
+	public long getDuplicates() {
+		return duplicates + (replay == null ? 0 : replay.duplicates);
+	}
+
+	/**
+	 * @return most bytes the hash tables took at any time, while checking the input or the held back rows
+	 */
+	public long getPeakBytes() {
+		return replay == null ? peakBytes : Math.max(peakBytes, replay.getPeakBytes());
+	}
+
+	/**
+	 * @return number of rows written to disk to be checked once the input is done
+	 */
+	public long getDeferred() {
+		return deferred;
+	}
+
+	/**
+	 * Close and delete all spill files. Problems are logged rather than thrown since this is called during clean up.
+	 */
+	public void dispose() {
+		if (replay != null) {
+			replay.dispose();
+			replay = null;
+		}
+		close(replayIn);
+		replayIn = null;
+		for (int i = 0; i < PARTITIONS; i++) {
+			close(outStreams[i]);
+			outStreams[i] = null;
+			delete(files[i]);
+			files[i] = null;
+		}
+	}
+
+	/**
+	 * Check a hash, and write it to disk along with its row if its partition was spilled
+	 * @param hash hash of the key fields
+	 * @param row the row, or null for a hash that was passed on before the partition was spilled
+	 * @return true if the row is new and can be passed on now
+	 */
+	private boolean add(long hash, Object[] row) throws KettleException {
+		int partition = partition(hash);
+		LongHashSet hashes = partitions[partition];
+		if (hashes == null) {
+			writeRecord(partition, row == null ? SEEN : ROW, hash, row);
+			if (row != null) {
+				deferred++;
+			}
+			return false;
+		}
+		if (!hashes.add(hash)) {
+			if (row != null) {
+				duplicates++;
+			}
+			return false;
+		}
+		if (hashes.isFull()) {
+			grow(partition, hashes);
+		}
+		return row != null;
+	}
+
+	/**
+	 * Grow the hash table of a partition, first spilling the largest partitions while old and new table together
+	 * wouldn't fit in the budget. On the deepest level nothing can be spilled anymore, so the table grows regardless.
+	 */
+	private void grow(int partition, LongHashSet hashes) throws KettleException {
+		long grown = hashes.bytes() * 2;
+		while (slotBytes + grown > maxBytes && level < MAX_LEVEL && partitions[partition] != null) {
+			spillLargestPartition();
+		}
+		if (partitions[partition] == null) {
+			return;
+		}
+		peakBytes = Math.max(peakBytes, slotBytes + grown);
+		slotBytes += grown - hashes.bytes();
+		hashes.grow();
+	}
+
+	/**
+	 * Write the hashes of the largest partition kept in memory to disk, rows that fall into it are held back from now on
+	 */
+	private void spillLargestPartition() throws KettleException {
+		int largest = -1;
+		for (int i = 0; i < PARTITIONS; i++) {
+			if (partitions[i] != null && (largest < 0 || partitions[i].size() > partitions[largest].size())) {
+				largest = i;
+			}
+		}
+		LongHashSet hashes = partitions[largest];
+		partitions[largest] = null;
+		slotBytes -= hashes.bytes();
+		for (long hash : hashes.toArray()) {
+			writeRecord(largest, SEEN, hash, null);
+		}
+		if (log.isDetailed()) {
+			log.logDetailed(String.format("Distinct union moved %d hashes of partition %d on level %d to disk",
+					hashes.size(), largest, level));
+		}
+	}
+
+	private void writeRecord(int partition, byte type, long hash, Object[] row) throws KettleException {
+		try {
+			ObjectOutputStream out = outStreams[partition];
+			if (out == null) {
+				files[partition] = KettleVFS.createTempFile("streamschema", ".tmp", System.getProperty("java.io.tmpdir"),
+						space);
+				out = new ObjectOutputStream(new BufferedOutputStream(KettleVFS.getOutputStream(files[partition], false),
+						BUFFER_SIZE));
+				outStreams[partition] = out;
+			}
+			out.writeByte(type);
+			out.writeLong(hash);
+			if (row != null) {
+				out.writeObject(row);
+			}
+			if (++records[partition] % RESET_INTERVAL == 0) {
+				out.reset();
+			}
+		} catch (IOException e) {
+			throw new KettleException("Error writing row to the distinct union spill file: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Mark the end of the input: free the hashes kept in memory, their rows have all been passed on, and close the
+	 * spill files so they can be read back
+	 */
+	private void finish() throws KettleException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		Arrays.fill(partitions, null);
+		slotBytes = 0;
+		try {
+			for (int i = 0; i < PARTITIONS; i++) {
+				if (outStreams[i] != null) {
+					outStreams[i].close();
+					outStreams[i] = null;
+				}
+			}
+		} catch (IOException e) {
+			throw new KettleException("Error closing the distinct union spill files: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Start reading the next spilled partition
+	 * @return false if there are no more spilled partitions
+	 */
+	private boolean openNextPartition() throws KettleException {
+		do {
+			replayPartition++;
+		} while (replayPartition < PARTITIONS && files[replayPartition] == null);
+		if (replayPartition >= PARTITIONS) {
+			return false;
+		}
+		try {
+			replayIn = new ObjectInputStream(new BufferedInputStream(KettleVFS.getInputStream(files[replayPartition]),
+					BUFFER_SIZE));
+		} catch (IOException e) {
+			throw new KettleException("Error opening the distinct union spill file: " + e.getMessage(), e);
+		}
+		replayRemaining = records[replayPartition];
+		replay = new DistinctRows(keys, maxBytes, space, log, level + 1);
+		return true;
+	}
+
+	private int partition(long hash) {
+		return (int) (hash >>> (64 - PARTITION_BITS * (level + 1))) & (PARTITIONS - 1);
+	}
+
+	/**
+	 * Hash the key fields of a row. Values are hashed the way they are stored, so binary strings from lazy conversion
+	 * are compared on their bytes.
+	 */
+	long hash(Object[] row) {
+		long hash = 0x2545F4914F6CDD1DL;
+		for (int key : keys) {
+			hash = (hash ^ hashValue(row[key])) * 0x9E3779B97F4A7C15L;
+			hash ^= hash >>> 29;
+		}
+		return mix(hash);
+	}
+
+	private static long hashValue(Object value) {
+		if (value == null) {
+			return 0x5851F42D4C957F2DL;
+		}
+		if (value instanceof String) {
+			String s = (String) value;
+			long h = 0xCBF29CE484222325L;
+			for (int i = 0; i < s.length(); i++) {
+				h = (h ^ s.charAt(i)) * 0x100000001B3L;
+			}
+			return mix(h);
+		}
+		if (value instanceof Long || value instanceof Integer || value instanceof Boolean) {
+			return mix(value instanceof Boolean ? ((Boolean) value ? 1 : 0) : ((Number) value).longValue());
+		}
+		if (value instanceof Double) {
+			double number = (Double) value;
+			return mix(number == 0 ? 0 : Double.doubleToLongBits(number));  // 0.0 and -0.0 are the same number
+		}
+		if (value instanceof BigDecimal) {
+			// 1.0 and 1.00 are the same number
+			BigDecimal number = ((BigDecimal) value).stripTrailingZeros();
+			return mix(number.signum() == 0 ? 0 : number.unscaledValue().longValue() * 31 + number.scale());
+		}
+		if (value instanceof Timestamp) {
+			return mix(((Timestamp) value).getTime() * 31 + ((Timestamp) value).getNanos());
+		}
+		if (value instanceof Date) {
+			return mix(((Date) value).getTime());
+		}
+		if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			long h = 0xCBF29CE484222325L;
+			for (byte b : bytes) {
+				h = (h ^ (b & 0xff)) * 0x100000001B3L;
+			}
+			return mix(h);
+		}
+		return mix(value.hashCode());
+	}
+
+	/**
+	 * Finalizer of the 64 bit MurmurHash3, spreads every input bit over the whole hash
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private void close(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.logBasic("Hit exception when cleaning up: " + e.getMessage());
+		}
+	}
+
+	private void delete(FileObject obj) {
+		if (obj == null) {
+			return;
+		}
+		try {
+			obj.delete();
+		} catch (IOException e) {
+			log.logBasic(String.format("Unable to delete file %s because %s", obj.getName(), e.getMessage()));
+		}
+	}
+
+	/**
+	 * Open addressing set of longs, so a hash costs 16 to 32 bytes instead of a boxed Long in a HashMap entry. The
+	 * owner grows the set once it is half full, so it can decide whether the larger table fits.
+	 */
+	static class LongHashSet {
+
+		private static final long EMPTY = 0;  // marks a free slot, the hash 0 is tracked separately
+
+		private long[] slots = new long[64];
+		private int size;
+		private boolean hasZero;
+
+		/**
+		 * @return true if the value wasn't in the set yet
+		 */
+		boolean add(long value) {
+			if (value == EMPTY) {
+				if (hasZero) {
+					return false;
+				}
+				hasZero = true;
+				size++;
+				return true;
+			}
+			int mask = slots.length - 1;
+			int pos = (int) value & mask;  // the values are hashes already
+			while (slots[pos] != EMPTY) {
+				if (slots[pos] == value) {
+					return false;
+				}
+				pos = (pos + 1) & mask;
+			}
+			slots[pos] = value;
+			size++;
+			return true;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * @return true if the set is more than half full and should grow before more values are added
+		 */
+		boolean isFull() {
+			return size * 2 > slots.length;
+		}
+
+		/**
+		 * @return bytes taken by the slots
+		 */
+		long bytes() {
+			return slots.length * 8L;
+		}
+
+		long[] toArray() {
+			long[] values = new long[size];
+			int n = 0;
+			if (hasZero) {
+				values[n++] = EMPTY;
+			}
+			for (long slot : slots) {
+				if (slot != EMPTY) {
+					values[n++] = slot;
+				}
+			}
+			return values;
+		}
+
+		void grow() {
+			long[] old = slots;
+			slots = new long[old.length * 2];
+			int mask = slots.length - 1;
+			for (long value : old) {
+				if (value != EMPTY) {
+					int pos = (int) value & mask;
+					while (slots[pos] != EMPTY) {
+						pos = (pos + 1) & mask;
+					}
+					slots[pos] = value;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.trans.step.StepInterface;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which input rowset the next row is read from. BaseStep.getRow gives every rowset the same number of turns,
+ * which lets a busy stream fill up its rowset and block its producer while the step waits on quiet streams. The
+ * scheduler instead looks at the fill level of the rowsets when choosing where to read:
+ *
+ * ROUND_ROBIN takes turns between the rowsets that have rows, a row at a time like BaseStep.getRow.
+ * WEIGHTED gives every rowset a share of the reads in proportion to its weight, boosted by how full the rowset is.
+ * PRIORITY always reads from the first rowset that has rows, in the order the streams are listed.
+ * BACKLOG reads from the fullest rowset.
+ *
+ * The other policies keep a decision for a block of rows so the fill levels don't need to be checked for every row.
+ * Like BaseStep.getRow, the scheduler holds off reading while the step is paused.
+ */
+public class InputScheduler {
+
+	private static final int BLOCK_SIZE = 100;  // rows read from a rowset before the next scheduling decision
+	private static final long PAUSE_MILLIS = 100;  // time to sleep between checks while the step is paused
+
+	private final StepInterface step;
+	private final StreamSchemaStepMeta.SchedulingPolicy policy;
+	private final List<RowSet> rowSets;
+	private final double[] weights;  // share of the reads for each rowset
+	private final double[] credits;  // weighted round robin credits for each rowset
+	private final int capacity;  // number of rows a rowset can hold
+	private final int blockSize;  // rows read from a rowset before the next scheduling decision
+
+	private final int[] live;  // rowsets that may still send rows, in priority order
+	private int numLive;
+
+	private int current = -1;  // rowset we're reading a block from
+	private int block;  // rows read from the current rowset
+	private int lastSource = -1;
+	private int waitPos;  // rowset to wait on when none of them has rows
+
+	/**
+	 * @param step		step reading the rows, used to check if it was paused or stopped
+	 * @param policy	how to choose the next rowset
+	 * @param rowSets	rowsets to read from
+	 * @param weights	share of the reads for each rowset, used by the weighted policy
+	 * @param capacity	number of rows a rowset can hold
+	 */
+	public InputScheduler(StepInterface step, StreamSchemaStepMeta.SchedulingPolicy policy, List<RowSet> rowSets,
+						  double[] weights, int capacity) {
+		this.step = step;
+		this.policy = policy;
+		this.rowSets = rowSets;
+		this.weights = weights;
+		this.credits = new double[rowSets.size()];
+		this.capacity = Math.max(1, capacity);
+		blockSize = policy == StreamSchemaStepMeta.SchedulingPolicy.ROUND_ROBIN ? 1 : BLOCK_SIZE;
+		live = new int[rowSets.size()];
+		for (int i = 0; i < live.length; i++) {
+			live[i] = i;
+		}
+		numLive = live.length;
+	}
+
+	/**
+	 * Get the next row, waiting if none of the rowsets has a row available
+	 * @return the next row or null if all rowsets are done or the step was stopped
+	 * @throws KettleStepException if interrupted while the step is paused
+	 */
+	public Object[] nextRow() throws KettleStepException {
+		while (numLive > 0 && !step.isStopped()) {
+			waitWhilePaused();
+			if (current >= 0 && block < blockSize) {
+				Object[] row = rowSets.get(current).getRowImmediate();
+				if (row != null) {
+					block++;
+					lastSource = current;
+					return row;
+				}
+			}
+			current = pick();
+			block = 0;
+			if (current >= 0) {
+				continue;
+			}
+			if (numLive == 0) {
+				break;
+			}
+			// nothing available right now, so wait a little on one of the rowsets
+			waitPos = (waitPos + 1) % numLive;
+			int source = live[waitPos];
+			Object[] row = rowSets.get(source).getRowWait(1, TimeUnit.MILLISECONDS);
+			if (row != null) {
+				current = source;
+				block = 1;
+				lastSource = source;
+				return row;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wait until the step is resumed or stopped, the way BaseStep.getRow does
+	 * @throws KettleStepException if interrupted while waiting
+	 */
+	private void waitWhilePaused() throws KettleStepException {
+		while (step.isPaused() && !step.isStopped()) {
+			try {
+				Thread.sleep(PAUSE_MILLIS);
+			} catch (InterruptedException e) {
+				throw new KettleStepException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return position of the rowset the last row returned by {@link #nextRow()} was read from
+	 */
+	public int getLastSource() {
+		return lastSource;
+	}
+
+	/**
+	 * @return number of rowsets that may still send rows
+	 */
+	public int getNumLive() {
+		return numLive;
+	}
+
+	/**
+	 * Choose the rowset to read the next block from and drop rowsets that are done
+	 * @return position of the rowset or -1 if none of the rowsets has rows
+	 */
+	private int pick() {
+		if (policy == StreamSchemaStepMeta.SchedulingPolicy.ROUND_ROBIN) {
+			return pickNext();
+		}
+		int best = -1;
+		double bestScore = 0;
+		double totalWeight = 0;
+		for (int i = 0; i < numLive; i++) {
+			int source = live[i];
+			RowSet rowSet = rowSets.get(source);
+			int size = rowSet.size();
+			if (size == 0) {
+				// the done flag is set after the last row is put, so check it before looking at the size again
+				if (rowSet.isDone() && rowSet.size() == 0) {
+					remove(i--);
+				}
+				continue;
+			}
+			double score;
+			switch (policy) {
+				case BACKLOG:
+					score = size;
+					break;
+				case WEIGHTED:
+					double weight = weights[source] * (1.0 + (double) size / capacity);
+					credits[source] += weight;
+					totalWeight += weight;
+					score = credits[source];
+					break;
+				default:
+					// priority
+					return source;
+			}
+			if (best < 0 || score > bestScore) {
+				best = source;
+				bestScore = score;
+			}
+		}
+		if (best >= 0 && policy == StreamSchemaStepMeta.SchedulingPolicy.WEIGHTED) {
+			credits[best] -= totalWeight;
+		}
+		return best;
+	}
+
+	/**
+	 * Round robin: choose the first rowset with rows after the one we read from last, dropping rowsets that are done
+	 * @return position of the rowset or -1 if none of the rowsets has rows
+	 */
+	private int pickNext() {
+		// live rowsets stay in order, so start at the first one after the last source
+		int pos = 0;
+		while (pos < numLive && live[pos] <= lastSource) {
+			pos++;
+		}
+		for (int n = numLive; n > 0 && numLive > 0; n--) {
+			if (pos >= numLive) {
+				pos = 0;
+			}
+			int source = live[pos];
+			RowSet rowSet = rowSets.get(source);
+			if (rowSet.size() > 0) {
+				return source;
+			}
+			// the done flag is set after the last row is put, so check it before looking at the size again
+			if (rowSet.isDone() && rowSet.size() == 0) {
+				// the next rowset moves into this position
+				remove(pos);
+			} else {
+				pos++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove a rowset from the live rowsets, keeping the remaining ones in priority order
+	 */
+	private void remove(int pos) {
+		System.arraycopy(live, pos + 1, live, pos, numLive - pos - 1);
+		numLive--;
+		if (waitPos >= numLive) {
+			waitPos = 0;
+		}
+	}
+}
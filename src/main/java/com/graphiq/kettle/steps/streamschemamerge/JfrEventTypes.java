@@ -0,0 +1,233 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder event types. The plugin is built for Java 8, which has no jdk.jfr API to compile against, so
+ * the event types are defined at runtime through jdk.jfr.EventFactory and only reached by reflection. On a JVM without
+ * that API (Java 8 before update 272, or a JVM built without Flight Recorder) the types stay undefined and no events
+ * are created. Only {@link JfrEvents} uses these.
+ */
+final class JfrEventTypes {
+
+	private static final String PREFIX = "com.graphiq.kettle.streamschemamerge.";
+	private static final String[] CATEGORY = {"Kettle", "Stream Schema Merge"};
+
+	private static final Api API = Api.load();
+
+	static final JfrEventTypes ROW_SET_RETRY = define("RowSetRetry", "Rowset Retry",
+			"No rowset was found for an infostream yet and the step waits before looking again",
+			field(String.class, "stream", "Stream"),
+			field(int.class, "retriesRemaining", "Retries Remaining"));
+
+	static final JfrEventTypes DISCOVERY_WAIT = define("DiscoveryWait", "Discovery Wait",
+			"Time spent waiting for the row meta of an infostream",
+			field(String.class, "stream", "Stream"),
+			field(long.class, "iterations", "Iterations"),
+			field(boolean.class, "rowMetaFound", "Row Meta Found"),
+			field(long.class, "rowsSpilled", "Rows Spilled"));
+
+	static final JfrEventTypes SPILL_BATCH = define("SpillBatch", "Spill Batch",
+			"Rows written to the row cache while waiting for row metas",
+			field(String.class, "stream", "Waiting For Stream"),
+			field(long.class, "rows", "Rows"),
+			bytesField("bytes", "Bytes"));
+
+	static final JfrEventTypes REPLAY = define("Replay", "Replay",
+			"Cached rows being read back and passed on",
+			field(String.class, "step", "Step"),
+			field(long.class, "rows", "Rows"));
+
+	static final JfrEventTypes SCHEMA_MAPPING = define("SchemaMapping", "Schema Mapping",
+			"Construction of the mapping from the infostreams to the merged layout",
+			field(String.class, "step", "Step"),
+			field(int.class, "streams", "Streams"),
+			field(int.class, "fields", "Fields"),
+			field(int.class, "convertedFields", "Converted Fields"));
+
+	private final Object factory;  // jdk.jfr.EventFactory, null if the type isn't defined
+
+	private JfrEventTypes(Object factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @return true if the event types could be defined on this JVM
+	 */
+	static boolean isAvailable() {
+		return ROW_SET_RETRY.factory != null;
+	}
+
+	/**
+	 * Create an event of this type
+	 * @return the event or null if the type isn't defined or no recording wants it
+	 */
+	Object newEvent() {
+		if (factory == null) {
+			return null;
+		}
+		try {
+			Object event = API.newEvent.invoke(factory);
+			return (Boolean) API.isEnabled.invoke(event) ? event : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Start timing an event
+	 * @param event event returned by {@link #newEvent()}
+	 */
+	static void begin(Object event) {
+		try {
+			API.begin.invoke(event);
+		} catch (Exception e) {
+			// events are only diagnostics, never let them fail the step
+		}
+	}
+
+	/**
+	 * Set the fields of an event and commit it
+	 * @param event event returned by {@link #newEvent()}
+	 * @param values values of the fields, in the order they were defined
+	 */
+	static void commit(Object event, Object... values) {
+		try {
+			for (int i = 0; i < values.length; i++) {
+				API.set.invoke(event, i, values[i]);
+			}
+			API.commit.invoke(event);
+		} catch (Exception e) {
+			// events are only diagnostics, never let them fail the step
+		}
+	}
+
+	private static Field field(Class<?> type, String name, String label) {
+		return new Field(type, name, label, false);
+	}
+
+	private static Field bytesField(String name, String label) {
+		return new Field(long.class, name, label, true);
+	}
+
+	private static JfrEventTypes define(String name, String label, String description, Field... fields) {
+		if (API == null) {
+			return new JfrEventTypes(null);
+		}
+		try {
+			List<Object> annotations = Arrays.asList(
+					API.annotation(API.name, PREFIX + name),
+					API.annotation(API.label, label),
+					API.annotation(API.category, CATEGORY),
+					API.annotation(API.description, description));
+			List<Object> values = new ArrayList<Object>();
+			for (Field field : fields) {
+				List<Object> fieldAnnotations = new ArrayList<Object>();
+				fieldAnnotations.add(API.annotation(API.label, field.label));
+				if (field.bytes) {
+					fieldAnnotations.add(API.annotation(API.dataAmount, "BYTES"));
+				}
+				values.add(API.valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+			}
+			return new JfrEventTypes(API.create.invoke(null, annotations, values));
+		} catch (Exception e) {
+			return new JfrEventTypes(null);
+		}
+	}
+
+	/**
+	 * A field of an event type
+	 */
+	private static class Field {
+		final Class<?> type;
+		final String name;
+		final String label;
+		final boolean bytes;  // true if the field is an amount of bytes
+
+		Field(Class<?> type, String name, String label, boolean bytes) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * The parts of the jdk.jfr API used to define and emit events
+	 */
+	private static class Api {
+		Class<?> name;
+		Class<?> label;
+		Class<?> category;
+		Class<?> description;
+		Class<?> dataAmount;
+		Constructor<?> annotationElement;
+		Constructor<?> valueDescriptor;
+		Method create;
+		Method newEvent;
+		Method isEnabled;
+		Method begin;
+		Method set;
+		Method commit;
+
+		/**
+		 * @return the API or null if this JVM doesn't have it
+		 */
+		static Api load() {
+			try {
+				Api api = new Api();
+				api.name = Class.forName("jdk.jfr.Name");
+				api.label = Class.forName("jdk.jfr.Label");
+				api.category = Class.forName("jdk.jfr.Category");
+				api.description = Class.forName("jdk.jfr.Description");
+				api.dataAmount = Class.forName("jdk.jfr.DataAmount");
+				api.annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class,
+						Object.class);
+				api.valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+						String.class, List.class);
+				Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+				api.create = eventFactory.getMethod("create", List.class, List.class);
+				api.newEvent = eventFactory.getMethod("newEvent");
+				Class<?> event = Class.forName("jdk.jfr.Event");
+				api.isEnabled = event.getMethod("isEnabled");
+				api.begin = event.getMethod("begin");
+				api.set = event.getMethod("set", int.class, Object.class);
+				api.commit = event.getMethod("commit");
+				return api;
+			} catch (Throwable t) {
+				return null;
+			}
+		}
+
+		Object annotation(Class<?> type, Object value) throws Exception {
+			return annotationElement.newInstance(type, value);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+/**
+ * Emits Java Flight Recorder events for the phases of the step. Flight Recorder's API only exists on newer Java
+ * builds, so {@link JfrEventTypes} looks it up once and every method does nothing when it isn't there. When it is
+ * there but no recording is running, events are created and dropped straight away.
+ *
+ * Duration events are started with a begin method, which returns a handle to pass to the matching end method. The
+ * handle is null when the event isn't recorded.
+ */
+public final class JfrEvents {
+
+	private static final boolean AVAILABLE = JfrEventTypes.isAvailable();
+
+	private JfrEvents() {
+	}
+
+	/**
+	 * @return true if Flight Recorder events can be emitted on this JVM
+	 */
+	public static boolean isAvailable() {
+		return AVAILABLE;
+	}
+
+	/**
+	 * No rowset was found for an infostream and the step is about to wait before it looks again
+	 * @param stream name of the info step
+	 * @param retriesRemaining retries left after this one
+	 */
+	public static void rowSetRetry(String stream, int retriesRemaining) {
+		if (AVAILABLE) {
+			Object event = JfrEventTypes.ROW_SET_RETRY.newEvent();
+			if (event != null) {
+				JfrEventTypes.commit(event, stream, retriesRemaining);
+			}
+		}
+	}
+
+	/**
+	 * Start waiting for the row meta of an infostream
+	 * @return handle for {@link #endDiscoveryWait}
+	 */
+	public static Object beginDiscoveryWait() {
+		return begin(JfrEventTypes.DISCOVERY_WAIT);
+	}
+
+	/**
+	 * Stop waiting for the row meta of an infostream
+	 * @param handle handle returned by {@link #beginDiscoveryWait}
+	 * @param stream name of the info step
+	 * @param iterations times the step looked for the row meta
+	 * @param rowMetaFound true if the row meta was found, false if the stream finished without sending rows
+	 * @param rowsSpilled rows cached while waiting
+	 */
+	public static void endDiscoveryWait(Object handle, String stream, long iterations, boolean rowMetaFound,
+										long rowsSpilled) {
+		if (handle != null) {
+			JfrEventTypes.commit(handle, stream, iterations, rowMetaFound, rowsSpilled);
+		}
+	}
+
+	/**
+	 * A batch of rows was written to the row cache
+	 * @param stream name of the info step the step was waiting for
+	 * @param rows rows in the batch
+	 * @param bytes bytes written for the batch
+	 */
+	public static void spillBatch(String stream, long rows, long bytes) {
+		if (AVAILABLE) {
+			Object event = JfrEventTypes.SPILL_BATCH.newEvent();
+			if (event != null) {
+				JfrEventTypes.commit(event, stream, rows, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Start replaying cached rows
+	 * @return handle for {@link #endReplay}
+	 */
+	public static Object beginReplay() {
+		return begin(JfrEventTypes.REPLAY);
+	}
+
+	/**
+	 * All cached rows were replayed
+	 * @param handle handle returned by {@link #beginReplay}
+	 * @param step name of the step
+	 * @param rows rows replayed
+	 */
+	public static void endReplay(Object handle, String step, long rows) {
+		if (handle != null) {
+			JfrEventTypes.commit(handle, step, rows);
+		}
+	}
+
+	/**
+	 * Start building the schema mapping
+	 * @return handle for {@link #endSchemaMapping}
+	 */
+	public static Object beginSchemaMapping() {
+		return begin(JfrEventTypes.SCHEMA_MAPPING);
+	}
+
+	/**
+	 * The schema mapping was built
+	 * @param handle handle returned by {@link #beginSchemaMapping}
+	 * @param step name of the step
+	 * @param streams number of infostreams
+	 * @param fields number of fields in the merged layout
+	 * @param convertedFields number of fields converted to String
+	 */
+	public static void endSchemaMapping(Object handle, String step, int streams, int fields, int convertedFields) {
+		if (handle != null) {
+			JfrEventTypes.commit(handle, step, streams, fields, convertedFields);
+		}
+	}
+
+	/**
+	 * Start a duration event if a recording wants it
+	 * @return the event or null if it isn't recorded
+	 */
+	private static Object begin(JfrEventTypes type) {
+		if (AVAILABLE) {
+			Object event = type.newEvent();
+			if (event != null) {
+				JfrEventTypes.begin(event);
+				return event;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,162 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+/**
+ * Histogram of latencies in nanoseconds with fixed power of two buckets. Bucket i counts values below 2^i, so 64
+ * buckets cover every possible value. Recording doesn't allocate and only touches primitive fields, which keeps it
+ * cheap enough for the per row path.
+ *
+ * Only every sampleInterval-th value offered to {@link #record(long)} is counted. A histogram is written by a single
+ * thread; other threads can read it at any time but may see a slightly out of date picture.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+	private final String name;
+	private final long sampleMask;  // sample interval minus one, the interval is a power of two
+	private final long[] counts = new long[BUCKETS];
+	private long offered;  // values offered, sampled or not
+	private long count;  // values recorded
+	private long total;
+	private long max;
+
+	/**
+	 * @param name				what is being measured, used in the summary
+	 * @param sampleInterval	record one in this many values, rounded up to a power of two
+	 */
+	public LatencyHistogram(String name, int sampleInterval) {
+		this.name = name;
+		long interval = 1;
+		while (interval < sampleInterval) {
+			interval <<= 1;
+		}
+		sampleMask = interval - 1;
+	}
+
+	/**
+	 * Check whether the next value will be recorded, so callers can skip timing values that won't be. Every call
+	 * counts as an offered value.
+	 * @return true if the value should be measured and passed to {@link #add(long)}
+	 */
+	public boolean sample() {
+		return (offered++ & sampleMask) == 0;
+	}
+
+	/**
+	 * Offer a value that was measured anyway, it is only recorded if it is sampled
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (sample()) {
+			add(nanos);
+		}
+	}
+
+	/**
+	 * Record a value without sampling
+	 * @param nanos latency in nanoseconds
+	 */
+	public void add(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[BUCKETS - Long.numberOfLeadingZeros(nanos)]++;  // 0 for 0, 63 for the largest values
+		count++;
+		total += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return one in how many values is recorded, a power of two
+	 */
+	public long getSampleInterval() {
+		return sampleMask + 1;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return mean of the recorded values in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * Estimate a percentile as the upper bound of the bucket it falls in
+	 * @param percentile between 0 and 1
+	 * @return the estimate in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long target = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target && seen > 0) {
+				return Math.min(max, (1L << i) - 1);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return one line summary of the histogram
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder(name).append(": ").append(count).append(" samples");
+		if (count > 0) {
+			summary.append(", mean ").append(format(getMean()));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				summary.append(", ").append(PERCENTILE_NAMES[i]).append(' ').append(format(getPercentile(PERCENTILES[i])));
+			}
+			summary.append(", max ").append(format(max));
+		}
+		return summary.toString();
+	}
+
+	private static String format(long nanos) {
+		if (nanos < 10000) {
+			return nanos + " ns";
+		} else if (nanos < 10000000) {
+			return nanos / 1000 + " us";
+		} else {
+			return nanos / 1000000 + " ms";
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads rows from the input rowsets and maps them to the output layout on a number of worker threads. Mapped rows are
+ * handed to the step thread through a bounded queue, so the step thread only has to call putRow.
+ *
+ * When stream order is preserved every infostream is read by exactly one worker, which means rows from the same
+ * infostream reach the queue in the order they were sent. Otherwise every worker reads from every rowset, which
+ * spreads a single busy stream over all workers at the cost of interleaving its rows.
+ */
+public class MappingWorkerPool {
+
+	private static final long POLL_MILLIS = 50;  // how long we wait on the queue before checking for stop signals
+
+	private static final int BLOCK_SIZE = 500;  // rows read from a rowset before a worker moves on to the next one
+
+	private final StreamSchemaStep step;
+	private final SchemaMapper schemaMapping;
+	private final List<RowSet> rowSets;
+	private final int[] rowSetStreams;
+	private final MergeMetrics metrics;
+	private final BlockingQueue<Object[]> queue;
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final AtomicInteger activeWorkers = new AtomicInteger();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private volatile boolean stopped;
+
+	/**
+	 * @param step					step the workers read rows for
+	 * @param schemaMapping			mapping from the infostreams to the output row
+	 * @param rowSets				rowsets to read from
+	 * @param rowSetStreams			infostream number for each of the rowsets
+	 * @param numThreads			number of worker threads to start
+	 * @param queueSize				number of mapped rows that can wait for the step thread
+	 * @param preserveStreamOrder	true to keep the rows of each infostream in order
+	 * @param metrics				counters for the rows the workers read and map
+	 */
+	public MappingWorkerPool(StreamSchemaStep step, SchemaMapper schemaMapping, List<RowSet> rowSets,
+							 int[] rowSetStreams, int numThreads, int queueSize, boolean preserveStreamOrder,
+							 MergeMetrics metrics) {
+		this.step = step;
+		this.schemaMapping = schemaMapping;
+		this.rowSets = rowSets;
+		this.rowSetStreams = rowSetStreams;
+		this.metrics = metrics;
+		this.queue = new ArrayBlockingQueue<Object[]>(Math.max(1, queueSize));
+
+		List<List<Integer>> assignments = new ArrayList<List<Integer>>();
+		if (preserveStreamOrder) {
+			// every infostream goes to a single worker
+			List<Integer> streams = new ArrayList<Integer>();
+			for (int stream : rowSetStreams) {
+				if (!streams.contains(stream)) {
+					streams.add(stream);
+				}
+			}
+			int numWorkers = Math.min(numThreads, streams.size());
+			for (int i = 0; i < numWorkers; i++) {
+				assignments.add(new ArrayList<Integer>());
+			}
+			for (int source = 0; source < rowSetStreams.length; source++) {
+				assignments.get(streams.indexOf(rowSetStreams[source]) % numWorkers).add(source);
+			}
+		} else {
+			// every worker reads everything
+			List<Integer> all = new ArrayList<Integer>();
+			for (int source = 0; source < rowSetStreams.length; source++) {
+				all.add(source);
+			}
+			for (int i = 0; i < numThreads; i++) {
+				assignments.add(all);
+			}
+		}
+
+		for (int i = 0; i < assignments.size(); i++) {
+			List<Integer> assigned = assignments.get(i);
+			int[] sources = new int[assigned.size()];
+			for (int j = 0; j < sources.length; j++) {
+				sources[j] = assigned.get(j);
+			}
+			Thread thread = new Thread(new Worker(sources, i), step.getStepname() + " mapping worker " + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+	}
+
+	/**
+	 * Start the worker threads
+	 */
+	public void start() {
+		activeWorkers.set(threads.size());
+		for (Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Get the next mapped row, waiting for the workers if none is available
+	 * @return the next row or null once all rowsets are exhausted or the step was stopped
+	 * @throws KettleException if one of the workers failed
+	 */
+	public Object[] take() throws KettleException {
+		while (true) {
+			checkFailure();
+			Object[] row;
+			try {
+				row = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new KettleException("Interrupted while waiting for mapped rows", e);
+			}
+			if (row != null) {
+				return row;
+			}
+			if (activeWorkers.get() == 0) {
+				// the workers could have queued rows right before finishing
+				row = queue.poll();
+				if (row == null) {
+					checkFailure();
+				}
+				return row;
+			}
+			if (step.isStopped()) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Stop the worker threads and wait for them to finish
+	 */
+	public void shutdown() {
+		stopped = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join(POLL_MILLIS * 10);
+			} catch (InterruptedException e) {
+				// we're cleaning up anyway
+			}
+		}
+	}
+
+	private void checkFailure() throws KettleException {
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new KettleException("Error mapping rows: " + t.getMessage(), t);
+		}
+	}
+
+	private boolean isStopped() {
+		return stopped || step.isStopped();
+	}
+
+	/**
+	 * Reads rows from its rowsets until they're all done
+	 */
+	private class Worker implements Runnable {
+
+		private final int[] sources;  // positions of the rowsets this worker reads from, live ones first
+		private final int start;
+		private long mapped;  // rows mapped, used to pick the rows that are timed
+
+		Worker(int[] sources, int start) {
+			this.sources = sources.clone();
+			this.start = start;
+		}
+
+		public void run() {
+			try {
+				int numLive = sources.length;
+				int pos = numLive > 0 ? start % numLive : 0;
+				int idle = 0;  // rowsets we looked at in a row without finding anything
+				int block = 0;  // rows read from the current rowset
+				while (numLive > 0 && !isStopped()) {
+					if (step.isPaused()) {
+						// hold off reading like BaseStep.getRow does while the step is paused
+						Thread.sleep(POLL_MILLIS);
+						continue;
+					}
+					if (pos >= numLive) {
+						pos = 0;
+					}
+					RowSet rowSet = rowSets.get(sources[pos]);
+					Object[] row = rowSet.getRowImmediate();
+					if (row == null) {
+						if (rowSet.isDone()) {
+							// make sure no row arrived between reading and checking the done flag
+							row = rowSet.getRowImmediate();
+							if (row == null) {
+								sources[pos] = sources[numLive - 1];
+								numLive--;
+								continue;
+							}
+						} else if (++idle >= numLive) {
+							// none of our rowsets has rows, so wait a little on this one
+							idle = 0;
+							row = rowSet.getRowWait(1, TimeUnit.MILLISECONDS);
+						}
+						if (row == null) {
+							pos++;
+							block = 0;
+							continue;
+						}
+					}
+					idle = 0;
+					step.rowRead(rowSet, row);
+					int stream = rowSetStreams[sources[pos]];
+					metrics.rowReceived(stream);
+					if (!schemaMapping.isVerified(stream)) {
+						schemaMapping.verifyStream(stream, rowSet.getRowMeta());
+					}
+					boolean timed = MergeMetrics.isTimed(mapped++);
+					long start = timed ? System.nanoTime() : 0;
+					Object[] outputRow = schemaMapping.mapRow(stream, row);
+					if (timed) {
+						metrics.addMappingTime((System.nanoTime() - start) * MergeMetrics.TIMING_INTERVAL);
+					}
+					put(outputRow);
+					if (++block >= BLOCK_SIZE) {
+						pos++;
+						block = 0;
+					}
+				}
+			} catch (Throwable t) {
+				if (!stopped) {
+					// an interrupt during shutdown isn't worth reporting
+					failure.compareAndSet(null, t);
+					stopped = true;
+				}
+			} finally {
+				activeWorkers.decrementAndGet();
+			}
+		}
+
+		private void put(Object[] row) throws InterruptedException {
+			while (!queue.offer(row, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (isStopped()) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the work the step does per infostream. The standard step metrics only show totals for the whole step,
+ * which doesn't tell which stream is spilling or waiting.
+ *
+ * Counters updated by the mapping workers are LongAdders, which keep a cell per thread instead of making every worker
+ * update the same cache line for every row. The others are only updated by the step thread, values read from other
+ * threads can be slightly behind.
+ */
+public class MergeMetrics {
+
+	/**
+	 * The time spent mapping and passing rows on is estimated from one in this many rows, a power of two. Timing is
+	 * kept separate from the latency histograms so the estimate is there whether or not they're recorded.
+	 */
+	public static final int TIMING_INTERVAL = 1024;
+
+	/**
+	 * @param count number of rows handled so far
+	 * @return true if the row with this count is timed
+	 */
+	public static boolean isTimed(long count) {
+		return (count & (TIMING_INTERVAL - 1)) == 0;
+	}
+
+	private final String[] streamNames;
+	private final LongAdder[] rowsReceived;  // rows taken off the rowsets of each stream
+	private final long[] rowsSpilled;  // rows written to the cache while looking for row metas
+	private final long[] spillBytes;  // bytes written to the cache
+	private final long[] rowsReplayed;  // rows read back from the cache
+	private final long[] discoveryNanos;  // time spent waiting for the row meta of each stream
+	// estimated from one in TIMING_INTERVAL rows
+	private final LongAdder mappingNanos = new LongAdder();
+	private volatile long putRowNanos;
+	private int[] conversionsPerRow;  // values converted to String or to normal storage in every row of each stream
+
+	/**
+	 * @param streamNames names of the steps sending the infostreams
+	 */
+	public MergeMetrics(String[] streamNames) {
+		this.streamNames = streamNames;
+		int numStreams = streamNames.length;
+		rowsReceived = new LongAdder[numStreams];
+		for (int i = 0; i < numStreams; i++) {
+			rowsReceived[i] = new LongAdder();
+		}
+		rowsSpilled = new long[numStreams];
+		spillBytes = new long[numStreams];
+		rowsReplayed = new long[numStreams];
+		discoveryNanos = new long[numStreams];
+		conversionsPerRow = new int[numStreams];
+	}
+
+	/**
+	 * Set how many values of each stream are converted to String or to normal storage once the mapping is known
+	 * @param conversionsPerRow number of converted values in a row of each stream
+	 */
+	public void setConversionsPerRow(int[] conversionsPerRow) {
+		this.conversionsPerRow = conversionsPerRow;
+	}
+
+	public void rowReceived(int stream) {
+		rowsReceived[stream].increment();
+	}
+
+	public void rowSpilled(int stream) {
+		rowsSpilled[stream]++;
+	}
+
+	public void rowReplayed(int stream) {
+		rowsReplayed[stream]++;
+	}
+
+	public void addSpillBytes(int stream, long bytes) {
+		spillBytes[stream] += bytes;
+	}
+
+	public void addDiscoveryTime(int stream, long nanos) {
+		discoveryNanos[stream] += nanos;
+	}
+
+	/**
+	 * Add time spent mapping rows to the output layout
+	 * @param nanos time spent mapping, scaled up from a timed row to the rows it stands for
+	 */
+	public void addMappingTime(long nanos) {
+		mappingNanos.add(nanos);
+	}
+
+	public void addPutRowTime(long nanos) {
+		putRowNanos += nanos;
+	}
+
+	public int getNumStreams() {
+		return streamNames.length;
+	}
+
+	public String getStreamName(int stream) {
+		return streamNames[stream];
+	}
+
+	public long getRowsReceived(int stream) {
+		return rowsReceived[stream].sum();
+	}
+
+	public long getRowsSpilled(int stream) {
+		return rowsSpilled[stream];
+	}
+
+	public long getSpillBytes(int stream) {
+		return spillBytes[stream];
+	}
+
+	public long getRowsReplayed(int stream) {
+		return rowsReplayed[stream];
+	}
+
+	/**
+	 * @param stream infostream number
+	 * @return number of fields of the stream that are converted to String or to normal storage in every row
+	 */
+	public int getConversionsPerRow(int stream) {
+		return conversionsPerRow[stream];
+	}
+
+	/**
+	 * @param stream infostream number
+	 * @return number of values of the stream converted so far, worked out from the rows received
+	 */
+	public long getConversions(int stream) {
+		return conversionsPerRow[stream] * getRowsReceived(stream);
+	}
+
+	public long getDiscoveryNanos(int stream) {
+		return discoveryNanos[stream];
+	}
+
+	public long getMappingNanos() {
+		return mappingNanos.sum();
+	}
+
+	public long getPutRowNanos() {
+		return putRowNanos;
+	}
+
+	/**
+	 * Log a line per stream and the time spent mapping and passing rows on
+	 * @param log log channel of the step
+	 */
+	public void logSummary(LogChannelInterface log) {
+		for (int i = 0; i < streamNames.length; i++) {
+			log.logBasic(String.format("Stream %s: %d rows received, %d rows spilled (%d bytes), %d rows replayed, "
+							+ "%d values converted to String or normal storage (%d per row), %d ms waiting for row meta",
+					streamNames[i], getRowsReceived(i), rowsSpilled[i], spillBytes[i], rowsReplayed[i],
+					getConversions(i), conversionsPerRow[i], discoveryNanos[i] / 1000000));
+		}
+		if (getMappingNanos() > 0 || putRowNanos > 0) {
+			log.logBasic(String.format("Mapping rows took about %d ms, passing rows on took about %d ms",
+					getMappingNanos() / 1000000, putRowNanos / 1000000));
+		}
+	}
+}
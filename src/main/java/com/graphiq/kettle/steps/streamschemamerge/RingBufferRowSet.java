@@ -0,0 +1,274 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.BaseRowSet;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free rowset, used in place of the BlockingRowSet on the hops that feed this step. BlockingRowSet
+ * guards its queue with a lock that the producer and the consumer fight over for every row. Here producers and
+ * consumers claim slots in a ring with a compare and set on a sequence number, so a row changes hands without taking
+ * a lock. Waiting for room or for rows is done by spinning briefly and then parking.
+ *
+ * Any number of threads can put and get rows. Normally there is one producer and one consumer, but unordered mapping
+ * workers can read the same rowset from several threads.
+ *
+ * Besides the fill level, the rowset keeps track of how many rows went through it and when the last row was put,
+ * which tells a stream that is stalled apart from one that is slow.
+ */
+public class RingBufferRowSet extends BaseRowSet implements Comparable<RowSet>, RowSet {
+
+	private static final int SPINS = 100;  // times we retry before parking
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<Object[]> rows;
+	private final AtomicLongArray sequences;  // tells producers and consumers whose turn it is for each slot
+	private final AtomicLong head = new AtomicLong();  // next position to read, also the number of rows taken
+	private final AtomicLong tail = new AtomicLong();  // next position to write, also the number of rows put
+
+	private volatile long lastPutMillis;
+	private volatile long fullWaits;  // times a producer had to wait for room, only approximate with several producers
+	private volatile long emptyWaits;  // times a consumer had to wait for rows
+
+	/**
+	 * @param size minimum number of rows the rowset can hold, rounded up to a power of two
+	 */
+	public RingBufferRowSet(int size) {
+		super();
+		int cap = 1;
+		while (cap < Math.max(2, size)) {
+			cap <<= 1;
+		}
+		capacity = cap;
+		mask = cap - 1;
+		rows = new AtomicReferenceArray<Object[]>(cap);
+		sequences = new AtomicLongArray(cap);
+		for (int i = 0; i < cap; i++) {
+			sequences.set(i, i);
+		}
+		lastPutMillis = System.currentTimeMillis();
+	}
+
+	@Override
+	public boolean putRow(RowMetaInterface rowMeta, Object[] rowData) {
+		return putRowWait(rowMeta, rowData, Const.TIMEOUT_PUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public boolean putRowWait(RowMetaInterface rowMeta, Object[] rowData, long time, TimeUnit tu) {
+		this.rowMeta = rowMeta;
+		if (offer(rowData)) {
+			return true;
+		}
+		fullWaits++;
+		long deadline = System.nanoTime() + tu.toNanos(time);
+		for (int attempt = 0; ; attempt++) {
+			if (offer(rowData)) {
+				return true;
+			}
+			if (!backOff(attempt, deadline)) {
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public Object[] getRow() {
+		return getRowWait(Const.TIMEOUT_GET_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Object[] getRowImmediate() {
+		return poll();
+	}
+
+	@Override
+	public Object[] getRowWait(long timeout, TimeUnit tu) {
+		Object[] row = poll();
+		if (row != null) {
+			return row;
+		}
+		emptyWaits++;
+		long deadline = System.nanoTime() + tu.toNanos(timeout);
+		for (int attempt = 0; ; attempt++) {
+			row = poll();
+			if (row != null || isDone() && size() == 0) {
+				return row;
+			}
+			if (!backOff(attempt, deadline)) {
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		// read head first, so a concurrent get can only make the result too big rather than negative
+		long taken = head.get();
+		long put = tail.get();
+		return (int) Math.max(0, Math.min(capacity, put - taken));
+	}
+
+	@Override
+	public void clear() {
+		while (poll() != null) {
+			// drop the row
+		}
+	}
+
+	/**
+	 * @return number of rows the rowset can hold
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return how full the rowset is, between 0 and 1
+	 */
+	public double getFillLevel() {
+		return (double) size() / capacity;
+	}
+
+	/**
+	 * @return number of rows put in the rowset so far
+	 */
+	public long getRowsPut() {
+		return tail.get();
+	}
+
+	/**
+	 * @return number of rows taken from the rowset so far
+	 */
+	public long getRowsTaken() {
+		return head.get();
+	}
+
+	/**
+	 * @return time in milliseconds the last row was put, or the rowset was created if no rows were put yet
+	 */
+	public long getLastPutMillis() {
+		return lastPutMillis;
+	}
+
+	/**
+	 * @return number of times a producer found the rowset full
+	 */
+	public long getFullWaits() {
+		return fullWaits;
+	}
+
+	/**
+	 * @return number of times a consumer found the rowset empty
+	 */
+	public long getEmptyWaits() {
+		return emptyWaits;
+	}
+
+	/**
+	 * A stream is stalled when it hasn't sent a row for a while and nothing is waiting to be read. A slow stream keeps
+	 * sending rows, just not many of them.
+	 * @param millis time without new rows after which the stream counts as stalled
+	 * @return true if the rowset is empty, not done and hasn't received a row in the given time
+	 */
+	public boolean isStalled(long millis) {
+		return !isDone() && size() == 0 && System.currentTimeMillis() - lastPutMillis > millis;
+	}
+
+	/**
+	 * Try to put a row in the next free slot
+	 * @return false if the rowset is full
+	 */
+	private boolean offer(Object[] row) {
+		while (true) {
+			long pos = tail.get();
+			int slot = (int) (pos & mask);
+			long diff = sequences.get(slot) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					rows.lazySet(slot, row);
+					sequences.set(slot, pos + 1);  // publishes the row to consumers
+					lastPutMillis = System.currentTimeMillis();
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;  // the slot still holds a row from the previous lap
+			}
+			// another producer claimed the slot, try the next one
+		}
+	}
+
+	/**
+	 * Try to take the row from the next filled slot
+	 * @return the row or null if the rowset is empty
+	 */
+	private Object[] poll() {
+		while (true) {
+			long pos = head.get();
+			int slot = (int) (pos & mask);
+			long diff = sequences.get(slot) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					Object[] row = rows.get(slot);
+					rows.lazySet(slot, null);
+					sequences.set(slot, pos + capacity);  // hands the slot back to producers
+					return row;
+				}
+			} else if (diff < 0) {
+				return null;  // nothing was put in this slot yet
+			}
+			// another consumer took the row, try the next one
+		}
+	}
+
+	/**
+	 * Wait a little before trying again, spinning first and parking for increasing amounts of time after that
+	 * @param attempt number of times we tried so far
+	 * @param deadline System.nanoTime at which we give up
+	 * @return false if the deadline has passed
+	 */
+	private boolean backOff(int attempt, long deadline) {
+		long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return false;
+		}
+		if (attempt < SPINS) {
+			Thread.yield();
+		} else {
+			long park = Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, (attempt - SPINS) / 10));
+			LockSupport.parkNanos(Math.min(park, remaining));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,71 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Assigns merged rows to one of a number of targets based on a hash of their key fields, so all rows with the same
+ * key end up at the same target. Used to send the output straight to the copies of the next step without another
+ * redistribution hop. The hash of a row is worked out once and can then pick a target among the copies of each of
+ * the next steps.
+ */
+public class RowPartitioner {
+
+	private final RowMetaInterface rowMeta;  // meta of the merged rows
+	private final int[] keys;  // positions of the key fields in the merged rows
+
+	/**
+	 * @param rowMeta		row meta of the merged rows
+	 * @param keys			positions of the key fields in the merged rows
+	 */
+	public RowPartitioner(RowMetaInterface rowMeta, int[] keys) {
+		this.rowMeta = rowMeta;
+		this.keys = keys;
+	}
+
+	/**
+	 * Hash the key fields of a row
+	 * @param row merged row
+	 * @return the hash, to pass to {@link #partition(int, int)}
+	 * @throws KettleValueException if a key value can't be hashed
+	 */
+	public int hash(Object[] row) throws KettleValueException {
+		int hash = 0;
+		for (int key : keys) {
+			hash = 31 * hash + rowMeta.getValueMeta(key).hashCode(row[key]);
+		}
+		return hash ^ (hash >>> 16);  // spread the high bits, small key ranges would otherwise land on few targets
+	}
+
+	/**
+	 * Work out which target a row goes to
+	 * @param hash hash of the row returned by {@link #hash(Object[])}
+	 * @param numTargets number of targets to spread the rows over
+	 * @return target number, between 0 and the number of targets
+	 */
+	public int partition(int hash, int numTargets) {
+		return (hash & Integer.MAX_VALUE) % numTargets;
+	}
+}
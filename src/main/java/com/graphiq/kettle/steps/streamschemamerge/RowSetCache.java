@@ -0,0 +1,423 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Disk cache for rows that are pulled off the input rowsets while the step is still waiting for meta information.
+ *
+ * Rows are cached per source, where a source is the position of a rowset in the list of rowsets the step reads
+ * from. Keying on the rowset instead of the step name keeps the bookkeeping correct when a step feeding the merge
+ * runs in multiple copies, since each copy has its own rowset. The order in which rows were written is recorded in
+ * a separate file so that {@link #next()} gives the rows back in the order they were cached. Alternatively the rows
+ * of a single source can be read back with {@link #next(int)}. The two ways of reading shouldn't be mixed.
+ *
+ * Optionally rows are first parked off heap, in direct buffers up to a size limit, and only go to disk once those are
+ * full. A source that had a row go to disk keeps writing to disk, so its rows come back in order.
+ */
+public class RowSetCache {
+
+	private static final int RESET_INTERVAL = 5000;  // rows written to a stream before we reset its handle table
+
+	private final int bufferSize;
+	private final VariableSpace space;
+	private final LogChannelInterface log;
+
+	private final FileObject[] files;  // one file per source, created when the first row for that source arrives
+	private final ObjectOutputStream[] outStreams;
+	private final ObjectInputStream[] inStreams;
+	private final long[] written;  // rows written per source
+	private final long[] read;  // rows read back per source
+	private final CountingOutputStream[] counters;  // bytes written per source
+
+	private FileObject orderFile;  // source numbers for each cached row, in the order the rows were written
+	private DataOutputStream orderOut;
+	private DataInputStream orderIn;
+
+	// off heap tier, null when rows go straight to disk
+	private final DirectBufferPool pool;
+	private final DirectRowBuffer[] buffers;  // rows of each source parked off heap, written before any file rows
+	private final RowMetaInterface[] rowMetas;  // row meta the off heap rows of each source were encoded with
+	private final boolean[] onDisk;  // sources that had a row written to disk
+	private DirectRowBuffer orderBuffer;  // first part of the order, the rest is in the order file
+	private boolean orderOnDisk;
+	private long orderRead;
+
+	private boolean reading;
+	private int lastSource = -1;
+
+	/**
+	 * @param numSources	number of rowsets that can send rows to the cache
+	 * @param bufferSize	size of the buffers used for reading and writing the cache files
+	 * @param space			variable space used to resolve the temp files
+	 * @param log			log channel of the owning step
+	 */
+	public RowSetCache(int numSources, int bufferSize, VariableSpace space, LogChannelInterface log) {
+		this(numSources, bufferSize, 0, space, log);
+	}
+
+	/**
+	 * @param numSources	number of rowsets that can send rows to the cache
+	 * @param bufferSize	size of the buffers used for reading and writing the cache files
+	 * @param offHeapBytes	bytes of direct buffers rows are parked in before they go to disk, 0 to write to disk only
+	 * @param space			variable space used to resolve the temp files
+	 * @param log			log channel of the owning step
+	 */
+	public RowSetCache(int numSources, int bufferSize, long offHeapBytes, VariableSpace space, LogChannelInterface log) {
+		this.bufferSize = bufferSize;
+		this.space = space;
+		this.log = log;
+		files = new FileObject[numSources];
+		outStreams = new ObjectOutputStream[numSources];
+		inStreams = new ObjectInputStream[numSources];
+		written = new long[numSources];
+		read = new long[numSources];
+		counters = new CountingOutputStream[numSources];
+		pool = offHeapBytes >= DirectBufferPool.CHUNK_SIZE ? new DirectBufferPool(offHeapBytes) : null;
+		buffers = new DirectRowBuffer[numSources];
+		rowMetas = new RowMetaInterface[numSources];
+		onDisk = new boolean[numSources];
+	}
+
+	/**
+	 * Write a row to the cache, to disk
+	 * @param source position of the rowset the row was read from
+	 * @param row row to cache
+	 * @throws KettleException if the row can't be written
+	 */
+	public void write(int source, Object[] row) throws KettleException {
+		write(source, null, row);
+	}
+
+	/**
+	 * Write a row to the cache, off heap if there is room
+	 * @param source position of the rowset the row was read from
+	 * @param rowMeta row meta of the rowset, null to write the row to disk
+	 * @param row row to cache
+	 * @throws KettleException if the row can't be written
+	 */
+	public void write(int source, RowMetaInterface rowMeta, Object[] row) throws KettleException {
+		if (reading) {
+			throw new KettleException("Can't write to the row cache once it has been opened for reading");
+		}
+		if (pool != null && rowMeta != null && !onDisk[source]) {
+			if (buffers[source] == null) {
+				buffers[source] = new DirectRowBuffer(pool);
+				rowMetas[source] = rowMeta;
+			}
+			if (rowMeta == rowMetas[source] && buffers[source].writeRow(rowMeta, row)) {
+				written[source]++;
+				writeOrder(source);
+				return;
+			}
+		}
+		onDisk[source] = true;
+		try {
+			if (outStreams[source] == null) {
+				files[source] = createTempFile();
+				counters[source] = new CountingOutputStream(KettleVFS.getOutputStream(files[source], false));
+				outStreams[source] = new ObjectOutputStream(new BufferedOutputStream(counters[source], bufferSize));
+			}
+			ObjectOutputStream out = outStreams[source];
+			out.writeObject(row);
+			out.flush();
+			written[source]++;
+			if (written[source] % RESET_INTERVAL == 0) {
+				// fix for memory leak bug https://bugs.graphiq.com/view.php?id=34255
+				// explanation of memory leak here http://wordpress.nejaa-den.com/outofmemoryexception-memory-leak-in-the-java-class-objectoutputstream-and-objectinputstream/#comment-12234
+				out.reset();
+			}
+		} catch (IOException e) {
+			throw new KettleException("Error writing row to cache: " + e.getMessage(), e);
+		}
+		writeOrder(source);
+	}
+
+	/**
+	 * Record the source of the row that was just written
+	 */
+	private void writeOrder(int source) throws KettleException {
+		if (pool != null && !orderOnDisk) {
+			if (orderBuffer == null) {
+				orderBuffer = new DirectRowBuffer(pool);
+			}
+			if (orderBuffer.writeInt(source)) {
+				return;
+			}
+			orderOnDisk = true;
+		}
+		try {
+			if (orderOut == null) {
+				orderFile = createTempFile();
+				orderOut = new DataOutputStream(new BufferedOutputStream(KettleVFS.getOutputStream(orderFile, false), bufferSize));
+			}
+			orderOut.writeInt(source);
+		} catch (IOException e) {
+			throw new KettleException("Error writing row to cache: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Close the files we've been writing to and open them for reading
+	 * @throws KettleException if the files can't be reopened
+	 */
+	public void finishWriting() throws KettleException {
+		if (reading) {
+			return;
+		}
+		reading = true;
+		for (DirectRowBuffer buffer : buffers) {
+			if (buffer != null) {
+				buffer.finishWriting();
+			}
+		}
+		if (orderBuffer != null) {
+			orderBuffer.finishWriting();
+		}
+		try {
+			for (int i = 0; i < outStreams.length; i++) {
+				if (outStreams[i] != null) {
+					outStreams[i].close();
+					outStreams[i] = null;
+					inStreams[i] = new ObjectInputStream(new BufferedInputStream(KettleVFS.getInputStream(files[i]), bufferSize));
+				}
+			}
+			if (orderOut != null) {
+				orderOut.close();
+				orderOut = null;
+				orderIn = new DataInputStream(new BufferedInputStream(KettleVFS.getInputStream(orderFile), bufferSize));
+			}
+		} catch (IOException e) {
+			throw new KettleException("Error closing outstreams and opening in streams: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read the next cached row in the order rows were written. Callers are expected to keep track of how many rows
+	 * they wrote.
+	 * @return the cached row
+	 * @throws KettleException if the row can't be read
+	 */
+	public Object[] next() throws KettleException {
+		if (orderBuffer != null && orderRead < orderBuffer.getCount()) {
+			orderRead++;
+			lastSource = orderBuffer.readInt();
+			return next(lastSource);
+		}
+		try {
+			lastSource = orderIn.readInt();
+		} catch (IOException e) {
+			throw new KettleException("Error reading buffered rows: " + e.getMessage(), e);
+		}
+		return next(lastSource);
+	}
+
+	/**
+	 * Check whether a source has cached rows that haven't been read back yet
+	 * @param source position of the rowset the rows were read from
+	 * @return true if {@link #next(int)} will return a row for this source
+	 */
+	public boolean hasNext(int source) {
+		return reading && read[source] < written[source];
+	}
+
+	/**
+	 * Read the next cached row of a single source
+	 * @param source position of the rowset the rows were read from
+	 * @return the cached row
+	 * @throws KettleException if the row can't be read
+	 */
+	public Object[] next(int source) throws KettleException {
+		if (buffers[source] != null && read[source] < buffers[source].getCount()) {
+			lastSource = source;
+			read[source]++;
+			return buffers[source].readRow(rowMetas[source]);
+		}
+		try {
+			lastSource = source;
+			read[source]++;
+			// readUnshared used instead of readObject to prevent memory leak
+			return (Object[]) inStreams[source].readUnshared();
+		} catch (Exception e) {
+			throw new KettleException("Error reading buffered rows: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return number of bytes written to the cache files of all sources
+	 */
+	public long getBytesWritten() {
+		long bytes = 0;
+		for (int i = 0; i < counters.length; i++) {
+			bytes += getBytesWritten(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return number of rows of all sources read back from the cache
+	 */
+	public long getRowsRead() {
+		long rows = 0;
+		for (long r : read) {
+			rows += r;
+		}
+		return rows;
+	}
+
+	/**
+	 * @return number of rows of all sources parked off heap instead of on disk
+	 */
+	public long getRowsOffHeap() {
+		long rows = 0;
+		for (DirectRowBuffer buffer : buffers) {
+			if (buffer != null) {
+				rows += buffer.getCount();
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @param source position of the rowset the rows were read from
+	 * @return number of bytes written to the cache file of the source
+	 */
+	public long getBytesWritten(int source) {
+		return counters[source] == null ? 0 : counters[source].count;
+	}
+
+	/**
+	 * @param source position of the rowset the rows were read from
+	 * @return number of rows written to the cache for the source
+	 */
+	public long getRowsWritten(int source) {
+		return written[source];
+	}
+
+	/**
+	 * @param source position of the rowset the rows were read from
+	 * @return number of rows of the source read back from the cache
+	 */
+	public long getRowsRead(int source) {
+		return read[source];
+	}
+
+	/**
+	 * @return source of the row last returned by {@link #next()}
+	 */
+	public int getLastSource() {
+		return lastSource;
+	}
+
+	/**
+	 * Close and delete all cache files. Problems are logged rather than thrown since this is called during clean up.
+	 */
+	public void dispose() {
+		for (int i = 0; i < files.length; i++) {
+			close(outStreams[i]);
+			close(inStreams[i]);
+			delete(files[i]);
+		}
+		close(orderOut);
+		close(orderIn);
+		delete(orderFile);
+		for (DirectRowBuffer buffer : buffers) {
+			if (buffer != null) {
+				buffer.dispose();
+			}
+		}
+		if (orderBuffer != null) {
+			orderBuffer.dispose();
+		}
+		if (pool != null) {
+			pool.dispose();
+		}
+	}
+
+	private FileObject createTempFile() throws KettleException {
+		return KettleVFS.createTempFile("streamschema", ".tmp", System.getProperty("java.io.tmpdir"), space);
+	}
+
+	private void close(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.logBasic("Hit exception when cleaning up: " + e.getMessage());
+		}
+	}
+
+	private void delete(FileObject obj) {
+		if (obj == null) {
+			return;
+		}
+		try {
+			obj.delete();
+		} catch (IOException e) {
+			log.logBasic(String.format("Unable to delete file %s because %s", obj.getName(), e.getMessage()));
+		}
+	}
+
+	/**
+	 * Keeps track of the number of bytes that reach the cache file
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private volatile long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package com.graphiq.kettle.steps.streamschemamerge;
 
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
@@ -8,20 +11,42 @@ import org.pentaho.di.core.row.value.ValueMetaFactory;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import static org.pentaho.di.core.row.ValueMetaInterface.STORAGE_TYPE_NORMAL;
 import static org.pentaho.di.core.row.ValueMetaInterface.TYPE_STRING;
 
 
 
 /**
  * Takes in RowMetas and find the union of them. Then maps the field of each row to its final destination
+ *
+ * Storage types are kept where possible: a field that arrives as binary strings from lazy conversion in every stream
+ * stays binary in the output, so the conversion is still left to whoever needs the value. Fields whose storage differs
+ * between streams get normal storage, and only the streams that don't already have normal storage are converted.
  */
 public class SchemaMapper {
+    // what mapRow does with a value, per field of each stream
+    static final byte COPY = 0;
+    static final byte NORMALIZE = 1;  // convert binary string or indexed storage to normal storage
+    static final byte TO_STRING = 2;  // convert the value to a String
+
     RowMetaInterface row;  // resolved row meta
     int[][] mapping;
+    byte[][] ops;  // COPY or a combination of NORMALIZE and TO_STRING for each field of each stream
+    ValueMetaInterface[][] fields;  // value meta of each field of each stream, used to convert storage
     Set<Integer> convertToString = new HashSet<Integer>();
+    StringInterner[] interners;  // cache of converted strings for each output field, null if they aren't cached
+    int width;  // number of fields of the output row
+    RowMetaInterface[] info;  // row metas the mapping of each stream was built from
+    AtomicIntegerArray verified;  // 1 for streams whose rows are known to arrive with the row meta in info
 
     public SchemaMapper(RowMetaInterface info[]) throws KettlePluginException {
+        this.info = info.clone();
+        verified = new AtomicIntegerArray(info.length);
+        for (int i = 0; i < info.length; i++) {
+            verified.set(i, 1);
+        }
         unionMerge(info);
     }
 
@@ -60,7 +85,7 @@ public class SchemaMapper {
                     // check if we need to change the data type to string
                     ValueMetaInterface baseField = base.getValueMeta(basePosition);
                     if (baseField.getType() != field.getType()) {
-                        ValueMetaInterface updatedField = ValueMetaFactory.cloneValueMeta(baseField, TYPE_STRING);
+                        ValueMetaInterface updatedField = normalStorage(ValueMetaFactory.cloneValueMeta(baseField, TYPE_STRING));
                         base.setValueMeta(basePosition, updatedField);
                         convertToString.add(basePosition);  // we need to change the data type of these fields
                     }
@@ -69,6 +94,242 @@ public class SchemaMapper {
             mapping[i] = rowMapping;  // save the mapping for this rowMeta
         }
         row = base;  // set our master output row
+        width = base.size();
+
+        // fields that don't have the same storage in every stream get normal storage
+        for (int pos = 0; pos < width; pos++) {
+            ValueMetaInterface baseField = base.getValueMeta(pos);
+            if (baseField.getStorageType() == STORAGE_TYPE_NORMAL) {
+                continue;
+            }
+            boolean sameStorage = !convertToString.contains(pos);
+            for (int i = 0; i < info.length && sameStorage; i++) {
+                if (info[i] != null) {
+                    for (int x = 0; x < mapping[i].length; x++) {
+                        if (mapping[i][x] == pos && !sameStorage(info[i].getValueMeta(x), baseField)) {
+                            sameStorage = false;
+                        }
+                    }
+                }
+            }
+            if (!sameStorage) {
+                base.setValueMeta(pos, normalStorage(baseField));
+            }
+        }
+
+        ops = new byte[info.length][];
+        fields = new ValueMetaInterface[info.length][];
+        for (int i = 0; i < info.length; i++) {
+            if (info[i] != null) {
+                fields[i] = info[i].getValueMetaList().toArray(new ValueMetaInterface[0]);
+                ops[i] = new byte[fields[i].length];
+                for (int x = 0; x < fields[i].length; x++) {
+                    ops[i][x] = operation(fields[i][x], base.getValueMeta(mapping[i][x]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a new output row in the model of the master output row and copy the values of a row from one of the
+     * input streams into their new positions. This only reads the mapping, so it is safe to call from several threads
+     * at once. The output row is the only object allocated, apart from the values that get converted.
+     * @param streamNum number of the stream the row came from
+     * @param incomingRow row as it was received from the stream
+     * @return row in the layout of the master output row
+     * @throws KettleValueException if a binary string can't be converted
+     */
+    public Object[] mapRow(int streamNum, Object[] incomingRow) throws KettleValueException {
+        Object[] outputRow = RowDataUtil.allocateRowData(width);
+        int[] rowMapping = mapping[streamNum];
+        byte[] rowOps = ops[streamNum];
+        for (int j = 0; j < rowMapping.length; j++) {
+            Object value = incomingRow[j];
+            byte op = rowOps[j];
+            if (op != COPY && value != null) {
+                if ((op & NORMALIZE) != 0) {
+                    value = fields[streamNum][j].convertToNormalStorageType(value);
+                }
+                if ((op & TO_STRING) != 0 && value != null) {
+                    // we need to convert the underlying data type to string
+                    StringInterner interner = interners == null ? null : interners[rowMapping[j]];
+                    value = interner == null ? value.toString() : interner.toString(value);
+                }
+            }
+            // map a fields old position to its new position
+            outputRow[rowMapping[j]] = value;
+        }
+        return outputRow;
+    }
+
+    /**
+     * Share the strings values are converted to between rows, so fields with few distinct values don't produce a new
+     * string for every row. Each field converted to String gets its own cache, which turns itself off when the field
+     * has too many distinct values.
+     * @param maxEntries maximum number of distinct values cached per field
+     */
+    public void internConvertedStrings(int maxEntries) {
+        StringInterner[] fieldInterners = new StringInterner[width];
+        for (int pos : convertToString) {
+            fieldInterners[pos] = new StringInterner(maxEntries);
+        }
+        interners = fieldInterners;
+    }
+
+    /**
+     * Decide how values of a field are converted on their way to the output row
+     * @param field field of an incoming stream
+     * @param target field of the output row
+     * @return the operation or -1 if the value can't be converted
+     */
+    private static byte operation(ValueMetaInterface field, ValueMetaInterface target) {
+        byte op = COPY;
+        if (!sameStorage(field, target)) {
+            if (target.getStorageType() != STORAGE_TYPE_NORMAL) {
+                return -1;
+            }
+            op |= NORMALIZE;
+        }
+        if (field.getType() != target.getType()) {
+            if (target.getType() != TYPE_STRING) {
+                return -1;
+            }
+            op |= TO_STRING;
+        }
+        return op;
+    }
+
+    /**
+     * Check whether the values of two fields can be copied without looking at their storage. Binary strings also
+     * need to be read the same way, since they're only converted when someone needs the value.
+     */
+    private static boolean sameStorage(ValueMetaInterface field, ValueMetaInterface target) {
+        if (field.getStorageType() != target.getStorageType()) {
+            return false;
+        }
+        if (!field.isStorageBinaryString()) {
+            // indexed storage refers to the index of the stream, so only normal storage can be copied
+            return field.isStorageNormal();
+        }
+        ValueMetaInterface fieldStorage = field.getStorageMetadata();
+        ValueMetaInterface targetStorage = target.getStorageMetadata();
+        return field.getType() == target.getType()
+                && equal(fieldStorage == null ? null : fieldStorage.getStringEncoding(),
+                        targetStorage == null ? null : targetStorage.getStringEncoding())
+                && equal(field.getConversionMask(), target.getConversionMask())
+                && field.getTrimType() == target.getTrimType();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return a copy of the field with normal storage, or the field itself if it already has normal storage
+     */
+    private static ValueMetaInterface normalStorage(ValueMetaInterface field) throws KettlePluginException {
+        if (field.getStorageType() == STORAGE_TYPE_NORMAL) {
+            return field;
+        }
+        ValueMetaInterface normal = ValueMetaFactory.cloneValueMeta(field);
+        normal.setStorageType(STORAGE_TYPE_NORMAL);
+        normal.setStorageMetadata(null);
+        return normal;
+    }
+
+    /**
+     * Mark every stream as unverified. Used when the mapping was built from the row metas the transformation expects
+     * rather than the ones the rows arrived with, so the row meta of each stream gets checked on its first row.
+     */
+    public void requireVerification() {
+        for (int i = 0; i < info.length; i++) {
+            verified.set(i, 0);
+        }
+    }
+
+    /**
+     * @param streamNum number of the stream
+     * @return true if the rows of the stream are known to match the mapping
+     */
+    public boolean isVerified(int streamNum) {
+        return verified.get(streamNum) != 0;
+    }
+
+    /**
+     * Check the row meta the rows of a stream arrive with against the one its mapping was built from. If they differ
+     * the stream is mapped again by field name. The output row itself stays the same, since rows may have been passed
+     * on already.
+     * @param streamNum number of the stream
+     * @param actual row meta of the rows of the stream
+     * @return true if the row meta matched, false if the stream had to be mapped again
+     * @throws KettleException if a field of the stream doesn't fit in the output row
+     */
+    public synchronized boolean verifyStream(int streamNum, RowMetaInterface actual) throws KettleException {
+        if (verified.get(streamNum) != 0) {
+            return true;
+        }
+        boolean matches = sameLayout(info[streamNum], actual);
+        if (!matches) {
+            int[] rowMapping = new int[actual.size()];
+            ValueMetaInterface[] rowFields = actual.getValueMetaList().toArray(new ValueMetaInterface[0]);
+            byte[] rowOps = new byte[rowFields.length];
+            for (int x = 0; x < rowMapping.length; x++) {
+                ValueMetaInterface field = rowFields[x];
+                int basePosition = row.indexOfValue(field.getName());
+                if (basePosition < 0) {
+                    throw new KettleException(String.format("Field %s isn't one of the fields known at design time",
+                            field.getName()));
+                }
+                ValueMetaInterface baseField = row.getValueMeta(basePosition);
+                rowOps[x] = operation(field, baseField);
+                if (rowOps[x] < 0) {
+                    throw new KettleException(String.format("Field %s is %s with %s storage instead of %s with %s storage",
+                            field.getName(), field.getTypeDesc(), field.getStorageTypeDesc(), baseField.getTypeDesc(),
+                            baseField.getStorageTypeDesc()));
+                }
+                rowMapping[x] = basePosition;
+            }
+            // only this stream's entries change, other threads may be mapping rows of other streams
+            fields[streamNum] = rowFields;
+            ops[streamNum] = rowOps;
+            mapping[streamNum] = rowMapping;
+            info[streamNum] = actual;
+        }
+        verified.set(streamNum, 1);
+        return matches;
+    }
+
+    private static boolean sameLayout(RowMetaInterface expected, RowMetaInterface actual) {
+        if (expected == null || expected.size() != actual.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            ValueMetaInterface expectedField = expected.getValueMeta(i);
+            ValueMetaInterface actualField = actual.getValueMeta(i);
+            if (!expectedField.getName().equals(actualField.getName()) || expectedField.getType() != actualField.getType()
+                    || expectedField.getStorageType() != actualField.getStorageType()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count the fields of each stream that are converted, to strings or to normal storage, when a row is mapped
+     * @return number of converted fields per stream, 0 for streams that don't send rows
+     */
+    public int[] getConversionsPerRow() {
+        int[] conversions = new int[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] != null) {
+                for (byte op : ops[i]) {
+                    if (op != COPY) {
+                        conversions[i]++;
+                    }
+                }
+            }
+        }
+        return conversions;
     }
 
     /**
@@ -0,0 +1,144 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Row metas of the infostreams, shared between the copies of a step. Each copy only sees the rowsets sending rows to
+ * it, so a copy that never gets a row of some stream would otherwise build a different output layout than the other
+ * copies, and the next step would read the values of its rows from the wrong positions. The copies publish the row
+ * metas they find here, and a copy only gives up on a stream once every copy has seen the stream finish without
+ * sending rows. As long as it waits, a copy keeps caching rows like it does while waiting for its own streams, so the
+ * steps sending rows don't block.
+ *
+ * The first row meta published for a stream is the one every copy uses, which makes the layouts identical.
+ */
+public class SharedLayout {
+
+	// layouts of the running steps, by transformation and step name
+	private static final Map<Trans, Map<String, SharedLayout>> LAYOUTS = new WeakHashMap<Trans, Map<String, SharedLayout>>();
+
+	private final Trans trans;
+	private final String stepName;
+	private final int numCopies;
+	private final RowMetaInterface[] rowMetas;
+	private final BitSet[] doneCopies;  // copies that saw each stream finish without rows
+	private int users;  // copies that haven't released the layout yet
+
+	private SharedLayout(Trans trans, String stepName, int numCopies, int numStreams) {
+		this.trans = trans;
+		this.stepName = stepName;
+		this.numCopies = numCopies;
+		rowMetas = new RowMetaInterface[numStreams];
+		doneCopies = new BitSet[numStreams];
+		for (int i = 0; i < numStreams; i++) {
+			doneCopies[i] = new BitSet(numCopies);
+		}
+	}
+
+	/**
+	 * Get the layout shared by the copies of a step, every copy calls this once and releases it when it's done
+	 *
+	 * @param trans			transformation running the step
+	 * @param stepName		name of the step
+	 * @param numCopies		number of copies of the step
+	 * @param numStreams	number of infostreams
+	 * @return the shared layout
+	 */
+	public static SharedLayout forStep(Trans trans, String stepName, int numCopies, int numStreams) {
+		synchronized (LAYOUTS) {
+			Map<String, SharedLayout> layouts = LAYOUTS.get(trans);
+			if (layouts == null) {
+				layouts = new HashMap<String, SharedLayout>();
+				LAYOUTS.put(trans, layouts);
+			}
+			SharedLayout layout = layouts.get(stepName);
+			if (layout == null) {
+				layout = new SharedLayout(trans, stepName, numCopies, numStreams);
+				layouts.put(stepName, layout);
+			}
+			layout.users++;
+			return layout;
+		}
+	}
+
+	/**
+	 * Stop using the layout, the last copy to release it removes it
+	 */
+	public void release() {
+		synchronized (LAYOUTS) {
+			if (--users > 0) {
+				return;
+			}
+			Map<String, SharedLayout> layouts = LAYOUTS.get(trans);
+			if (layouts != null && layouts.get(stepName) == this) {
+				layouts.remove(stepName);
+				if (layouts.isEmpty()) {
+					LAYOUTS.remove(trans);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publish the row meta a copy found for a stream
+	 *
+	 * @param stream	infostream number
+	 * @param rowMeta	row meta of the rows of the stream
+	 * @return the row meta every copy uses for the stream, which is the one published first
+	 */
+	public synchronized RowMetaInterface publish(int stream, RowMetaInterface rowMeta) {
+		if (rowMetas[stream] == null) {
+			rowMetas[stream] = rowMeta;
+		}
+		return rowMetas[stream];
+	}
+
+	/**
+	 * @param stream infostream number
+	 * @return the row meta published for the stream, null if no copy has found it yet
+	 */
+	public synchronized RowMetaInterface getRowMeta(int stream) {
+		return rowMetas[stream];
+	}
+
+	/**
+	 * Record that a copy saw a stream finish without sending it rows
+	 *
+	 * @param stream	infostream number
+	 * @param copy		copy of the step
+	 * @return true if every copy saw the stream finish, so no copy will find its row meta
+	 */
+	public synchronized boolean streamDone(int stream, int copy) {
+		doneCopies[stream].set(copy);
+		return rowMetas[stream] == null && doneCopies[stream].cardinality() >= numCopies;
+	}
+}
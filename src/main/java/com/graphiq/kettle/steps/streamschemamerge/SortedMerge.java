@@ -0,0 +1,152 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Binary heap holding the head row of every sorted source, used for a k-way merge. Each source has at most one row
+ * in the heap. After taking the smallest row with {@link #poll()}, the caller adds the next row of the same source
+ * (see {@link #getLastSource()}) if there is one.
+ *
+ * Rows are compared on key fields of the merged row meta. Rows with equal keys come out in source order, so the
+ * merge is stable.
+ */
+public class SortedMerge {
+
+	private final RowMetaInterface rowMeta;  // meta of the merged rows
+	private final int[] keys;  // positions of the key fields in the merged rows
+	private final boolean[] ascending;
+
+	private final int[] heap;  // sources ordered as a binary heap on their head rows
+	private final Object[][] rows;  // head row of each source
+	private int size;
+	private int lastSource = -1;
+
+	/**
+	 * @param rowMeta		row meta of the merged rows
+	 * @param keys			positions of the key fields in the merged rows
+	 * @param ascending		sort direction for each key field
+	 * @param numSources	number of sources being merged
+	 */
+	public SortedMerge(RowMetaInterface rowMeta, int[] keys, boolean[] ascending, int numSources) {
+		this.rowMeta = rowMeta;
+		this.keys = keys;
+		this.ascending = ascending;
+		heap = new int[numSources];
+		rows = new Object[numSources][];
+	}
+
+	/**
+	 * Add the next row of a source. The source must not have a row in the heap already.
+	 * @param source source the row came from
+	 * @param row merged row
+	 * @throws KettleValueException if the key values can't be compared
+	 */
+	public void add(int source, Object[] row) throws KettleValueException {
+		rows[source] = row;
+		heap[size] = source;
+		siftUp(size++);
+	}
+
+	/**
+	 * @return true if none of the sources has a row left in the heap
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Remove the smallest row from the heap
+	 * @return the smallest row or null if the heap is empty
+	 * @throws KettleValueException if the key values can't be compared
+	 */
+	public Object[] poll() throws KettleValueException {
+		if (size == 0) {
+			return null;
+		}
+		lastSource = heap[0];
+		Object[] row = rows[lastSource];
+		rows[lastSource] = null;
+		heap[0] = heap[--size];
+		if (size > 0) {
+			siftDown(0);
+		}
+		return row;
+	}
+
+	/**
+	 * @return source of the row last returned by {@link #poll()}
+	 */
+	public int getLastSource() {
+		return lastSource;
+	}
+
+	private void siftUp(int pos) throws KettleValueException {
+		int source = heap[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (compare(heap[parent], source) <= 0) {
+				break;
+			}
+			heap[pos] = heap[parent];
+			pos = parent;
+		}
+		heap[pos] = source;
+	}
+
+	private void siftDown(int pos) throws KettleValueException {
+		int source = heap[pos];
+		int half = size >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			int right = child + 1;
+			if (right < size && compare(heap[right], heap[child]) < 0) {
+				child = right;
+			}
+			if (compare(source, heap[child]) <= 0) {
+				break;
+			}
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		heap[pos] = source;
+	}
+
+	/**
+	 * Compare the head rows of two sources on the key fields, using the source number to break ties
+	 */
+	private int compare(int a, int b) throws KettleValueException {
+		Object[] rowA = rows[a];
+		Object[] rowB = rows[b];
+		for (int i = 0; i < keys.length; i++) {
+			int key = keys[i];
+			int cmp = rowMeta.getValueMeta(key).compare(rowA[key], rowB[key]);
+			if (cmp != 0) {
+				return ascending[i] ? cmp : -cmp;
+			}
+		}
+		return a - b;
+	}
+}
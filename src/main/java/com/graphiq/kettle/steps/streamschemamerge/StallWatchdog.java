@@ -0,0 +1,224 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepInterface;
+
+import java.util.List;
+
+/**
+ * Watches the step while it waits for row metas and while it replays cached rows. If no progress is made for the stall
+ * timeout, it logs what every infostream is doing: whether its row meta was found, the state of the step sending it,
+ * how full its rowsets are and how much was cached for it. A branch behind a filter that never sends rows and never
+ * finishes shows up here instead of as a step that silently hangs.
+ *
+ * When the step should abort on a stall, the watchdog fails the step and stops the transformation itself: the step
+ * thread may be waiting on a rowset that never sends anything, and would never get to check for a stall. It also
+ * leaves a message in the step data that the step thread turns into an error once it notices it was stopped.
+ *
+ * For lock-free input buffers the dump tells a stalled stream, which hasn't sent a row for the stall timeout, from a
+ * slow one, which still sends rows now and then.
+ */
+public class StallWatchdog implements Runnable {
+
+	private final StreamSchemaStep step;
+	private final StreamSchemaStepData data;
+	private final long timeoutMillis;
+	private final boolean abort;
+	private final Thread thread;
+	private volatile boolean stopped;
+
+	/**
+	 * @param step			step to watch
+	 * @param data			data of the step
+	 * @param timeoutMillis	time without progress after which the step counts as stalled
+	 * @param abort			true to make the step fail when it stalls
+	 */
+	public StallWatchdog(StreamSchemaStep step, StreamSchemaStepData data, long timeoutMillis, boolean abort) {
+		this.step = step;
+		this.data = data;
+		this.timeoutMillis = timeoutMillis;
+		this.abort = abort;
+		thread = new Thread(this, step.getStepname() + " stall watchdog");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Start watching the step
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stop watching the step
+	 */
+	public void stop() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	public void run() {
+		long checkMillis = Math.max(100, Math.min(5000, timeoutMillis / 4));
+		long lastProgress = progress();
+		long lastChange = System.currentTimeMillis();
+		boolean reported = false;
+		while (!stopped && !step.isStopped()) {
+			try {
+				Thread.sleep(checkMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			StreamSchemaStepData.Phase phase = data.phase;
+			if (phase == StreamSchemaStepData.Phase.MERGING || phase == StreamSchemaStepData.Phase.DONE) {
+				return;  // nothing left to watch
+			}
+			long now = System.currentTimeMillis();
+			long progress = progress();
+			if (progress != lastProgress) {
+				lastProgress = progress;
+				lastChange = now;
+				reported = false;
+			} else if (!reported && now - lastChange >= timeoutMillis) {
+				reported = true;
+				String message = String.format("No progress in phase %s for %d ms", phase, now - lastChange);
+				step.logError(message + Const.CR + describe());
+				if (abort) {
+					data.stallMessage = message;
+					step.setErrors(1);
+					step.stopAll();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Combine the counters that change while the step makes progress. The phase is included so moving on to the next
+	 * phase counts as progress.
+	 */
+	private long progress() {
+		MergeMetrics metrics = data.metrics;
+		long progress = data.phase.ordinal();
+		for (int i = 0; i < metrics.getNumStreams(); i++) {
+			progress = 31 * progress + metrics.getRowsReceived(i) + metrics.getRowsSpilled(i) + metrics.getRowsReplayed(i);
+		}
+		RowMetaInterface[] rowMetas = data.rowMetas;
+		if (rowMetas != null) {
+			for (int i = 0; i < rowMetas.length; i++) {
+				if (rowMetas[i] != null) {
+					progress = 31 * progress + i + 1;
+				}
+			}
+		}
+		return progress;
+	}
+
+	/**
+	 * Describe the state of every infostream
+	 * @return multi line description
+	 */
+	String describe() {
+		StringBuilder dump = new StringBuilder();
+		MergeMetrics metrics = data.metrics;
+		List<RowSet> rowSets = data.rowSets;
+		int[] rowSetStreams = data.rowSetStreams;
+		RowSetCache cache = data.cache;
+		Trans trans = step.getTrans();
+		for (int i = 0; i < metrics.getNumStreams(); i++) {
+			String name = metrics.getStreamName(i);
+			RowMetaInterface[] rowMetas = data.rowMetas;
+			boolean found = rowMetas != null && rowMetas[i] != null;
+			dump.append(String.format("Stream %s: row meta %s, %d rows received, %d rows spilled",
+					name, found ? "found" : "missing", metrics.getRowsReceived(i), metrics.getRowsSpilled(i)));
+			if (trans != null) {
+				List<StepInterface> upstream = trans.findStepInterfaces(name);
+				if (upstream != null) {
+					for (StepInterface copy : upstream) {
+						BaseStepData.StepExecutionStatus status = copy.getStatus();
+						dump.append(Const.CR).append(String.format("  step %s.%d: %s, %d rows written", name,
+								copy.getCopy(), status == null ? "unknown" : status.getDescription(),
+								copy.getLinesWritten()));
+					}
+				}
+			}
+			if (rowSets == null || rowSetStreams == null) {
+				dump.append(Const.CR).append("  rowsets not collected yet");
+			} else {
+				for (int source = 0; source < rowSets.size() && source < rowSetStreams.length; source++) {
+					if (rowSetStreams[source] != i) {
+						continue;
+					}
+					RowSet rowSet = rowSets.get(source);
+					int capacity = capacity(rowSet);
+					int size = rowSet.size();
+					dump.append(Const.CR).append(String.format("  rowset %s: %d rows waiting of %d (%d%% full), %s",
+							rowSet.getName(), size, capacity, fillPercentage(rowSet, size, capacity), state(rowSet)));
+					if (cache != null) {
+						dump.append(String.format(", %d bytes cached", cache.getBytesWritten(source)));
+					}
+				}
+			}
+			dump.append(Const.CR);
+		}
+		dump.append(String.format("Buffered rows still to replay: %d", data.numBufferedRows));
+		return dump.toString();
+	}
+
+	private int capacity(RowSet rowSet) {
+		if (rowSet instanceof RingBufferRowSet) {
+			return ((RingBufferRowSet) rowSet).getCapacity();
+		}
+		return step.getTransMeta().getSizeRowset();
+	}
+
+	private int fillPercentage(RowSet rowSet, int size, int capacity) {
+		if (rowSet instanceof RingBufferRowSet) {
+			return (int) Math.round(((RingBufferRowSet) rowSet).getFillLevel() * 100);
+		}
+		return capacity <= 0 ? 0 : (int) Math.round(100.0 * size / capacity);
+	}
+
+	/**
+	 * Describe whether a rowset still gets rows. Only ring buffers keep track of when the last row arrived.
+	 */
+	private String state(RowSet rowSet) {
+		if (rowSet.isDone()) {
+			return "done";
+		}
+		if (!(rowSet instanceof RingBufferRowSet)) {
+			return "not done";
+		}
+		RingBufferRowSet ring = (RingBufferRowSet) rowSet;
+		long idle = System.currentTimeMillis() - ring.getLastPutMillis();
+		if (ring.isStalled(timeoutMillis)) {
+			return String.format("stalled, no row for %d ms", idle);
+		}
+		return String.format("not done, last row %d ms ago", idle);
+	}
+}
@@ -0,0 +1,71 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.exception.KettleValueException;
+
+/**
+ * The per row work of the merge: find the infostream of the rowset a row came from and copy the row into the merged
+ * layout. Kept apart from the step so it can be measured without a running transformation. Nothing but the output row
+ * is allocated per row.
+ */
+public class StreamRowMapper {
+
+	private final int[] rowSetStreams;  // infostream number for each rowset
+	private SchemaMapper schemaMapping;
+
+	/**
+	 * @param rowSetStreams infostream number for each of the rowsets sending rows to the step
+	 */
+	public StreamRowMapper(int[] rowSetStreams) {
+		this.rowSetStreams = rowSetStreams;
+	}
+
+	/**
+	 * Set the mapping once the row meta of every infostream is known
+	 * @param schemaMapping mapping of each infostream to the merged layout
+	 */
+	public void setSchemaMapping(SchemaMapper schemaMapping) {
+		this.schemaMapping = schemaMapping;
+	}
+
+	/**
+	 * @param source position of a rowset
+	 * @return infostream number of the rowset
+	 */
+	public int getStreamNum(int source) {
+		return rowSetStreams[source];
+	}
+
+	/**
+	 * Copy a row into the merged layout. Every copy of an info step shares the same mapping, so the mapping is looked
+	 * up by the infostream of the rowset.
+	 * @param source position of the rowset the row came from
+	 * @param row row as it was received
+	 * @return row in the merged layout
+	 * @throws KettleValueException if a lazily converted value can't be converted
+	 */
+	public Object[] mapRow(int source, Object[] row) throws KettleValueException {
+		return schemaMapping.mapRow(rowSetStreams[source], row);
+	}
+}
@@ -22,31 +22,26 @@
 
 package com.graphiq.kettle.steps.streamschemamerge;
 
-import org.apache.commons.vfs2.FileObject;
-import org.apache.commons.vfs2.FileSystemException;
+import org.pentaho.di.core.BlockingRowSet;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.row.RowMetaInterface;
-import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransAdapter;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.RowListener;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
-import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Merge streams from multiple different steps into a single stream. Unlike most other steps, this step does NOT
@@ -64,6 +59,8 @@ import java.util.List;
 
 public class StreamSchemaStep extends BaseStep implements StepInterface {
 
+	private volatile List<RowListener> rowListeners;  // BaseStep wraps its listeners in a new view on every call
+
 	/**
 	 * The constructor should simply pass on its arguments to the parent class.
 	 *
@@ -95,49 +92,306 @@ public class StreamSchemaStep extends BaseStep implements StepInterface {
 		data.infoStreams = meta.getStepIOMeta().getInfoStreams();
 		data.numSteps = data.infoStreams.size();
 		data.rowMetas = new RowMetaInterface[data.numSteps];
-		data.rowSets = new ArrayList<RowSet>();
-		data.stepNames = new ArrayList<String>(data.numSteps);
-
-		data.files = new LinkedList<FileObject>();
-		data.outStreams = new ArrayList<ObjectOutputStream>(data.infoStreams.size());
-		data.inStreams = new ArrayList<ObjectInputStream>(data.infoStreams.size());
-		try {
-			data.inputRowSetFileObj = KettleVFS.createTempFile("streamschema", ".tmp", System.getProperty("java.io.tmpdir"), getTransMeta());
-			data.inputRowSetNumbersOut = new BufferedOutputStream(KettleVFS.getOutputStream(data.inputRowSetFileObj, false), data.BUFFER_SIZE);
-
-			data.inputRowSetNamesFileObj = KettleVFS.createTempFile("streamschema", ".tmp", System.getProperty("java.io.tmpdir"), getTransMeta());
-			data.inputRowSetNamesOut = new ObjectOutputStream(new BufferedOutputStream(KettleVFS.getOutputStream(data.inputRowSetNamesFileObj, false), data.BUFFER_SIZE));
-			data.closedCacheFiles = false;
-		} catch (Exception e) {
-			logError("Unable to create file object");
+		data.numBufferedRows = 0;
+		data.mappingThreads = Math.max(1, Const.toInt(environmentSubstitute(meta.getMappingThreads()), 1));
+		data.preserveStreamOrder = meta.isPreserveStreamOrder();
+		data.mergeMode = meta.getMergeMode();
+		data.schedulingPolicy = meta.getSchedulingPolicy();
+		data.stepWeights = meta.getStepWeights();
+		String[] streamNames = new String[data.numSteps];
+		for (int i = 0; i < data.numSteps; i++) {
+			streamNames[i] = Const.NVL(data.infoStreams.get(i).getStepname(), "stream " + i);
+		}
+		data.metrics = new MergeMetrics(streamNames);
+		if (meta.isDesignTimeLayout()) {
+			RowMetaInterface[] rowMetas = getDesignTimeRowMetas(data);
+			if (rowMetas != null) {
+				// with every row meta known the discovery in processRow has nothing to wait for
+				data.rowMetas = rowMetas;
+				data.designTimeLayout = true;
+			}
+		}
+		data.spillDelayNanos = Math.max(0, Const.toLong(environmentSubstitute(meta.getSpillDelay()), 10)) * 1000000L;
+		data.rowSetTimeoutMillis = Math.max(0, Const.toLong(environmentSubstitute(meta.getRowSetTimeout()), 10000));
+		data.rowSetRetryMillis = Math.max(1, Const.toLong(environmentSubstitute(meta.getRowSetRetryInterval()), 1000));
+		data.bufferSize = Math.max(1, Const.toInt(environmentSubstitute(meta.getCacheBufferSize()), 8192)) * 1024;
+		data.offHeapCacheBytes = Math.max(0, Const.toLong(environmentSubstitute(meta.getOffHeapCacheSize()), 0)) * 1024 * 1024;
+		int sampleInterval = Const.toInt(environmentSubstitute(meta.getLatencySampleInterval()), 0);
+		if (sampleInterval > 0) {
+			data.mappingLatency = new LatencyHistogram("Mapping", sampleInterval);
+			data.putRowLatency = new LatencyHistogram("Passing rows on", sampleInterval);
+			data.spillWriteLatency = new LatencyHistogram("Cache write", sampleInterval);
+			data.replayReadLatency = new LatencyHistogram("Cache read", sampleInterval);
+		}
+		if (data.mergeMode == StreamSchemaStepMeta.MergeMode.SORTED && data.mappingThreads > 1) {
+			logBasic("Mapping threads are not used for a sorted merge, mapping rows on the step thread");
+			data.mappingThreads = 1;
+		}
+		if (data.mergeMode == StreamSchemaStepMeta.MergeMode.TIME_ORDERED && data.mappingThreads > 1) {
+			logBasic("Mapping threads are not used for a time ordered merge, mapping rows on the step thread");
+			data.mappingThreads = 1;
+		}
+		if (data.schedulingPolicy != StreamSchemaStepMeta.SchedulingPolicy.ROUND_ROBIN && data.mappingThreads > 1) {
+			logBasic("The scheduling policy is only used while reading rows on the step thread, mapping threads read round robin");
+		}
+		if (meta.isRingBufferInput()) {
+			// the steps are initialized side by side, so wait until they're all done before touching their rowsets
+			getTrans().addTransListener(new TransAdapter() {
+				@Override
+				public void transStarted(Trans trans) {
+					installRingBuffers();
+				}
+			});
+		}
+
+		if (!super.init(meta, data)) {
 			return false;
 		}
+		data.phase = StreamSchemaStepData.Phase.INITIALIZING;
+		data.monitorName = StreamSchemaStepMonitor.register(this, data, getLogChannel());
+		return true;
+	}
 
-		data.numBufferedRows = 0;
-		data.cacheRowMetaMap = new HashMap<Integer, RowMetaInterface>();
-		data.cacheRowSetNameMap = new HashMap<Integer, String>();
-		for (int i = 0; i < data.infoStreams.size(); i++) {
+	/**
+	 * Look up the fields the transformation expects from each infostream. A step reporting no fields at all, like an
+	 * Injector without field definitions, is taken as unknown rather than as a stream without fields.
+	 *
+	 * @param data step data holding the infostreams
+	 * @return the row meta of every infostream or null if one of them can't be determined
+	 */
+	private RowMetaInterface[] getDesignTimeRowMetas(StreamSchemaStepData data) {
+		RowMetaInterface[] rowMetas = new RowMetaInterface[data.numSteps];
+		for (int i = 0; i < data.numSteps; i++) {
+			StepMeta infoStep = data.infoStreams.get(i).getStepMeta();
 			try {
-				FileObject fileObject = KettleVFS.createTempFile("streamschema", ".tmp", System.getProperty("java.io.tmpdir"), getTransMeta());
-				data.files.add(fileObject);
-				ObjectOutputStream outputStream = new ObjectOutputStream(new BufferedOutputStream(KettleVFS.getOutputStream(fileObject, false), data.BUFFER_SIZE));
-				data.outStreams.add(outputStream);
-			} catch (Exception e) {
-				logError("Unable to create file object");
-				return false;
+				rowMetas[i] = infoStep == null ? null : getTransMeta().getStepFields(infoStep);
+			} catch (KettleStepException e) {
+				logBasic(String.format("Unable to get the fields of %s: %s", infoStep.getName(), e.getMessage()));
+			}
+			if (rowMetas[i] == null || rowMetas[i].isEmpty()) {
+				logBasic(String.format("The fields of %s aren't known, waiting for the first row of every stream instead",
+						data.metrics.getStreamName(i)));
+				return null;
 			}
 		}
+		return rowMetas;
+	}
 
-		return super.init(meta, data);
+	/**
+	 * Replace the blocking rowsets that bring rows to this step copy with lock-free ring buffers. Called when the
+	 * transformation starts: every step has been initialized by then, and the transformation notifies its listeners
+	 * before it starts the step threads, so no other thread is using the lists of rowsets. The producing step, this
+	 * step and the transformation each keep a list of rowsets and all three need to point to the new rowset.
+	 */
+	private void installRingBuffers() {
+		int size = getTransMeta().getSizeRowset();
+		List<RowSet> inputRowSets = getInputRowSets();
+		List<RowSet> transRowSets = getTrans().getRowsets();
+		int replaced = 0;
+		for (int i = 0; i < inputRowSets.size(); i++) {
+			RowSet old = inputRowSets.get(i);
+			if (!(old instanceof BlockingRowSet)) {
+				continue;  // leave remote and single threaded rowsets alone
+			}
+			StepInterface producer = getTrans().getStepInterface(old.getOriginStepName(), old.getOriginStepCopy());
+			if (producer == null) {
+				logBasic(String.format("Unable to find step %s, keeping rowset %s", old.getOriginStepName(), old.getName()));
+				continue;
+			}
+			RingBufferRowSet ring = new RingBufferRowSet(size);
+			ring.setThreadNameFromToCopy(old.getOriginStepName(), old.getOriginStepCopy(),
+					old.getDestinationStepName(), old.getDestinationStepCopy());
+			replaceRowSet(producer.getOutputRowSets(), old, ring);
+			inputRowSets.set(i, ring);
+			if (transRowSets != null) {
+				synchronized (transRowSets) {
+					replaceRowSet(transRowSets, old, ring);
+				}
+			}
+			replaced++;
+		}
+		if (isDetailed()) {
+			logDetailed(String.format("Replaced %d rowsets with ring buffers", replaced));
+		}
 	}
 
-	private static int findInfoStreamPosition(List<StreamInterface> infoStreams, String stepName) {
-		for (int i = 0; i < infoStreams.size(); i++) {
-			if (infoStreams.get(i).getStepname().equals(stepName)) {
-				return i;
+	/**
+	 * Replace a rowset in a list, looking it up by identity since rowsets don't implement equals
+	 *
+	 * @param rowSets list holding the rowset
+	 * @param old rowset to replace
+	 * @param replacement rowset to put in its place
+	 */
+	private static void replaceRowSet(List<RowSet> rowSets, RowSet old, RowSet replacement) {
+		for (int i = 0; i < rowSets.size(); i++) {
+			if (rowSets.get(i) == old) {
+				rowSets.set(i, replacement);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Find the rowsets that deliver rows from an info step to this copy of the step. A step running in multiple
+	 * copies sends its rows over multiple rowsets, so we match on the origin step name and collect all of them.
+	 *
+	 * @param stepName name of the info step
+	 * @return rowsets sending rows from stepName to this step copy, empty if none were found
+	 */
+	private List<RowSet> findInfoRowSets(String stepName) {
+		List<RowSet> found = new ArrayList<RowSet>();
+		for (RowSet rowSet : getInputRowSets()) {
+			if (stepName.equals(rowSet.getOriginStepName()) && rowSet.getDestinationStepCopy() == getCopy()) {
+				found.add(rowSet);
 			}
 		}
-		return -1;
+		return found;
+	}
+
+	/**
+	 * Set up the list of rowsets we read from. This is a snapshot of the input rowsets taken before any rows are read,
+	 * because BaseStep removes rowsets from its own list once they're exhausted.
+	 *
+	 * @param data step data to store the rowsets in
+	 * @throws KettleException if the watchdog decided the step stalled
+	 */
+	private void collectRowSets(StreamSchemaStepData data) throws KettleException {
+		List<RowSet> rowSets = new ArrayList<RowSet>();
+		List<Integer> streams = new ArrayList<Integer>();
+		for (int i = 0; i < data.numSteps; i++) {
+			String stepName = data.infoStreams.get(i).getStepname();
+			List<RowSet> found = findInfoRowSets(stepName);
+			long deadline = System.currentTimeMillis() + data.rowSetTimeoutMillis;
+			long remaining = data.rowSetTimeoutMillis;
+			while (found.isEmpty() && remaining > 0 && !isStopped()) {
+				checkStall(data);
+				long wait = Math.min(data.rowSetRetryMillis, remaining);
+				JfrEvents.rowSetRetry(stepName, (int) ((remaining - wait) / data.rowSetRetryMillis));
+				logBasic(String.format("Retrying infostream %d, giving up in %d ms", i, remaining));
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					// keep going
+				}
+				found = findInfoRowSets(stepName);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			if (found.isEmpty()) {
+				logBasic(String.format("Missing a rowset for %s, continuing", stepName));
+			}
+			for (RowSet rowSet : found) {
+				rowSets.add(rowSet);
+				streams.add(i);
+			}
+		}
+
+		data.rowSetStreams = new int[rowSets.size()];
+		for (int i = 0; i < rowSets.size(); i++) {
+			data.rowSetStreams[i] = streams.get(i);
+		}
+		data.rowMapper = new StreamRowMapper(data.rowSetStreams);
+		data.rowSets = rowSets;  // set last, the watchdog reads these from another thread
+	}
+
+	/**
+	 * Emit a flight recorder event for the rows cached since the last batch
+	 *
+	 * @param data step data
+	 * @param streamNum infostream the step is waiting for
+	 */
+	private void spillBatchDone(StreamSchemaStepData data, int streamNum) {
+		long bytes = data.cache.getBytesWritten();
+		JfrEvents.spillBatch(data.metrics.getStreamName(streamNum), data.spillBatchRows, bytes - data.spillBatchBytes);
+		data.spillBatchRows = 0;
+		data.spillBatchBytes = bytes;
+	}
+
+	/**
+	 * Fail the step if the watchdog found it stalled and the step is set to abort on a stall
+	 *
+	 * @param data step data holding the watchdog message
+	 * @throws KettleException if the step stalled
+	 */
+	private void checkStall(StreamSchemaStepData data) throws KettleException {
+		if (data.stallMessage != null) {
+			throw new KettleException(String.format("%s, aborting. Check the log for the state of each stream. A "
+					+ "stream that never sends rows or finishes, for example behind a filter, keeps the step waiting",
+					data.stallMessage));
+		}
+	}
+
+	/**
+	 * Set up the scheduler choosing which rowset to read from. The weight of an infostream is split over its rowsets
+	 * so a step running in multiple copies doesn't get a bigger share than configured. Round robin goes through the
+	 * scheduler as well, switching rowsets after every row like BaseStep.getRow: BaseStep.getRow would leave us to look
+	 * up the rowset of every row, and BaseStep copies its list of rowsets for each lookup.
+	 *
+	 * @param data step data holding the rowsets
+	 * @return the scheduler
+	 */
+	private InputScheduler createScheduler(StreamSchemaStepData data) {
+		int[] rowSetsPerStream = new int[data.numSteps];
+		for (int stream : data.rowSetStreams) {
+			rowSetsPerStream[stream]++;
+		}
+		double[] weights = new double[data.rowSets.size()];
+		for (int i = 0; i < weights.length; i++) {
+			int stream = data.rowSetStreams[i];
+			int weight = stream < data.stepWeights.length ? data.stepWeights[stream] : 1;
+			weights[i] = (double) weight / rowSetsPerStream[stream];
+		}
+		return new InputScheduler(this, data.schedulingPolicy, data.rowSets, weights, getTransMeta().getSizeRowset());
+	}
+
+	/**
+	 * Read the next row from the input rowsets through the scheduler. Sets data.source to the position of the rowset
+	 * the row came from.
+	 *
+	 * @param data step data
+	 * @return the next row or null if all rowsets are done
+	 * @throws KettleException if the row can't be read
+	 */
+	private Object[] readRow(StreamSchemaStepData data) throws KettleException {
+		Object[] row = data.scheduler.nextRow();
+		if (row != null) {
+			data.source = data.scheduler.getLastSource();
+			rowRead(data.rowSets.get(data.source), row);
+			data.metrics.rowReceived(data.rowSetStreams[data.source]);
+		}
+		return row;
+	}
+
+	/**
+	 * Look for row meta information on any of the rowsets belonging to an infostream
+	 *
+	 * @param data step data holding the rowsets
+	 * @param streamNum infostream to look at
+	 * @return the row meta or null if none of the rowsets has received a row yet
+	 */
+	private RowMetaInterface findRowMeta(StreamSchemaStepData data, int streamNum) {
+		for (int i = 0; i < data.rowSets.size(); i++) {
+			if (data.rowSetStreams[i] == streamNum && data.rowSets.get(i).getRowMeta() != null) {
+				return data.rowSets.get(i).getRowMeta();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether all the rowsets of an infostream have signalled they're done. Also returns true when the
+	 * infostream doesn't have any rowsets.
+	 *
+	 * @param data step data holding the rowsets
+	 * @param streamNum infostream to look at
+	 * @return true if no more rows will be sent on this infostream
+	 */
+	private boolean isStreamDone(StreamSchemaStepData data, int streamNum) {
+		for (int i = 0; i < data.rowSets.size(); i++) {
+			if (data.rowSetStreams[i] == streamNum && !data.rowSets.get(i).isDone()) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -170,56 +424,63 @@ public class StreamSchemaStep extends BaseStep implements StepInterface {
 		 */
 		if (first) {
 			first = false;
+			data.startMillis = System.currentTimeMillis();
 			data.foundARowMeta = false;
-			for (int i = 0; i < data.infoStreams.size(); i++) {
-				data.r = findInputRowSet(data.infoStreams.get(i).getStepname());
-				if (data.r == null) {
-					// see if the rowset has been removed by the calls to getRow below that prevent the step from blocking
-					// in which case we should have stored the relevant info for retrieval
-					if (data.cacheRowMetaMap.containsKey(i)) {
-						data.rowMetas[i] = data.cacheRowMetaMap.get(i);
-						data.stepNames.add(data.cacheRowSetNameMap.get(i));
-						data.foundARowMeta = true;
-						continue;
-					}
-					if (data.remainingRowSetRetries > 0) {
-						data.remainingRowSetRetries--;
-						try {
-							Thread.sleep(1000);
-						} catch (InterruptedException e) {
-							// keep going
-						}
-						i--; // we want to try this infostream again
-						logBasic(String.format("Retrying infostream %d, for the %d time", i, data.remainingRowSetRetries));
-						continue;
-					} else {
-						logBasic(String.format("Missing a rowset for %s, continuing", data.infoStreams.get(i).getStepname()));
-					}
-
-				}
-				data.remainingRowSetRetries = 10;
-				data.rowSets.add(data.r);
-				if (data.r == null) {
-					data.stepNames.add("");
-				} else {
-					data.stepNames.add(data.r.getName());
+			data.phase = StreamSchemaStepData.Phase.COLLECTING_ROWSETS;
+			int stallTimeout = Const.toInt(environmentSubstitute(meta.getStallTimeout()), 0);
+			if (stallTimeout > 0) {
+				data.watchdog = new StallWatchdog(this, data, stallTimeout * 1000L, meta.isAbortOnStall());
+				data.watchdog.start();
+			}
+			collectRowSets(data);
+			if (!data.designTimeLayout) {
+				List<StepInterface> copies = getTrans().findStepInterfaces(getStepname());
+				if (copies != null && copies.size() > 1) {
+					// every copy has to emit the same layout, whichever streams send rows to it
+					data.sharedLayout = SharedLayout.forStep(getTrans(), getStepname(), copies.size(), data.numSteps);
 				}
+			}
+			data.scheduler = createScheduler(data);
+			data.cache = new RowSetCache(data.rowSets.size(), data.bufferSize, data.offHeapCacheBytes, getTransMeta(),
+					getLogChannel());
+			data.phase = StreamSchemaStepData.Phase.DISCOVERY;
+			for (int i = 0; i < data.numSteps; i++) {
 				// Avoids race condition. Row metas are not available until the previous steps have called
 				// putRowWait at least once
 				data.iterations = 0;
 				data.completedLoopedPostDoneSignal = false;
 				data.doneSignal = false;
-				while (data.rowMetas[i] == null && data.r != null && !data.completedLoopedPostDoneSignal && !isStopped()) {
-					data.rowMetas[i] = data.r.getRowMeta();
+				long discoveryStart = System.nanoTime();
+				long spilledBefore = data.numBufferedRows;
+				Object waitEvent = JfrEvents.beginDiscoveryWait();
+				while (data.rowMetas[i] == null && !isStopped()) {
+					checkStall(data);
+					data.rowMetas[i] = findRowMeta(data, i);
+					if (data.rowMetas[i] == null && data.sharedLayout != null) {
+						data.rowMetas[i] = data.sharedLayout.getRowMeta(i);  // found by another copy of the step
+					}
 					data.iterations++;
 					if (data.doneSignal) {
 						// we have completed a loop after the done signal
 						data.completedLoopedPostDoneSignal = true;
 					}
-					if (data.r.isDone()) {
-						// we've received the done signal
+					if (isStreamDone(data, i)) {
+						// we've received the done signal from every copy sending us rows for this stream
 						data.doneSignal = true;
 					}
+					if (data.completedLoopedPostDoneSignal && data.rowMetas[i] == null
+							&& (data.sharedLayout == null || data.sharedLayout.streamDone(i, getCopy()))) {
+						break;  // none of the copies of this step will get rows from this stream
+					}
+					if (data.completedLoopedPostDoneSignal && data.scheduler.getNumLive() == 0) {
+						// nothing left to read while the other copies look for this stream
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							// keep going
+						}
+						continue;
+					}
 					/*
 					 This step blocks until it gets data from all input row sets (or the rowsets say they're done)
 					 This means that you can encounter issues if you split a stream with a filter, do some action
@@ -227,53 +488,34 @@ public class StreamSchemaStep extends BaseStep implements StepInterface {
 					 You can get deadlocked. This alleviates the issue by freeing room in the blocking rowset and
 					 storing it on disk.
 					 */
-					if (data.iterations > data.ACCUMULATION_TRIGGER) {
-						try {
-							Object[] row = getRow();
-							if (row != null) {
-								/*
-								Calling getRow can wind up removing the rowSet from the list of rowsets.
-								Therefore, we need to store the RowMeta and RowSet Name for the rowsets as they
-								correspond to the infostreams as we get them via getRow. The RowMeta and RowSetName
-								are the ultimate reason we're doing everything up until this point.
-								We need the RowMetas to build the Schema Mapper and we need the RowSet Names's to do
-								lookups later on to determine what mapping scheme to use
-								 */
-								int rowSetNum = getCurrentInputRowSetNr();
-								RowSet curr = getInputRowSets().get(rowSetNum);
-								// todo investigate treatment of step copies
-								int infostreamNum = findInfoStreamPosition(data.infoStreams, curr.getOriginStepName());
-								if (infostreamNum < 0) {
-									throw new KettleException("Unable to find a valid infostream");
-								}
-								data.cacheRowMetaMap.put(infostreamNum, curr.getRowMeta());
-								data.cacheRowSetNameMap.put(infostreamNum, curr.getName());
-
-								/*
-								we need to store row set numbers and row set name for each row so we can reference
-								this info when we pull these rows off to process later
-								 */
-								data.outStreams.get(rowSetNum).writeObject(row);
-								data.outStreams.get(rowSetNum).flush();
-								if (data.iterations % 5000 == 0) {
-									// fix for memory leak bug https://bugs.graphiq.com/view.php?id=34255
-									// explanation of memory leak here http://wordpress.nejaa-den.com/outofmemoryexception-memory-leak-in-the-java-class-objectoutputstream-and-objectinputstream/#comment-12234
-									for (ObjectOutputStream s : data.outStreams) {
-										s.reset();
-									}
-								}
-								data.inputRowSetNumbersOut.write(rowSetNum);
-								data.inputRowSetNamesOut.writeUTF(curr.getName());
-								data.numBufferedRows++;
-								incrementLinesOutput();  // tells us we wrote to cache
-							} else {
-								logDebug(String.format("Found null at %d", data.numBufferedRows));
+					if (System.nanoTime() - discoveryStart > data.spillDelayNanos) {
+						Object[] row = readRow(data);
+						if (row != null) {
+							/*
+							We keep our own snapshot of the rowsets, so it doesn't matter that getRow can remove an
+							exhausted rowset from BaseStep's list. We do need to record which rowset each row came
+							from so we know what mapping scheme to use when we pull these rows off to process later
+							 */
+							writeCache(data, row);
+							data.numBufferedRows++;
+							data.metrics.rowSpilled(data.rowSetStreams[data.source]);
+							if (JfrEvents.isAvailable() && ++data.spillBatchRows >= data.SPILL_BATCH_ROWS) {
+								spillBatchDone(data, i);
 							}
-						} catch (IOException e) {
-							throw new KettleException(e.getMessage());
+						} else {
+							logDebug(String.format("Found null at %d", data.numBufferedRows));
 						}
 					}
 				}
+				if (data.rowMetas[i] != null && data.sharedLayout != null) {
+					data.rowMetas[i] = data.sharedLayout.publish(i, data.rowMetas[i]);
+				}
+				data.metrics.addDiscoveryTime(i, System.nanoTime() - discoveryStart);
+				if (data.spillBatchRows > 0) {
+					spillBatchDone(data, i);
+				}
+				JfrEvents.endDiscoveryWait(waitEvent, data.metrics.getStreamName(i), data.iterations,
+						data.rowMetas[i] != null, data.numBufferedRows - spilledBefore);
 
 				if (data.rowMetas[i] != null) {
 					data.foundARowMeta = true;  // indicates at least one rowset is sending rows
@@ -283,131 +525,550 @@ public class StreamSchemaStep extends BaseStep implements StepInterface {
 				}
 			}
 
+			// the watchdog stops the transformation when the step stalls and should abort
+			checkStall(data);
+			if (isStopped()) {
+				return false;
+			}
+
 			// close output streams and open input streams
-			try {
-				for (ObjectOutputStream os: data.outStreams) {
-					os.close();
-				}
-				for (int index = 0; index < data.files.size(); index++) {
-					data.inStreams.add(new ObjectInputStream(new BufferedInputStream(KettleVFS.getInputStream(data.files.get(index)), data.BUFFER_SIZE)));
-				}
-				logDebug("Buffered rows: " + data.numBufferedRows);
-			} catch (IOException ex) {
-				throw new KettleException("Error closing outstreams and opening in streams: " + ex.getMessage());
+			data.cache.finishWriting();
+			for (int source = 0; source < data.rowSets.size(); source++) {
+				data.metrics.addSpillBytes(data.rowSetStreams[source], data.cache.getBytesWritten(source));
+			}
+			logDebug("Buffered rows: " + data.numBufferedRows);
+			if (isDetailed() && data.cache.getRowsOffHeap() > 0) {
+				logDetailed(String.format("Parked %d of %d cached rows off heap", data.cache.getRowsOffHeap(),
+						data.numBufferedRows));
 			}
 
 			if (!data.foundARowMeta) {
 				// none of the steps are sending rows so indicate we're done
+				data.phase = StreamSchemaStepData.Phase.DONE;
 				setOutputDone();
 				return false;
 			}
 
 			// set up are mapping structures
+			Object mappingEvent = JfrEvents.beginSchemaMapping();
 			data.schemaMapping = new SchemaMapper(data.rowMetas);  // creates mapping and master output row
+			JfrEvents.endSchemaMapping(mappingEvent, getStepname(), data.numSteps,
+					data.schemaMapping.getRowMeta().size(), data.schemaMapping.getConvertToString().size());
 			data.mapping = data.schemaMapping.getMapping();
 			data.outputRowMeta = data.schemaMapping.getRowMeta();
 			data.convertToString = data.schemaMapping.getConvertToString();
-			setInputRowSets(data.rowSets);  // set the order of the inputrowsets to match the order we've defined
+			int internCacheSize = Const.toInt(environmentSubstitute(meta.getInternCacheSize()), 0);
+			if (internCacheSize > 0) {
+				data.schemaMapping.internConvertedStrings(internCacheSize);
+			}
+			data.rowMapper.setSchemaMapping(data.schemaMapping);
+			if (data.designTimeLayout) {
+				data.schemaMapping.requireVerification();
+			}
+			// set the order of the inputrowsets to match the order we've defined. BaseStep removes rowsets from this
+			// list as they finish, so it gets its own copy
+			setInputRowSets(new ArrayList<RowSet>(data.rowSets));
+			data.partitioner = createPartitioner(meta, data);
+			if (data.mergeMode == StreamSchemaStepMeta.MergeMode.DISTINCT) {
+				data.distinctRows = createDistinctRows(meta, data);
+			}
+			if (data.mergeMode == StreamSchemaStepMeta.MergeMode.TIME_ORDERED) {
+				data.timeOrderedMerge = createTimeOrderedMerge(meta, data);
+			}
 			if (isDetailed()) {
 				logDetailed("Finished generating mapping");
 			}
+			if (data.numBufferedRows > 0) {
+				data.phase = StreamSchemaStepData.Phase.REPLAY;
+				data.replayEvent = JfrEvents.beginReplay();
+			} else {
+				data.phase = StreamSchemaStepData.Phase.MERGING;
+			}
+
+			if (data.mergeMode == StreamSchemaStepMeta.MergeMode.SORTED) {
+				// fill the heap with the first row of every rowset
+				data.sortedMerge = createSortedMerge(meta, data);
+				for (int source = 0; source < data.rowSets.size(); source++) {
+					Object[] row = readSortedSource(data, source);
+					if (row != null) {
+						data.sortedMerge.add(source, row);
+					}
+				}
+			}
 
 		}
 
-		if (!data.closedCacheFiles) {
-			try {
-				data.inputRowSetNumbersOut.close();
-				data.inputRowSetNamesOut.close();
+		if (data.sortedMerge != null) {
+			return processSortedRow(data);
+		}
 
-				data.inputRowSetNumbersIn = new BufferedInputStream(KettleVFS.getInputStream(data.inputRowSetFileObj), data.BUFFER_SIZE);
-				data.inputRowSetNamesIn = new ObjectInputStream(new BufferedInputStream(KettleVFS.getInputStream(data.inputRowSetNamesFileObj), data.BUFFER_SIZE));
-				data.closedCacheFiles = true;
-			} catch (IOException ex) {
-				throw new KettleException(ex.getMessage());
+		if (data.numBufferedRows == 0 && data.mappingThreads > 1) {
+			// the cache is empty, from here on the workers read, map and queue the rows
+			if (data.workers == null) {
+				data.workers = new MappingWorkerPool(this, data.schemaMapping, data.rowSets, data.rowSetStreams,
+						data.mappingThreads, getTransMeta().getSizeRowset(), data.preserveStreamOrder, data.metrics);
+				data.workers.start();
+				if (isDetailed()) {
+					logDetailed(String.format("Started %d mapping threads", data.mappingThreads));
+				}
 			}
+			Object[] outputRow = data.workers.take();
+			if (outputRow == null) {
+				return processDeferredRow(data);
+			}
+			emitRow(data, outputRow);
+			if (checkFeedback(getLinesRead())) {
+				logBasic("Linenr " + getLinesRead()); // Some basic logging
+			}
+			return true;
 		}
 
 		Object[] incomingRow;
 		if (data.numBufferedRows > 0) {
+			checkStall(data);
 			// clear cache before reading rows form rowset again
-			try {
-				// readUnsahred used instead of readObject to prevent memory leak
-				incomingRow = (Object []) data.inStreams.get(data.inputRowSetNumbersIn.read()).readUnshared();
-				// we decrement numBufferedRows below (since we check its value twice per iteration)
-			} catch (Exception e) {
-				throw new KettleException("Error reading buffered rows: " + e.getMessage());
-			}
+			incomingRow = readCache(data, -1);
+			data.source = data.cache.getLastSource();
 		} else {
-			incomingRow = getRow();  // get the next available row
+			incomingRow = readRow(data);  // get the next available row
 		}
 
 		// if no more rows are expected, indicate step is finished and processRow() should not be called again
 		if (incomingRow == null){
+			return processDeferredRow(data);
+		}
+
+		data.streamNum = data.rowMapper.getStreamNum(data.source);
+		if (isRowLevel()) {
+			logRowlevel(String.format("Current row from %s. This maps to stream number %d",
+					data.rowSets.get(data.source).getName(), data.streamNum));
+		}
+
+		// create a new output row in the model of the master output row and copy the data values in to it
+		Object[] outputRow = mapRow(data, data.source, incomingRow);
+
+		// put the row to the output row stream
+		if (data.timeOrderedMerge != null) {
+			emitTimeOrdered(data, outputRow);
+		} else {
+			emitRow(data, outputRow);
+		}
+
+		// log progress if it is time to to so
+		if (checkFeedback(getLinesRead())) {
+			logBasic("Linenr " + getLinesRead()); // Some basic logging
+		}
+
+		// indicate that processRow() should be called again
+		return true;
+	}
+
+	/**
+	 * Resolve the partition fields against the merged row and set up the partitioner for the output rowsets. The
+	 * rowsets are grouped by the step they lead to: every next step gets every row, and the partitioner picks which
+	 * of its copies gets it.
+	 *
+	 * @param meta step settings holding the partition fields
+	 * @param data step data holding the merged row meta
+	 * @return the partitioner or null if the output isn't partitioned
+	 * @throws KettleException if a partition field isn't part of the merged row
+	 */
+	private RowPartitioner createPartitioner(StreamSchemaStepMeta meta, StreamSchemaStepData data) throws KettleException {
+		String[] partitionFields = meta.getPartitionFields();
+		if (partitionFields.length == 0) {
+			return null;
+		}
+		Map<String, List<RowSet>> targets = new LinkedHashMap<String, List<RowSet>>();
+		boolean copies = false;
+		for (RowSet rowSet : getOutputRowSets()) {
+			List<RowSet> target = targets.get(rowSet.getDestinationStepName());
+			if (target == null) {
+				target = new ArrayList<RowSet>();
+				targets.put(rowSet.getDestinationStepName(), target);
+			}
+			target.add(rowSet);
+			copies |= target.size() > 1;
+		}
+		if (!copies) {
+			logBasic("None of the next steps runs in several copies, the output is not partitioned");
+			return null;
+		}
+		int[] keys = new int[partitionFields.length];
+		for (int i = 0; i < partitionFields.length; i++) {
+			String field = environmentSubstitute(partitionFields[i]);
+			keys[i] = data.outputRowMeta.indexOfValue(field);
+			if (keys[i] < 0) {
+				throw new KettleException(String.format("Unable to find partition field %s in the merged fields", field));
+			}
+		}
+		data.outputTargets = new RowSet[targets.size()][];
+		int target = 0;
+		for (Map.Entry<String, List<RowSet>> entry : targets.entrySet()) {
+			data.outputTargets[target++] = entry.getValue().toArray(new RowSet[entry.getValue().size()]);
+			if (isDetailed()) {
+				logDetailed(String.format("Partitioning the output over %d copies of %s", entry.getValue().size(),
+						entry.getKey()));
+			}
+		}
+		return new RowPartitioner(data.outputRowMeta, keys);
+	}
+
+	/**
+	 * Resolve the distinct fields against the merged row and set up the hash set of the distinct union
+	 *
+	 * @param meta step settings holding the distinct fields
+	 * @param data step data holding the merged row meta
+	 * @return the hash set
+	 * @throws KettleException if a distinct field isn't part of the merged row
+	 */
+	private DistinctRows createDistinctRows(StreamSchemaStepMeta meta, StreamSchemaStepData data) throws KettleException {
+		String[] distinctFields = meta.getDistinctFields();
+		int[] keys = new int[distinctFields.length == 0 ? data.outputRowMeta.size() : distinctFields.length];
+		for (int i = 0; i < keys.length; i++) {
+			if (distinctFields.length == 0) {
+				keys[i] = i;
+				continue;
+			}
+			String field = environmentSubstitute(distinctFields[i]);
+			keys[i] = data.outputRowMeta.indexOfValue(field);
+			if (keys[i] < 0) {
+				throw new KettleException(String.format("Unable to find distinct field %s in the merged fields", field));
+			}
+		}
+		long memory = Math.max(1, Const.toInt(environmentSubstitute(meta.getDistinctMemory()), 64));
+		return new DistinctRows(keys, memory * 1024 * 1024, getTransMeta(), getLogChannel());
+	}
+
+	/**
+	 * Resolve the time field against the merged row and set up the buffer of the time ordered merge
+	 *
+	 * @param meta step settings holding the time field, lateness and buffer size
+	 * @param data step data holding the merged row meta
+	 * @return the buffer
+	 * @throws KettleException if the time field isn't part of the merged row or doesn't hold a time
+	 */
+	private TimeOrderedMerge createTimeOrderedMerge(StreamSchemaStepMeta meta, StreamSchemaStepData data)
+			throws KettleException {
+		String field = environmentSubstitute(meta.getTimeField());
+		int timeField = Const.isEmpty(field) ? -1 : data.outputRowMeta.indexOfValue(field);
+		if (timeField < 0) {
+			throw new KettleException(String.format("Unable to find time field %s in the merged fields", field));
+		}
+		long lateness = Const.toLong(environmentSubstitute(meta.getMaxLateness()), 0L);
+		int bufferRows = Math.max(1, Const.toInt(environmentSubstitute(meta.getTimeOrderBufferRows()), 100000));
+		return new TimeOrderedMerge(data.outputRowMeta, timeField, lateness, data.rowSets.size(), bufferRows);
+	}
+
+	/**
+	 * Buffer a row for the time ordered merge and pass on the rows the watermark has reached
+	 *
+	 * @param data step data, data.source holds the rowset the row came from
+	 * @param outputRow the merged row
+	 * @throws KettleException if the time can't be read or a row can't be passed on
+	 */
+	private void emitTimeOrdered(StreamSchemaStepData data, Object[] outputRow) throws KettleException {
+		TimeOrderedMerge merge = data.timeOrderedMerge;
+		merge.add(data.source, outputRow);
+		Object[] row = merge.poll();
+		if (row == null) {
+			// the watermark may be held back by rowsets that finished since we last looked
+			for (int source = 0; source < data.rowSets.size(); source++) {
+				RowSet rowSet = data.rowSets.get(source);
+				if (!merge.isSourceDone(source) && rowSet.isDone() && rowSet.size() == 0 && !data.cache.hasNext(source)) {
+					merge.sourceDone(source);
+				}
+			}
+			row = merge.poll();
+		}
+		while (row != null) {
+			emitRow(data, row);
+			row = merge.poll();
+		}
+	}
+
+	/**
+	 * Called once every stream is done. Passes on the rows the distinct union or the time ordered merge held back,
+	 * one per call, and then signals the end of the output.
+	 *
+	 * @param data step data
+	 * @return true if a row was passed on and the function should be called again, false if the step is done
+	 * @throws KettleException if the held back rows can't be read
+	 */
+	private boolean processDeferredRow(StreamSchemaStepData data) throws KettleException {
+		Object[] outputRow = null;
+		if (data.distinctRows != null) {
+			outputRow = data.distinctRows.nextDeferred();
+		} else if (data.timeOrderedMerge != null) {
+			outputRow = data.timeOrderedMerge.pollAny();
+		}
+		if (outputRow == null) {
+			data.phase = StreamSchemaStepData.Phase.DONE;
 			setOutputDone();
 			return false;
 		}
+		putOutputRow(data, outputRow);
+		return true;
+	}
 
-		if (data.numBufferedRows > 0) {
-			// we're reading from the cache not the rowset
-			try {
-				data.currentName = data.inputRowSetNamesIn.readUTF();
-				// we decrement numBufferedRows below (since we check its value twice per iteration)
-			} catch (Exception e) {
-				throw new KettleException("Error reading buffered rows: " + e.getMessage());
-			}
-			data.numBufferedRows--;
-			incrementLinesInput(); // tells us we read from the cache
+	/**
+	 * Pass a merged row on unless the distinct union drops or holds it back
+	 *
+	 * @param data step data
+	 * @param outputRow the merged row
+	 * @throws KettleException if the row can't be passed on
+	 */
+	private void emitRow(StreamSchemaStepData data, Object[] outputRow) throws KettleException {
+		if (data.distinctRows != null && !data.distinctRows.add(outputRow)) {
+			return;
+		}
+		putOutputRow(data, outputRow);
+	}
+
+	/**
+	 * Pass a merged row on, either to BaseStep.putRow or to every next step, at the copy chosen by the partitioner
+	 *
+	 * @param data step data
+	 * @param outputRow the merged row
+	 * @throws KettleException if the row can't be passed on
+	 */
+	private void putOutputRow(StreamSchemaStepData data, Object[] outputRow) throws KettleException {
+		boolean sampled = data.putRowLatency != null && data.putRowLatency.sample();
+		boolean timed = MergeMetrics.isTimed(data.rowsPut++);
+		long start = sampled || timed ? System.nanoTime() : 0;
+		if (data.partitioner == null) {
+			putRow(data.outputRowMeta, outputRow);
 		} else {
-			// get the name of the step that the current rowset is coming from
-			data.currentName = getInputRowSets().get(getCurrentInputRowSetNr()).getName();
+			int hash = data.partitioner.hash(outputRow);
+			RowSet[][] targets = data.outputTargets;
+			for (int i = 0; i < targets.length; i++) {
+				// like Kettle copying rows to several steps, every step but the first gets its own copy of the row
+				Object[] row = i == 0 ? outputRow : data.outputRowMeta.cloneRow(outputRow);
+				putRowTo(data.outputRowMeta, row, targets[i][data.partitioner.partition(hash, targets[i].length)]);
+			}
 		}
-		// because rowsets are removed from the list of rowsets once they're exhausted (in the getRow() method) we
-		// need to use the name to find the proper index for our lookups later
-		data.streamNum = -1;
-		for (int i = 0; i < data.stepNames.size(); i++) {
-			if (data.stepNames.get(i) != null && data.stepNames.get(i).equals(data.currentName)) {
-				data.streamNum = i;
-				break;
+		if (sampled || timed) {
+			long nanos = System.nanoTime() - start;
+			if (sampled) {
+				data.putRowLatency.add(nanos);
+			}
+			if (timed) {
+				data.metrics.addPutRowTime(nanos * MergeMetrics.TIMING_INTERVAL);
 			}
 		}
-		if (data.streamNum < 0) {
-			throw new KettleException(String.format("Failed to find a matching step name for %s in the stepnames",
-					data.currentName));
+	}
+
+	/**
+	 * Write a row to the cache for the rowset it was read from, timing a sample of the writes
+	 *
+	 * @param data step data, data.source holds the rowset the row came from
+	 * @param row the row to cache
+	 * @throws KettleException if the row can't be written
+	 */
+	private void writeCache(StreamSchemaStepData data, Object[] row) throws KettleException {
+		if (data.spillWriteLatency != null && data.spillWriteLatency.sample()) {
+			long start = System.nanoTime();
+			data.cache.write(data.source, data.rowSets.get(data.source).getRowMeta(), row);
+			data.spillWriteLatency.add(System.nanoTime() - start);
+		} else {
+			data.cache.write(data.source, data.rowSets.get(data.source).getRowMeta(), row);
 		}
-		if (isRowLevel()) {
-			logRowlevel(String.format("Current row from %s. This maps to stream number %d", data.currentName,
-					data.streamNum));
+	}
+
+	/**
+	 * Read a row back from the cache, timing a sample of the reads. Once the last cached row is read the step moves
+	 * on to merging rows as they arrive.
+	 *
+	 * @param data step data
+	 * @param source rowset to read a row of, -1 to read rows in the order they were written
+	 * @return the cached row
+	 * @throws KettleException if the row can't be read
+	 */
+	private Object[] readCache(StreamSchemaStepData data, int source) throws KettleException {
+		boolean timed = data.replayReadLatency != null && data.replayReadLatency.sample();
+		long start = timed ? System.nanoTime() : 0;
+		Object[] row = source < 0 ? data.cache.next() : data.cache.next(source);
+		if (timed) {
+			data.replayReadLatency.add(System.nanoTime() - start);
+		}
+		data.numBufferedRows--;
+		data.metrics.rowReplayed(data.rowSetStreams[data.cache.getLastSource()]);
+		if (data.numBufferedRows == 0) {
+			data.phase = StreamSchemaStepData.Phase.MERGING;
+			JfrEvents.endReplay(data.replayEvent, getStepname(), data.cache.getRowsRead());
+			data.replayEvent = null;
+		}
+		return row;
+	}
+
+	/**
+	 * Map a row to the output layout, timing a sample of the rows
+	 *
+	 * @param data step data
+	 * @param source position of the rowset the row came from
+	 * @param row the incoming row
+	 * @return the row in the output layout
+	 * @throws KettleException if the row doesn't fit the layout known at design time
+	 */
+	private Object[] mapRow(StreamSchemaStepData data, int source, Object[] row) throws KettleException {
+		if (!data.schemaMapping.isVerified(data.rowSetStreams[source])) {
+			verifyLayout(data, source);
+		}
+		boolean sampled = data.mappingLatency != null && data.mappingLatency.sample();
+		boolean timed = MergeMetrics.isTimed(data.rowsMapped++);
+		long start = sampled || timed ? System.nanoTime() : 0;
+		Object[] outputRow = data.rowMapper.mapRow(source, row);
+		if (sampled || timed) {
+			long nanos = System.nanoTime() - start;
+			if (sampled) {
+				data.mappingLatency.add(nanos);
+			}
+			if (timed) {
+				data.metrics.addMappingTime(nanos * MergeMetrics.TIMING_INTERVAL);
+			}
 		}
+		return outputRow;
+	}
 
-		// create a new (empty) output row in the model of the master outputer row
-		Object[] outputRow = RowDataUtil.allocateRowData(data.outputRowMeta.size());
+	/**
+	 * Check the first row of a stream against the layout known at design time
+	 *
+	 * @param data step data
+	 * @param source position of the rowset the row came from
+	 * @throws KettleException if the rows of the stream don't fit the output row
+	 */
+	private void verifyLayout(StreamSchemaStepData data, int source) throws KettleException {
+		int streamNum = data.rowSetStreams[source];
+		if (!data.schemaMapping.verifyStream(streamNum, data.rowSets.get(source).getRowMeta())) {
+			logBasic(String.format("The rows of %s don't have the fields known at design time, mapping them by name",
+					data.metrics.getStreamName(streamNum)));
+		}
+	}
 
-		data.rowMapping = data.mapping[data.streamNum];  // set appropriate row mapping
-		data.inRowMeta = data.rowMetas[data.streamNum];  // set appropriate meta for incoming row
-		for (int j = 0; j < data.inRowMeta.size(); j++) {
-			int newPos = data.rowMapping[j];
-			// map a fields old position to its new position
-			if (data.convertToString.contains(newPos) && incomingRow[j] != null) {
-				// we need to convert the underlying data type to string
-				outputRow[newPos] = incomingRow[j].toString();
-			} else {
-				outputRow[newPos] = incomingRow[j];
+	/**
+	 * Resolve the sort fields against the merged row and set up the heap for a sorted merge
+	 *
+	 * @param meta step settings holding the sort fields
+	 * @param data step data holding the merged row meta
+	 * @return heap for merging the rowsets
+	 * @throws KettleException if a sort field isn't part of the merged row
+	 */
+	private SortedMerge createSortedMerge(StreamSchemaStepMeta meta, StreamSchemaStepData data) throws KettleException {
+		String[] sortFields = meta.getSortFields();
+		if (sortFields.length == 0) {
+			throw new KettleException("A sorted merge needs at least one sort field");
+		}
+		int[] keys = new int[sortFields.length];
+		for (int i = 0; i < sortFields.length; i++) {
+			String field = environmentSubstitute(sortFields[i]);
+			keys[i] = data.outputRowMeta.indexOfValue(field);
+			if (keys[i] < 0) {
+				throw new KettleException(String.format("Unable to find sort field %s in the merged fields", field));
+			}
+			if (data.convertToString.contains(keys[i])) {
+				logBasic(String.format("Sort field %s has different types in different streams and is converted to "
+						+ "String. The streams need to be sorted on the String values for the output to be sorted", field));
 			}
+		}
+		return new SortedMerge(data.outputRowMeta, keys, meta.getSortAscending(), data.rowSets.size());
+	}
 
+	/**
+	 * Read and map the next row of a single rowset for the sorted merge. Rows that were cached while looking for
+	 * meta information come first. Waits for the rowset if it doesn't have a row available.
+	 *
+	 * @param data step data
+	 * @param source position of the rowset in data.rowSets
+	 * @return the mapped row or null if the rowset is done
+	 * @throws KettleException if the row can't be read
+	 */
+	private Object[] readSortedSource(StreamSchemaStepData data, int source) throws KettleException {
+		int streamNum = data.rowSetStreams[source];
+		Object[] row;
+		if (data.cache.hasNext(source)) {
+			row = readCache(data, source);
+		} else {
+			row = getRowFrom(data.rowSets.get(source));
+			if (row != null) {
+				data.metrics.rowReceived(streamNum);
+			}
+		}
+		if (row == null) {
+			return null;
 		}
+		return mapRow(data, source, row);
+	}
 
-		// put the row to the output row stream
-		putRow(data.outputRowMeta, outputRow);
+	/**
+	 * Pass on the smallest row of the sorted merge and replace it with the next row of the same rowset
+	 *
+	 * @param data step data
+	 * @return true to indicate that the function should be called again, false if the step is done
+	 * @throws KettleException if rows can't be read or compared
+	 */
+	private boolean processSortedRow(StreamSchemaStepData data) throws KettleException {
+		Object[] outputRow = data.sortedMerge.poll();
+		if (outputRow == null) {
+			data.phase = StreamSchemaStepData.Phase.DONE;
+			setOutputDone();
+			return false;
+		}
+		int source = data.sortedMerge.getLastSource();
+		Object[] next = readSortedSource(data, source);
+		if (next != null) {
+			data.sortedMerge.add(source, next);
+		}
+
+		emitRow(data, outputRow);
 
-		// log progress if it is time to to so
 		if (checkFeedback(getLinesRead())) {
 			logBasic("Linenr " + getLinesRead()); // Some basic logging
 		}
-
-		// indicate that processRow() should be called again
 		return true;
 	}
 
+	/**
+	 * Does the bookkeeping BaseStep.getRow would do for a row that the scheduler or a mapping worker read straight
+	 * from a rowset: count it, remember the input layout and tell the row listeners
+	 *
+	 * @param rowSet rowset the row was read from
+	 * @param row the row that was read
+	 * @throws KettleStepException if one of the row listeners fails
+	 */
+	void rowRead(RowSet rowSet, Object[] row) throws KettleStepException {
+		incrementLinesRead();
+		if (getInputRowMeta() == null) {
+			setInputRowMeta(rowSet.getRowMeta());
+		}
+		List<RowListener> listeners = rowListeners;
+		if (listeners == null) {
+			listeners = getRowListeners();
+			rowListeners = listeners;
+		}
+		if (!listeners.isEmpty()) {
+			// listeners don't expect to be called from several threads at once
+			synchronized (listeners) {
+				for (RowListener listener : listeners) {
+					listener.rowReadEvent(rowSet.getRowMeta(), row);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param data step data
+	 * @return the latency histograms, empty if latencies aren't recorded
+	 */
+	static List<LatencyHistogram> getLatencyHistograms(StreamSchemaStepData data) {
+		List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+		for (LatencyHistogram histogram : new LatencyHistogram[] {data.mappingLatency, data.putRowLatency,
+				data.spillWriteLatency, data.replayReadLatency}) {
+			if (histogram != null) {
+				histograms.add(histogram);
+			}
+		}
+		return histograms;
+	}
+
 	/**
 	 * Clear steps from step data
 	 * @param smi the step meta interface containing the step settings
@@ -419,69 +1080,60 @@ public class StreamSchemaStep extends BaseStep implements StepInterface {
 		StreamSchemaStepMeta meta = (StreamSchemaStepMeta) smi;
 		StreamSchemaStepData data = (StreamSchemaStepData) sdi;
 
+		if (data.watchdog != null) {
+			data.watchdog.stop();
+			data.watchdog = null;
+		}
+		if (data.workers != null) {
+			data.workers.shutdown();
+			data.workers = null;
+		}
+		if (data.metrics != null && !first) {
+			if (data.schemaMapping != null) {
+				// a stream checked against the layout known at design time may have been mapped again since it started
+				data.metrics.setConversionsPerRow(data.schemaMapping.getConversionsPerRow());
+			}
+			data.metrics.logSummary(getLogChannel());
+			for (LatencyHistogram histogram : getLatencyHistograms(data)) {
+				logBasic(histogram.getSummary());
+			}
+			if (data.timeOrderedMerge != null) {
+				logBasic(String.format("Time ordered merge passed on %d rows out of order and %d rows before the "
+						+ "watermark reached them", data.timeOrderedMerge.getLateRows(),
+						data.timeOrderedMerge.getForcedRows()));
+			}
+			if (data.distinctRows != null) {
+				logBasic(String.format("Distinct union dropped %d repeated rows, %d rows were held back on disk",
+						data.distinctRows.getDuplicates(), data.distinctRows.getDeferred()));
+			}
+		}
+		StreamSchemaStepMonitor.unregister(data.monitorName, getLogChannel());
+		data.monitorName = null;
 		data.outputRowMeta = null;
-		data.inRowMeta = null;
 		data.schemaMapping = null;
 		data.infoStreams = null;
 		data.rowSets = null;
+		data.rowSetStreams = null;
+		data.rowMapper = null;
 		data.rowMetas = null;
 		data.mapping = null;
-		data.currentName = null;
-		data.rowMapping = null;
-		data.stepNames = null;
-		data.r = null;
-		data.outStreams = null;
-		for (ObjectInputStream is: data.inStreams) {
-			try {
-				is.close();
-			} catch (IOException e) {
-				logBasic("Hit exception when cleaning up: " + e.getMessage());
-			}
+		data.sortedMerge = null;
+		data.timeOrderedMerge = null;
+		if (data.sharedLayout != null) {
+			data.sharedLayout.release();
+			data.sharedLayout = null;
 		}
-		for (FileObject obj : data.files) {
-			try {
-				obj.delete();
-			} catch (FileSystemException e) {
-				logBasic(String.format("Unable to delete file %s because %s", obj.getName(), e.getMessage()));
-			}
+		if (data.distinctRows != null) {
+			data.distinctRows.dispose();  // closes and deletes the spill files
+			data.distinctRows = null;
 		}
-		try {
-			if (!data.closedCacheFiles) {
-				data.inputRowSetNumbersOut.close();
-			}
-			data.inputRowSetNumbersOut = null;
-		} catch (IOException ex) {
-			logError("Error when cleaning up rowset cache" + ex.getMessage());
+		data.scheduler = null;
+		data.partitioner = null;
+		data.outputTargets = null;
+		if (data.cache != null) {
+			data.cache.dispose();  // closes and deletes the cache files
+			data.cache = null;
 		}
-		try {
-			if (data.inputRowSetNumbersIn != null) {
-				data.inputRowSetNumbersIn.close();
-			}
-			data.inputRowSetNumbersIn = null;
-			data.inputRowSetFileObj = null;
-		} catch (IOException ex) {
-			logError("Error when cleaning up rowset cache" + ex.getMessage());
-		}
-		try {
-			if (!data.closedCacheFiles) {
-				data.inputRowSetNamesOut.close();
-			}
-			data.inputRowSetNamesOut = null;
-		} catch (IOException ex) {
-			logError("Error when cleaning up rowset cache" + ex.getMessage());
-		}
-		try {
-			if (data.inputRowSetNumbersIn != null) {
-				data.inputRowSetNamesIn.close();
-			}
-			data.inputRowSetNamesIn = null;
-			data.inputRowSetNamesFileObj = null;
-		} catch (IOException ex) {
-			logError("Error when cleaning up rowset cache" + ex.getMessage());
-		}
-		data.outStreams = null;
-		data.files = null;
-
 
 		super.dispose(meta, data);
 	}
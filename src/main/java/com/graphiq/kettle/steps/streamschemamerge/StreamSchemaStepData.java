@@ -22,19 +22,14 @@
 
 package com.graphiq.kettle.steps.streamschemamerge;
 
-import org.apache.commons.vfs2.FileObject;
 import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import javax.management.ObjectName;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -42,7 +37,19 @@ import java.util.Set;
  */
 public class StreamSchemaStepData extends BaseStepData implements StepDataInterface {
 
-	public RowMetaInterface outputRowMeta, inRowMeta;  // outgoing and incoming row meta
+	/**
+	 * What the step is busy with, shown by the JMX monitor
+	 */
+	public enum Phase {
+		INITIALIZING,  // waiting for processRow to be called
+		COLLECTING_ROWSETS,  // looking for the rowsets of the infostreams
+		DISCOVERY,  // waiting for the row meta of every infostream, caching rows if needed
+		REPLAY,  // passing on the rows that were cached during discovery
+		MERGING,  // passing on rows as they arrive
+		DONE
+	}
+
+	public RowMetaInterface outputRowMeta;  // outgoing row meta
 
 	public StreamSchemaStepData()
 	{
@@ -53,21 +60,24 @@ public class StreamSchemaStepData extends BaseStepData implements StepDataInterf
 
 	public List<StreamInterface> infoStreams;  // streams of the incoming steps
 
-	public List<RowSet> rowSets;  // a list of rowsets that are sending data to this step
+	public List<RowSet> rowSets;  // the rowsets sending data to this copy of the step, grouped by infostream
+
+	public int[] rowSetStreams;  // infostream number for each of the rowsets in rowSets
+
+	public StreamRowMapper rowMapper;  // finds the infostream of a rowset and maps its rows
 
 	public RowMetaInterface[] rowMetas;  // a list of row meta information for incoming rows
 
-	public int[][] mapping;  // mappings for all incoming rows
+	public boolean designTimeLayout;  // rowMetas come from the transformation and are checked on the first row of each stream
 
-	public int numSteps, streamNum;  // incoming steps and what stream the current row is from
+	public SharedLayout sharedLayout;  // row metas found by the other copies of the step, null when running in one copy
 
-	public String currentName;  // name of the rowset that sent the current row
+	public int[][] mapping;  // mappings for all incoming rows
 
-	public int[] rowMapping;  // row mapping for the current row
+	public int numSteps, streamNum;  // incoming steps and what stream the current row is from
 
-	public List<String> stepNames;  // rowset names for incoming rowsets
+	public int source;  // position in rowSets of the rowset that sent the current row
 
-	public RowSet r;  // used for iterating over rowsets
 
     public boolean foundARowMeta;  // indicates that rows are being sent to the step
 
@@ -75,39 +85,77 @@ public class StreamSchemaStepData extends BaseStepData implements StepDataInterf
 
     public Set<Integer> convertToString; // used when we have to resolve data type mismatches
 
-	public BufferedOutputStream inputRowSetNumbersOut;  // row set numbers for the rows written to disk
-	public BufferedInputStream inputRowSetNumbersIn;  // row set numbers for the rows written to disk
+	public RowSetCache cache;  // rows written to disk while we wait for meta information
 
-	public FileObject inputRowSetFileObj;
+	public long numBufferedRows;
 
-	public ObjectOutputStream inputRowSetNamesOut;  // row set names for rows written to disk
-	public ObjectInputStream inputRowSetNamesIn;  // row set names for rows written to disk
+	public long spillDelayNanos;  // time we wait for the row meta of a stream before we start writing rows to disk (to prevent blocking)
 
-	public FileObject inputRowSetNamesFileObj;
+	public boolean completedLoopedPostDoneSignal = false;  // this ensures that we run 1 final time after the done signal
 
-	public boolean closedCacheFiles; // used to see if we've closed inputRowSetNumbersOut and inputRowSetNamesOut
+	public boolean doneSignal = false;  // we can have an infinite loop if a step isn't sending any rows
 
-	public long numBufferedRows;
+	public long rowSetTimeoutMillis;  // time we keep looking for the rowsets of an infostream
 
-	public int ACCUMULATION_TRIGGER = 100000;  // the number of iterations before we decide to start writing rows to disk (to prevent blocking)
+	public long rowSetRetryMillis;  // time between two looks for the rowsets of an infostream
 
-	public List<ObjectOutputStream> outStreams;  // streams for writing cached rows
+	public int bufferSize;  // size of the buffers of the cache files
 
-	public List<ObjectInputStream> inStreams;  // streams for reading cached rows
+	public long offHeapCacheBytes;  // direct buffer space rows are parked in before they are written to disk
 
-	public List<FileObject> files;
+	public int mappingThreads;  // number of threads mapping rows, 1 to map on the step thread
 
-	public Map<Integer, RowMetaInterface> cacheRowMetaMap;  // lookup for row metas that might get removed when writing rows to disk
+	public boolean preserveStreamOrder;  // keep the rows of each infostream in order when mapping in parallel
 
-	public Map<Integer, String> cacheRowSetNameMap;  // lookup for row set names that might get removed when writing rows to disk
+	public MappingWorkerPool workers;  // threads mapping rows once the row cache has been emptied
 
-	public boolean completedLoopedPostDoneSignal = false;  // this ensures that we run 1 final time after the done signal
+	public StreamSchemaStepMeta.MergeMode mergeMode;  // how rows are combined into the output
 
-	public boolean doneSignal = false;  // we can have an infinite loop if a step isn't sending any rows
+	public SortedMerge sortedMerge;  // head rows of each rowset when doing a sorted merge
+
+	public DistinctRows distinctRows;  // hashes of the rows passed on when doing a distinct union
+
+	public TimeOrderedMerge timeOrderedMerge;  // rows waiting for the watermark when doing a time ordered merge
+
+
+	public StreamSchemaStepMeta.SchedulingPolicy schedulingPolicy;  // how we choose the rowset to read from
+
+	public int[] stepWeights;  // share of the reads for each infostream
+
+	public InputScheduler scheduler;  // picks the rowset to read from
+
+	public RowPartitioner partitioner;  // picks the output rowset for each row, null when Kettle distributes the rows
+
+	public RowSet[][] outputTargets;  // rowsets to the copies of each next step, the partitioner picks one per step
+
+	public MergeMetrics metrics;  // per stream counters
+
+	public volatile Phase phase = Phase.INITIALIZING;
+
+	public long startMillis;  // time processing started
+
+	public ObjectName monitorName;  // name of the JMX monitor, null if it isn't registered
+
+	public StallWatchdog watchdog;  // reports stalls during discovery and replay, null if turned off
+
+	public volatile String stallMessage;  // set by the watchdog when the step should fail because it stalled
+
+	public final int SPILL_BATCH_ROWS = 5000;  // cached rows per flight recorder event
+
+	public long spillBatchRows;  // rows cached since the last flight recorder event
+
+	public long spillBatchBytes;  // bytes written to the cache up to the last flight recorder event
+
+	public Object replayEvent;  // flight recorder event for the replay, null if it isn't recorded
+
+	public long rowsMapped;  // rows mapped on the step thread, used to pick the rows that are timed
 
-	public int remainingRowSetRetries = 10;
+	public long rowsPut;  // rows passed on, used to pick the rows that are timed
 
-	public final int BUFFER_SIZE = 8388608;
+	// latency histograms, all null when latencies aren't recorded
+	public LatencyHistogram mappingLatency;
+	public LatencyHistogram putRowLatency;
+	public LatencyHistogram spillWriteLatency;
+	public LatencyHistogram replayReadLatency;
 
-}
-	
+}
\ No newline at end of file
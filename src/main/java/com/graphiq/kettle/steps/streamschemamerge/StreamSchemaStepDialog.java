@@ -23,6 +23,9 @@
 package com.graphiq.kettle.steps.streamschemamerge;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
+import org.eclipse.swt.custom.CTabFolder;
+import org.eclipse.swt.custom.CTabItem;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -33,6 +36,8 @@ import org.eclipse.swt.layout.FormAttachment;
 import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
 
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
@@ -43,6 +48,8 @@ import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.widgets.Button;
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.Props;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.plugins.PluginInterface;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.TransMeta;
@@ -52,6 +59,7 @@ import org.pentaho.di.trans.step.errorhandling.StreamIcon;
 import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 import org.pentaho.di.ui.core.widget.ColumnInfo;
 import org.pentaho.di.ui.core.widget.TableView;
+import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
@@ -75,6 +83,34 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
 	private TableView wSteps;
 	private FormData fdlSteps, fdSteps;
 
+	private CTabFolder wTabFolder;
+
+	// merge settings
+	private CCombo wMergeMode;
+	private TableView wSortFields;
+	private TextVar wDistinctMemory;
+	private TextVar wTimeField;
+	private TextVar wMaxLateness;
+	private TextVar wTimeOrderBufferRows;
+	private TableView wDistinctFields;
+
+	// performance settings
+	private TextVar wMappingThreads;
+	private Button wPreserveOrder;
+	private Button wRingBuffer;
+	private CCombo wSchedulingPolicy;
+	private TextVar wLatencySampleInterval;
+	private TextVar wStallTimeout;
+	private Button wAbortOnStall;
+	private Button wDesignTimeLayout;
+	private TextVar wInternCacheSize;
+	private TextVar wSpillDelay;
+	private TextVar wRowSetTimeout;
+	private TextVar wRowSetRetryInterval;
+	private TextVar wCacheBufferSize;
+	private TextVar wOffHeapCacheSize;
+	private TableView wPartitionFields;
+
 	/**
 	 * The constructor should simply invoke super() and save the incoming meta
 	 * object to a local variable, so it can conveniently read and write settings
@@ -171,16 +207,24 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
 
         setButtonPositions(new Button[]{wOK, wGet, wCancel}, margin, null);
 
+		wTabFolder = new CTabFolder(shell, SWT.BORDER);
+		props.setLook(wTabFolder, Props.WIDGET_STYLE_TAB);
+
+		// ////////////////////////
+		// START OF GENERAL TAB ///
+		// ////////////////////////
+		Composite wGeneralComp = addTab(BaseMessages.getString(PKG, "StreamSchemaStepDialog.GeneralTab.Title"));
+
 		// Table with fields for inputting step names
-		wlSteps = new Label( shell, SWT.NONE );
+		wlSteps = new Label( wGeneralComp, SWT.NONE );
 		wlSteps.setText(BaseMessages.getString(PKG, "StreamSchemaStepDialog.Steps.Label"));
 		props.setLook(wlSteps);
 		fdlSteps = new FormData();
 		fdlSteps.left = new FormAttachment( 0, 0 );
-		fdlSteps.top = new FormAttachment( wStepname, margin );
+		fdlSteps.top = new FormAttachment( 0, margin );
 		wlSteps.setLayoutData(fdlSteps);
 
-		final int FieldsCols = 1;
+		final int FieldsCols = 2;
         final int FieldsRows = meta.getNumberOfSteps();
 
         previousSteps = transMeta.getPrevStepNames(stepname);
@@ -190,18 +234,150 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
 				new ColumnInfo(
 						BaseMessages.getString( PKG, "StreamSchemaStepDialog.StepName.Column" ),
 						ColumnInfo.COLUMN_TYPE_CCOMBO, previousSteps, false );
+		colinf[1] =
+				new ColumnInfo(
+						BaseMessages.getString( PKG, "StreamSchemaStepDialog.StepWeight.Column" ),
+						ColumnInfo.COLUMN_TYPE_TEXT, false );
 
 		wSteps =
 				new TableView(
-						transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, colinf, FieldsRows, lsMod, props );
+						transMeta, wGeneralComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, colinf, FieldsRows, lsMod, props );
 
 		fdSteps = new FormData();
 		fdSteps.left = new FormAttachment( 0, 0 );
 		fdSteps.top = new FormAttachment(wlSteps, margin );
 		fdSteps.right = new FormAttachment( 100, 0 );
-		fdSteps.bottom = new FormAttachment( wOK, -2 * margin );
+		fdSteps.bottom = new FormAttachment( 100, -margin );
 		wSteps.setLayoutData(fdSteps);
 
+		// //////////////////////
+		// START OF MERGE TAB ///
+		// //////////////////////
+		Composite wMergeComp = addTab(BaseMessages.getString(PKG, "StreamSchemaStepDialog.MergeTab.Title"));
+
+		StreamSchemaStepMeta.MergeMode[] modes = StreamSchemaStepMeta.MergeMode.values();
+		String[] modeDescriptions = new String[modes.length];
+		for (int i = 0; i < modes.length; i++) {
+			modeDescriptions[i] = BaseMessages.getString(PKG, "StreamSchemaStepDialog.MergeMode." + modes[i].name());
+		}
+		wMergeMode = addCombo(wMergeComp, "StreamSchemaStepDialog.MergeMode.Label", null, modeDescriptions, lsMod);
+		wDistinctMemory = addTextVar(wMergeComp, "StreamSchemaStepDialog.DistinctMemory.Label", wMergeMode, lsMod);
+		wTimeField = addTextVar(wMergeComp, "StreamSchemaStepDialog.TimeField.Label", wDistinctMemory, lsMod);
+		wMaxLateness = addTextVar(wMergeComp, "StreamSchemaStepDialog.MaxLateness.Label", wTimeField, lsMod);
+		wTimeOrderBufferRows = addTextVar(wMergeComp, "StreamSchemaStepDialog.TimeOrderBufferRows.Label", wMaxLateness,
+				lsMod);
+
+		Label wlSortFields = new Label( wMergeComp, SWT.NONE );
+		wlSortFields.setText(BaseMessages.getString(PKG, "StreamSchemaStepDialog.SortFields.Label"));
+		props.setLook(wlSortFields);
+		FormData fdlSortFields = new FormData();
+		fdlSortFields.left = new FormAttachment( 0, 0 );
+		fdlSortFields.top = new FormAttachment( wTimeOrderBufferRows, margin );
+		wlSortFields.setLayoutData(fdlSortFields);
+
+		String[] mergedFields = getMergedFieldNames();
+		ColumnInfo[] sortColumns = new ColumnInfo[] {
+				new ColumnInfo( BaseMessages.getString( PKG, "StreamSchemaStepDialog.SortField.Column" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, mergedFields, false ),
+				new ColumnInfo( BaseMessages.getString( PKG, "StreamSchemaStepDialog.SortAscending.Column" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "Y", "N" }, true ) };
+		wSortFields =
+				new TableView(
+						transMeta, wMergeComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, sortColumns,
+						meta.getSortFields().length, lsMod, props );
+		FormData fdSortFields = new FormData();
+		fdSortFields.left = new FormAttachment( 0, 0 );
+		fdSortFields.top = new FormAttachment( wlSortFields, margin );
+		fdSortFields.right = new FormAttachment( 100, 0 );
+		fdSortFields.bottom = new FormAttachment( 50, -margin );
+		wSortFields.setLayoutData(fdSortFields);
+
+		Label wlDistinctFields = new Label( wMergeComp, SWT.NONE );
+		wlDistinctFields.setText(BaseMessages.getString(PKG, "StreamSchemaStepDialog.DistinctFields.Label"));
+		props.setLook(wlDistinctFields);
+		FormData fdlDistinctFields = new FormData();
+		fdlDistinctFields.left = new FormAttachment( 0, 0 );
+		fdlDistinctFields.top = new FormAttachment( wSortFields, margin );
+		wlDistinctFields.setLayoutData(fdlDistinctFields);
+
+		ColumnInfo[] distinctColumns = new ColumnInfo[] {
+				new ColumnInfo( BaseMessages.getString( PKG, "StreamSchemaStepDialog.DistinctField.Column" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, mergedFields, false ) };
+		wDistinctFields =
+				new TableView(
+						transMeta, wMergeComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, distinctColumns,
+						meta.getDistinctFields().length, lsMod, props );
+		FormData fdDistinctFields = new FormData();
+		fdDistinctFields.left = new FormAttachment( 0, 0 );
+		fdDistinctFields.top = new FormAttachment( wlDistinctFields, margin );
+		fdDistinctFields.right = new FormAttachment( 100, 0 );
+		fdDistinctFields.bottom = new FormAttachment( 100, -margin );
+		wDistinctFields.setLayoutData(fdDistinctFields);
+
+		// ////////////////////////////
+		// START OF PERFORMANCE TAB ///
+		// ////////////////////////////
+		Composite wPerformanceComp = addTab(BaseMessages.getString(PKG, "StreamSchemaStepDialog.PerformanceTab.Title"));
+
+		wMappingThreads = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.MappingThreads.Label", null, lsMod);
+		wPreserveOrder = addCheckBox(wPerformanceComp, "StreamSchemaStepDialog.PreserveOrder.Label", wMappingThreads);
+
+		wRingBuffer = addCheckBox(wPerformanceComp, "StreamSchemaStepDialog.RingBuffer.Label", wPreserveOrder);
+
+		StreamSchemaStepMeta.SchedulingPolicy[] policies = StreamSchemaStepMeta.SchedulingPolicy.values();
+		String[] policyDescriptions = new String[policies.length];
+		for (int i = 0; i < policies.length; i++) {
+			policyDescriptions[i] = BaseMessages.getString(PKG, "StreamSchemaStepDialog.SchedulingPolicy." + policies[i].name());
+		}
+		wSchedulingPolicy = addCombo(wPerformanceComp, "StreamSchemaStepDialog.SchedulingPolicy.Label", wRingBuffer,
+				policyDescriptions, lsMod);
+		wLatencySampleInterval = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.LatencySampleInterval.Label",
+				wSchedulingPolicy, lsMod);
+		wStallTimeout = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.StallTimeout.Label", wLatencySampleInterval,
+				lsMod);
+		wAbortOnStall = addCheckBox(wPerformanceComp, "StreamSchemaStepDialog.AbortOnStall.Label", wStallTimeout);
+		wDesignTimeLayout = addCheckBox(wPerformanceComp, "StreamSchemaStepDialog.DesignTimeLayout.Label", wAbortOnStall);
+		wInternCacheSize = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.InternCacheSize.Label", wDesignTimeLayout,
+				lsMod);
+		wSpillDelay = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.SpillDelay.Label", wInternCacheSize, lsMod);
+		wRowSetTimeout = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.RowSetTimeout.Label", wSpillDelay, lsMod);
+		wRowSetRetryInterval = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.RowSetRetryInterval.Label",
+				wRowSetTimeout, lsMod);
+		wCacheBufferSize = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.CacheBufferSize.Label",
+				wRowSetRetryInterval, lsMod);
+		wOffHeapCacheSize = addTextVar(wPerformanceComp, "StreamSchemaStepDialog.OffHeapCacheSize.Label",
+				wCacheBufferSize, lsMod);
+
+		Label wlPartitionFields = new Label( wPerformanceComp, SWT.NONE );
+		wlPartitionFields.setText(BaseMessages.getString(PKG, "StreamSchemaStepDialog.PartitionFields.Label"));
+		props.setLook(wlPartitionFields);
+		FormData fdlPartitionFields = new FormData();
+		fdlPartitionFields.left = new FormAttachment( 0, 0 );
+		fdlPartitionFields.top = new FormAttachment( wOffHeapCacheSize, margin );
+		wlPartitionFields.setLayoutData(fdlPartitionFields);
+
+		ColumnInfo[] partitionColumns = new ColumnInfo[] {
+				new ColumnInfo( BaseMessages.getString( PKG, "StreamSchemaStepDialog.PartitionField.Column" ),
+						ColumnInfo.COLUMN_TYPE_CCOMBO, mergedFields, false ) };
+		wPartitionFields =
+				new TableView(
+						transMeta, wPerformanceComp, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, partitionColumns,
+						meta.getPartitionFields().length, lsMod, props );
+		FormData fdPartitionFields = new FormData();
+		fdPartitionFields.left = new FormAttachment( 0, 0 );
+		fdPartitionFields.top = new FormAttachment( wlPartitionFields, margin );
+		fdPartitionFields.right = new FormAttachment( 100, 0 );
+		fdPartitionFields.bottom = new FormAttachment( 100, -margin );
+		wPartitionFields.setLayoutData(fdPartitionFields);
+
+		FormData fdTabFolder = new FormData();
+		fdTabFolder.left = new FormAttachment( 0, 0 );
+		fdTabFolder.top = new FormAttachment( wStepname, margin );
+		fdTabFolder.right = new FormAttachment( 100, 0 );
+		fdTabFolder.bottom = new FormAttachment( wOK, -2 * margin );
+		wTabFolder.setLayoutData(fdTabFolder);
+		wTabFolder.setSelection(0);
+
 		// Add listeners for cancel and OK
 		lsCancel = new Listener() {
 			public void handleEvent(Event e) {cancel();}
@@ -252,6 +428,128 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
 		return stepname;
 	}
 	
+	/**
+	 * Add a tab to the tab folder
+	 * @param title text shown on the tab
+	 * @return composite to place the controls of the tab on
+	 */
+	private Composite addTab(String title) {
+		CTabItem wTab = new CTabItem(wTabFolder, SWT.NONE);
+		wTab.setText(title);
+
+		Composite wComp = new Composite(wTabFolder, SWT.NONE);
+		props.setLook(wComp);
+		FormLayout compLayout = new FormLayout();
+		compLayout.marginWidth = Const.FORM_MARGIN;
+		compLayout.marginHeight = Const.FORM_MARGIN;
+		wComp.setLayout(compLayout);
+
+		FormData fdComp = new FormData();
+		fdComp.left = new FormAttachment(0, 0);
+		fdComp.top = new FormAttachment(0, 0);
+		fdComp.right = new FormAttachment(100, 0);
+		fdComp.bottom = new FormAttachment(100, 0);
+		wComp.setLayoutData(fdComp);
+		wTab.setControl(wComp);
+		return wComp;
+	}
+
+	/**
+	 * Add a label in the left column of a tab
+	 * @param parent composite of the tab
+	 * @param labelKey message key of the label text
+	 * @param above control the label is placed under, null for the top of the tab
+	 */
+	private void addLabel(Composite parent, String labelKey, Control above) {
+		Label wLabel = new Label(parent, SWT.RIGHT);
+		wLabel.setText(BaseMessages.getString(PKG, labelKey));
+		props.setLook(wLabel);
+		FormData fdLabel = new FormData();
+		fdLabel.left = new FormAttachment(0, 0);
+		fdLabel.right = new FormAttachment(props.getMiddlePct(), -Const.MARGIN);
+		fdLabel.top = above == null ? new FormAttachment(0, Const.MARGIN) : new FormAttachment(above, Const.MARGIN);
+		wLabel.setLayoutData(fdLabel);
+	}
+
+	/**
+	 * Lay out a control in the right column of a tab
+	 * @param control control to place
+	 * @param above control the new control is placed under, null for the top of the tab
+	 */
+	private void placeControl(Control control, Control above) {
+		props.setLook(control);
+		FormData fdControl = new FormData();
+		fdControl.left = new FormAttachment(props.getMiddlePct(), 0);
+		fdControl.right = new FormAttachment(100, 0);
+		fdControl.top = above == null ? new FormAttachment(0, Const.MARGIN) : new FormAttachment(above, Const.MARGIN);
+		control.setLayoutData(fdControl);
+	}
+
+	/**
+	 * Add a labelled text field that accepts variables
+	 * @param parent composite of the tab
+	 * @param labelKey message key of the label text
+	 * @param above control the field is placed under, null for the top of the tab
+	 * @param lsMod listener that marks the step as changed
+	 * @return the text field
+	 */
+	private TextVar addTextVar(Composite parent, String labelKey, Control above, ModifyListener lsMod) {
+		addLabel(parent, labelKey, above);
+		TextVar wText = new TextVar(transMeta, parent, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+		wText.addModifyListener(lsMod);
+		placeControl(wText, above);
+		return wText;
+	}
+
+	/**
+	 * Add a labelled read only drop down
+	 * @param parent composite of the tab
+	 * @param labelKey message key of the label text
+	 * @param above control the drop down is placed under, null for the top of the tab
+	 * @param items values to choose from
+	 * @param lsMod listener that marks the step as changed
+	 * @return the drop down
+	 */
+	private CCombo addCombo(Composite parent, String labelKey, Control above, String[] items, ModifyListener lsMod) {
+		addLabel(parent, labelKey, above);
+		CCombo wCombo = new CCombo(parent, SWT.BORDER | SWT.READ_ONLY);
+		wCombo.setItems(items);
+		wCombo.addModifyListener(lsMod);
+		placeControl(wCombo, above);
+		return wCombo;
+	}
+
+	/**
+	 * Names of the fields this step sends out, used to pick fields of the merged row
+	 * @return field names, empty if they can't be determined
+	 */
+	private String[] getMergedFieldNames() {
+		try {
+			return transMeta.getStepFields(stepname).getFieldNames();
+		} catch (KettleException e) {
+			return new String[0];
+		}
+	}
+
+	/**
+	 * Add a labelled check box
+	 * @param parent composite of the tab
+	 * @param labelKey message key of the label text
+	 * @param above control the check box is placed under, null for the top of the tab
+	 * @return the check box
+	 */
+	private Button addCheckBox(Composite parent, String labelKey, Control above) {
+		addLabel(parent, labelKey, above);
+		Button wCheck = new Button(parent, SWT.CHECK);
+		wCheck.addSelectionListener(new SelectionAdapter() {
+			public void widgetSelected(SelectionEvent e) {
+				meta.setChanged();
+			}
+		});
+		placeControl(wCheck, above);
+		return wCheck;
+	}
+
 	/**
 	 * This helper method puts the step configuration stored in the meta object
 	 * and puts it into the dialog controls.
@@ -261,11 +559,13 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
         if ( meta.getNumberOfSteps() > 0 ) {
             table.removeAll();
         }
+        int[] weights = meta.getStepWeights();
         int i = 0;
         for(StreamInterface infoStream : meta.getStepIOMeta().getInfoStreams()) {
 			TableItem ti = new TableItem( table, SWT.NONE );
 			ti.setText( 0, "" + ( i + 1 ) );
 			ti.setText( 1, Const.NVL( infoStream.getStepname(), "" ) );
+			ti.setText( 2, "" + ( i < weights.length ? weights[i] : 1 ) );
             i++;
 		}
 
@@ -273,6 +573,48 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
         wSteps.setRowNums();
         wSteps.optWidth(true);
 
+        wMergeMode.select(meta.getMergeMode().ordinal());
+        String[] sortFields = meta.getSortFields();
+        boolean[] sortAscending = meta.getSortAscending();
+        for (int j = 0; j < sortFields.length; j++) {
+            TableItem ti = wSortFields.table.getItem(j);
+            ti.setText(1, Const.NVL(sortFields[j], ""));
+            ti.setText(2, sortAscending[j] ? "Y" : "N");
+        }
+        wSortFields.setRowNums();
+        wSortFields.optWidth(true);
+        wDistinctMemory.setText(Const.NVL(meta.getDistinctMemory(), ""));
+        wTimeField.setText(Const.NVL(meta.getTimeField(), ""));
+        wMaxLateness.setText(Const.NVL(meta.getMaxLateness(), ""));
+        wTimeOrderBufferRows.setText(Const.NVL(meta.getTimeOrderBufferRows(), ""));
+        String[] distinctFields = meta.getDistinctFields();
+        for (int j = 0; j < distinctFields.length; j++) {
+            wDistinctFields.table.getItem(j).setText(1, Const.NVL(distinctFields[j], ""));
+        }
+        wDistinctFields.setRowNums();
+        wDistinctFields.optWidth(true);
+
+        wMappingThreads.setText(Const.NVL(meta.getMappingThreads(), ""));
+        wPreserveOrder.setSelection(meta.isPreserveStreamOrder());
+        wRingBuffer.setSelection(meta.isRingBufferInput());
+        wLatencySampleInterval.setText(Const.NVL(meta.getLatencySampleInterval(), ""));
+        wStallTimeout.setText(Const.NVL(meta.getStallTimeout(), ""));
+        wAbortOnStall.setSelection(meta.isAbortOnStall());
+        wDesignTimeLayout.setSelection(meta.isDesignTimeLayout());
+        wInternCacheSize.setText(Const.NVL(meta.getInternCacheSize(), ""));
+        wSpillDelay.setText(Const.NVL(meta.getSpillDelay(), ""));
+        wRowSetTimeout.setText(Const.NVL(meta.getRowSetTimeout(), ""));
+        wRowSetRetryInterval.setText(Const.NVL(meta.getRowSetRetryInterval(), ""));
+        wCacheBufferSize.setText(Const.NVL(meta.getCacheBufferSize(), ""));
+        wOffHeapCacheSize.setText(Const.NVL(meta.getOffHeapCacheSize(), ""));
+        wSchedulingPolicy.select(meta.getSchedulingPolicy().ordinal());
+        String[] partitionFields = meta.getPartitionFields();
+        for (int j = 0; j < partitionFields.length; j++) {
+            wPartitionFields.table.getItem(j).setText(1, Const.NVL(partitionFields[j], ""));
+        }
+        wPartitionFields.setRowNums();
+        wPartitionFields.optWidth(true);
+
         wStepname.selectAll();
         wStepname.setFocus();
 	}
@@ -288,6 +630,7 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
             TableItem ti = new TableItem( table, SWT.NONE );
             ti.setText( 0, "" + ( i + 1 ) );
             ti.setText( 1, previousSteps[i] );
+            ti.setText( 2, "1" );
         }
         wSteps.removeEmptyRows();
         wSteps.setRowNums();
@@ -362,16 +705,61 @@ public class StreamSchemaStepDialog extends BaseStepDialog implements StepDialog
         // TODO eliminate copying here and copying when placed in meta
         int nrsteps = wSteps.nrNonEmpty();
         String[] stepNames = new String[nrsteps];
+        int[] weights = new int[nrsteps];
         for ( int i = 0; i < nrsteps; i++ ) {
             TableItem ti = wSteps.getNonEmpty(i);
             StepMeta tm = transMeta.findStep(ti.getText(1));
             if (tm != null) {
                 stepNames[i] = tm.getName();
             }
+            weights[i] = Const.toInt(ti.getText(2), 1);
         }
         meta.setStepsToMerge(stepNames);
+        meta.setStepWeights(weights);
 		getMeta(stepNames);
 
+		meta.setMergeMode(StreamSchemaStepMeta.MergeMode.values()[Math.max(0, wMergeMode.getSelectionIndex())]);
+		int nrSortFields = wSortFields.nrNonEmpty();
+		String[] sortFields = new String[nrSortFields];
+		boolean[] sortAscending = new boolean[nrSortFields];
+		for (int i = 0; i < nrSortFields; i++) {
+			TableItem ti = wSortFields.getNonEmpty(i);
+			sortFields[i] = ti.getText(1);
+			sortAscending[i] = !"N".equalsIgnoreCase(ti.getText(2));
+		}
+		meta.setSortFields(sortFields, sortAscending);
+		meta.setDistinctMemory(wDistinctMemory.getText());
+		meta.setTimeField(wTimeField.getText());
+		meta.setMaxLateness(wMaxLateness.getText());
+		meta.setTimeOrderBufferRows(wTimeOrderBufferRows.getText());
+		int nrDistinctFields = wDistinctFields.nrNonEmpty();
+		String[] distinctFields = new String[nrDistinctFields];
+		for (int i = 0; i < nrDistinctFields; i++) {
+			distinctFields[i] = wDistinctFields.getNonEmpty(i).getText(1);
+		}
+		meta.setDistinctFields(distinctFields);
+
+		meta.setMappingThreads(wMappingThreads.getText());
+		meta.setPreserveStreamOrder(wPreserveOrder.getSelection());
+		int nrPartitionFields = wPartitionFields.nrNonEmpty();
+		String[] partitionFields = new String[nrPartitionFields];
+		for (int i = 0; i < nrPartitionFields; i++) {
+			partitionFields[i] = wPartitionFields.getNonEmpty(i).getText(1);
+		}
+		meta.setPartitionFields(partitionFields);
+		meta.setRingBufferInput(wRingBuffer.getSelection());
+		meta.setLatencySampleInterval(wLatencySampleInterval.getText());
+		meta.setStallTimeout(wStallTimeout.getText());
+		meta.setAbortOnStall(wAbortOnStall.getSelection());
+		meta.setDesignTimeLayout(wDesignTimeLayout.getSelection());
+		meta.setInternCacheSize(wInternCacheSize.getText());
+		meta.setSpillDelay(wSpillDelay.getText());
+		meta.setRowSetTimeout(wRowSetTimeout.getText());
+		meta.setRowSetRetryInterval(wRowSetRetryInterval.getText());
+		meta.setCacheBufferSize(wCacheBufferSize.getText());
+		meta.setOffHeapCacheSize(wOffHeapCacheSize.getText());
+		meta.setSchedulingPolicy(StreamSchemaStepMeta.SchedulingPolicy.values()[Math.max(0, wSchedulingPolicy.getSelectionIndex())]);
+
 		// close the SWT dialog window
 		dispose();
 	}
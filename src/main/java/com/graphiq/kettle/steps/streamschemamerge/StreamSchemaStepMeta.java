@@ -24,7 +24,10 @@ package com.graphiq.kettle.steps.streamschemamerge;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.eclipse.swt.widgets.Shell;
 import org.pentaho.di.core.CheckResult;
@@ -38,6 +41,7 @@ import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
@@ -70,11 +74,184 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 
 	private static Class<?> PKG = com.graphiq.kettle.steps.streamschemamerge.StreamSchemaStepMeta.class; // for i18n purposes
 
+	static final int WIDE_ROW_FIELDS = 250;  // merged rows wider than this get a warning from check
+
+    /**
+     * How rows from the different streams are combined into the output
+     */
+    public enum MergeMode {
+        UNION,  // rows are passed on in the order they are read
+        SORTED,  // streams are sorted on the sort fields and are merged into one sorted stream
+        DISTINCT,  // like UNION, but rows whose key fields were passed on before are dropped
+        TIME_ORDERED;  // rows are buffered and passed on in the order of the time field, up to the watermark
+
+        /**
+         * Look up a merge mode by name
+         * @param name name of the merge mode
+         * @return the merge mode, UNION if the name is unknown
+         */
+        public static MergeMode getMergeMode(String name) {
+            for (MergeMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            return UNION;
+        }
+    }
+
+    /**
+     * How the step chooses the input rowset to read the next rows from
+     */
+    public enum SchedulingPolicy {
+        ROUND_ROBIN,  // every rowset with rows gets a turn
+        WEIGHTED,  // rowsets get a share of the reads based on the weight of their stream and how full they are
+        PRIORITY,  // streams higher in the list are always read first
+        BACKLOG;  // the fullest rowset is read first
+
+        /**
+         * Look up a scheduling policy by name
+         * @param name name of the scheduling policy
+         * @return the scheduling policy, ROUND_ROBIN if the name is unknown
+         */
+        public static SchedulingPolicy getSchedulingPolicy(String name) {
+            for (SchedulingPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            return ROUND_ROBIN;
+        }
+    }
+
     /**
      * Stores the names of the steps to merge into the output
      */
     private ArrayList<String> stepsToMerge = new ArrayList<String>();
 
+    /**
+     * Share of the reads for each step to merge, used by the weighted scheduling policy
+     */
+    private ArrayList<Integer> stepWeights = new ArrayList<Integer>();
+
+    /**
+     * Replace the hops feeding this step with lock-free ring buffers
+     */
+    private boolean ringBufferInput = false;
+
+    /**
+     * Record the latency of one in this many events in histograms, 0 to turn the histograms off
+     */
+    private String latencySampleInterval = "0";
+
+    /**
+     * Seconds without progress while waiting for row metas or replaying cached rows before the step reports a stall,
+     * 0 to turn the watchdog off
+     */
+    private String stallTimeout = "0";
+
+    /**
+     * Fail the step when it stalls instead of only reporting it
+     */
+    private boolean abortOnStall = false;
+
+    /**
+     * Build the mapping from the fields the transformation expects from each step instead of waiting for the first
+     * row of every stream
+     */
+    private boolean designTimeLayout = false;
+
+    /**
+     * Distinct values per field for which the strings of converted values are shared between rows, 0 to convert every
+     * value separately
+     */
+    private String internCacheSize = "0";
+
+    /**
+     * Milliseconds the step waits for the first row of a stream before it writes the rows of other streams to disk
+     */
+    private String spillDelay = "10";
+
+    /**
+     * Milliseconds the step keeps looking for the rowsets of an info step before it continues without them
+     */
+    private String rowSetTimeout = "10000";
+
+    /**
+     * Milliseconds between two looks for the rowsets of an info step
+     */
+    private String rowSetRetryInterval = "1000";
+
+    /**
+     * Kilobytes of buffer for each file rows are cached in while the step waits for the first row of every stream
+     */
+    private String cacheBufferSize = "8192";
+
+    /**
+     * Megabytes of direct buffers rows are parked in before they are cached on disk, 0 to write them to disk right away
+     */
+    private String offHeapCacheSize = "0";
+
+    /**
+     * How the step chooses the rowset to read from
+     */
+    private SchedulingPolicy schedulingPolicy = SchedulingPolicy.ROUND_ROBIN;
+
+    /**
+     * Number of threads mapping rows to the output layout, 1 maps rows on the step thread
+     */
+    private String mappingThreads = "1";
+
+    /**
+     * Keep the rows of each stream in order when mapping on several threads
+     */
+    private boolean preserveStreamOrder = true;
+
+    /**
+     * How rows are combined into the output
+     */
+    private MergeMode mergeMode = MergeMode.UNION;
+
+    /**
+     * Fields of the merged row the input streams are sorted on
+     */
+    private String[] sortFields = new String[0];
+
+    /**
+     * Sort direction of each sort field
+     */
+    private boolean[] sortAscending = new boolean[0];
+
+    /**
+     * Fields of the merged row rows are compared on by the distinct union, empty to compare all fields
+     */
+    private String[] distinctFields = new String[0];
+
+    /**
+     * Megabytes of row hashes the distinct union keeps in memory before it writes some of them to disk
+     */
+    private String distinctMemory = "64";
+
+    /**
+     * Field of the merged row holding the event time for the time ordered merge
+     */
+    private String timeField = "";
+
+    /**
+     * Milliseconds a row may arrive after later rows of the same stream in the time ordered merge
+     */
+    private String maxLateness = "0";
+
+    /**
+     * Rows the time ordered merge buffers before it passes on its earliest row without waiting for the watermark
+     */
+    private String timeOrderBufferRows = "100000";
+
+    /**
+     * Fields of the merged row used to spread the output over the target rowsets, empty to let Kettle distribute
+     */
+    private String[] partitionFields = new String[0];
+
 	/**
 	 * Constructor should call super() to make sure the base class has a chance to initialize properly.
 	 */
@@ -132,7 +309,29 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 	 * to sensible defaults. The values set here will be used by Spoon when a new step is created.
 	 */
 	public void setDefault() {
-		// intentionally empty
+		mappingThreads = "1";
+		preserveStreamOrder = true;
+		mergeMode = MergeMode.UNION;
+		schedulingPolicy = SchedulingPolicy.ROUND_ROBIN;
+		ringBufferInput = false;
+		latencySampleInterval = "0";
+		stallTimeout = "0";
+		abortOnStall = false;
+		designTimeLayout = false;
+		internCacheSize = "0";
+		spillDelay = "10";
+		rowSetTimeout = "10000";
+		rowSetRetryInterval = "1000";
+		cacheBufferSize = "8192";
+		offHeapCacheSize = "0";
+		sortFields = new String[0];
+		sortAscending = new boolean[0];
+		distinctFields = new String[0];
+		distinctMemory = "64";
+		timeField = "";
+		maxLateness = "0";
+		timeOrderBufferRows = "100000";
+		partitionFields = new String[0];
 	}
 
     /**
@@ -169,6 +368,392 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
         Collections.addAll(stepsToMerge, arrayOfSteps);
     }
 
+    /**
+     * Getter for the weights of the steps to merge
+     * @return weight of each step to merge, 1 for steps without a weight
+     */
+    public int[] getStepWeights() {
+        int[] weights = new int[getNumberOfSteps()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i < stepWeights.size() ? stepWeights.get(i) : 1;
+        }
+        return weights;
+    }
+
+    /**
+     * Set the weights of the steps to merge, in the same order as the steps
+     * @param weights share of the reads for each step, values below 1 are treated as 1
+     */
+    public void setStepWeights(int[] weights) {
+        stepWeights = new ArrayList<Integer>();
+        for (int weight : weights) {
+            stepWeights.add(Math.max(1, weight));
+        }
+    }
+
+    /**
+     * Getter for the scheduling policy
+     * @return how the step chooses the rowset to read from
+     */
+    public SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    /**
+     * Set the scheduling policy
+     * @param schedulingPolicy how the step chooses the rowset to read from
+     */
+    public void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+    }
+
+    /**
+     * Getter for the number of threads that map rows
+     * @return number of mapping threads, may contain variables
+     */
+    public String getMappingThreads() {
+        return mappingThreads;
+    }
+
+    /**
+     * Set the number of threads that map rows
+     * @param mappingThreads number of mapping threads, may contain variables
+     */
+    public void setMappingThreads(String mappingThreads) {
+        this.mappingThreads = mappingThreads;
+    }
+
+    /**
+     * Getter for the stream order setting
+     * @return true if the rows of each stream are kept in order when mapping on several threads
+     */
+    public boolean isPreserveStreamOrder() {
+        return preserveStreamOrder;
+    }
+
+    /**
+     * Set whether the rows of each stream are kept in order when mapping on several threads
+     * @param preserveStreamOrder true to keep rows of each stream in order
+     */
+    public void setPreserveStreamOrder(boolean preserveStreamOrder) {
+        this.preserveStreamOrder = preserveStreamOrder;
+    }
+
+    /**
+     * Getter for the merge mode
+     * @return how rows are combined into the output
+     */
+    public MergeMode getMergeMode() {
+        return mergeMode;
+    }
+
+    /**
+     * Set the merge mode
+     * @param mergeMode how rows are combined into the output
+     */
+    public void setMergeMode(MergeMode mergeMode) {
+        this.mergeMode = mergeMode;
+    }
+
+    /**
+     * Getter for the sort fields
+     * @return names of the fields in the merged row the input streams are sorted on
+     */
+    public String[] getSortFields() {
+        return sortFields;
+    }
+
+    /**
+     * Getter for the sort directions
+     * @return true for each sort field that is sorted ascending
+     */
+    public boolean[] getSortAscending() {
+        return sortAscending;
+    }
+
+    /**
+     * Set the fields the input streams are sorted on
+     * @param sortFields names of the fields in the merged row
+     * @param sortAscending true for each field that is sorted ascending
+     */
+    public void setSortFields(String[] sortFields, boolean[] sortAscending) {
+        this.sortFields = sortFields;
+        this.sortAscending = sortAscending;
+    }
+
+    /**
+     * Getter for the ring buffer setting
+     * @return true if the hops feeding this step are replaced with lock-free ring buffers
+     */
+    public boolean isRingBufferInput() {
+        return ringBufferInput;
+    }
+
+    /**
+     * Set whether the hops feeding this step are replaced with lock-free ring buffers
+     * @param ringBufferInput true to use ring buffers
+     */
+    public void setRingBufferInput(boolean ringBufferInput) {
+        this.ringBufferInput = ringBufferInput;
+    }
+
+    /**
+     * Getter for the latency sample interval
+     * @return record one in this many events, 0 if latencies aren't recorded, may contain variables
+     */
+    public String getLatencySampleInterval() {
+        return latencySampleInterval;
+    }
+
+    /**
+     * Set the latency sample interval
+     * @param latencySampleInterval record one in this many events, 0 to turn recording off, may contain variables
+     */
+    public void setLatencySampleInterval(String latencySampleInterval) {
+        this.latencySampleInterval = latencySampleInterval;
+    }
+
+    /**
+     * Getter for the stall timeout
+     * @return seconds without progress before a stall is reported, 0 if the watchdog is off, may contain variables
+     */
+    public String getStallTimeout() {
+        return stallTimeout;
+    }
+
+    /**
+     * Set the stall timeout
+     * @param stallTimeout seconds without progress before a stall is reported, 0 to turn the watchdog off
+     */
+    public void setStallTimeout(String stallTimeout) {
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Getter for the abort on stall setting
+     * @return true if the step fails when it stalls
+     */
+    public boolean isAbortOnStall() {
+        return abortOnStall;
+    }
+
+    /**
+     * Set whether the step fails when it stalls
+     * @param abortOnStall true to fail the step, false to only report the stall
+     */
+    public void setAbortOnStall(boolean abortOnStall) {
+        this.abortOnStall = abortOnStall;
+    }
+
+    /**
+     * Getter for the design time layout setting
+     * @return true if the mapping is built from the fields the transformation expects from each step
+     */
+    public boolean isDesignTimeLayout() {
+        return designTimeLayout;
+    }
+
+    /**
+     * Set whether the mapping is built from the fields the transformation expects from each step
+     * @param designTimeLayout true to start passing rows on right away, false to wait for the first row of every stream
+     */
+    public void setDesignTimeLayout(boolean designTimeLayout) {
+        this.designTimeLayout = designTimeLayout;
+    }
+
+    /**
+     * Getter for the intern cache size
+     * @return distinct values per field whose converted strings are shared, 0 if they aren't, may contain variables
+     */
+    public String getInternCacheSize() {
+        return internCacheSize;
+    }
+
+    /**
+     * Set the intern cache size
+     * @param internCacheSize distinct values per field whose converted strings are shared, 0 to convert every value
+     *                        separately
+     */
+    public void setInternCacheSize(String internCacheSize) {
+        this.internCacheSize = internCacheSize;
+    }
+
+    /**
+     * Getter for the spill delay
+     * @return milliseconds to wait for the first row of a stream before caching rows on disk, may contain variables
+     */
+    public String getSpillDelay() {
+        return spillDelay;
+    }
+
+    /**
+     * Set the spill delay
+     * @param spillDelay milliseconds to wait for the first row of a stream before caching rows on disk
+     */
+    public void setSpillDelay(String spillDelay) {
+        this.spillDelay = spillDelay;
+    }
+
+    /**
+     * Getter for the rowset timeout
+     * @return milliseconds to keep looking for the rowsets of an info step, may contain variables
+     */
+    public String getRowSetTimeout() {
+        return rowSetTimeout;
+    }
+
+    /**
+     * Set the rowset timeout
+     * @param rowSetTimeout milliseconds to keep looking for the rowsets of an info step
+     */
+    public void setRowSetTimeout(String rowSetTimeout) {
+        this.rowSetTimeout = rowSetTimeout;
+    }
+
+    /**
+     * Getter for the rowset retry interval
+     * @return milliseconds between two looks for the rowsets of an info step, may contain variables
+     */
+    public String getRowSetRetryInterval() {
+        return rowSetRetryInterval;
+    }
+
+    /**
+     * Set the rowset retry interval
+     * @param rowSetRetryInterval milliseconds between two looks for the rowsets of an info step
+     */
+    public void setRowSetRetryInterval(String rowSetRetryInterval) {
+        this.rowSetRetryInterval = rowSetRetryInterval;
+    }
+
+    /**
+     * Getter for the cache buffer size
+     * @return kilobytes of buffer for each cache file, may contain variables
+     */
+    public String getCacheBufferSize() {
+        return cacheBufferSize;
+    }
+
+    /**
+     * Set the cache buffer size
+     * @param cacheBufferSize kilobytes of buffer for each cache file
+     */
+    public void setCacheBufferSize(String cacheBufferSize) {
+        this.cacheBufferSize = cacheBufferSize;
+    }
+
+    /**
+     * Getter for the off heap cache size
+     * @return megabytes of direct buffers for cached rows, 0 if rows go to disk right away, may contain variables
+     */
+    public String getOffHeapCacheSize() {
+        return offHeapCacheSize;
+    }
+
+    /**
+     * Set the off heap cache size
+     * @param offHeapCacheSize megabytes of direct buffers for cached rows, 0 to write them to disk right away
+     */
+    public void setOffHeapCacheSize(String offHeapCacheSize) {
+        this.offHeapCacheSize = offHeapCacheSize;
+    }
+
+    /**
+     * Getter for the distinct fields
+     * @return names of the fields in the merged row the distinct union compares rows on, empty to compare all fields
+     */
+    public String[] getDistinctFields() {
+        return distinctFields;
+    }
+
+    /**
+     * Set the fields the distinct union compares rows on
+     * @param distinctFields names of the fields in the merged row, empty to compare all fields
+     */
+    public void setDistinctFields(String[] distinctFields) {
+        this.distinctFields = distinctFields;
+    }
+
+    /**
+     * Getter for the distinct union memory
+     * @return megabytes of row hashes kept in memory, may contain variables
+     */
+    public String getDistinctMemory() {
+        return distinctMemory;
+    }
+
+    /**
+     * Set the memory of the distinct union
+     * @param distinctMemory megabytes of row hashes kept in memory before some of them are written to disk
+     */
+    public void setDistinctMemory(String distinctMemory) {
+        this.distinctMemory = distinctMemory;
+    }
+
+    /**
+     * Getter for the time field
+     * @return name of the field in the merged row holding the event time, may contain variables
+     */
+    public String getTimeField() {
+        return timeField;
+    }
+
+    /**
+     * Set the field the time ordered merge orders rows on
+     * @param timeField name of a Date, Timestamp or Integer field in the merged row
+     */
+    public void setTimeField(String timeField) {
+        this.timeField = timeField;
+    }
+
+    /**
+     * Getter for the maximum lateness
+     * @return milliseconds a row may arrive after later rows of the same stream, may contain variables
+     */
+    public String getMaxLateness() {
+        return maxLateness;
+    }
+
+    /**
+     * Set the maximum lateness of the time ordered merge
+     * @param maxLateness milliseconds a row may arrive after later rows of the same stream
+     */
+    public void setMaxLateness(String maxLateness) {
+        this.maxLateness = maxLateness;
+    }
+
+    /**
+     * Getter for the buffer size of the time ordered merge
+     * @return rows buffered before the earliest row is passed on regardless of the watermark, may contain variables
+     */
+    public String getTimeOrderBufferRows() {
+        return timeOrderBufferRows;
+    }
+
+    /**
+     * Set the buffer size of the time ordered merge
+     * @param timeOrderBufferRows rows buffered before the earliest row is passed on regardless of the watermark
+     */
+    public void setTimeOrderBufferRows(String timeOrderBufferRows) {
+        this.timeOrderBufferRows = timeOrderBufferRows;
+    }
+
+    /**
+     * Getter for the partition fields
+     * @return names of the fields in the merged row the output is partitioned on, empty if it isn't partitioned
+     */
+    public String[] getPartitionFields() {
+        return partitionFields;
+    }
+
+    /**
+     * Set the fields the output is partitioned on
+     * @param partitionFields names of the fields in the merged row
+     */
+    public void setPartitionFields(String[] partitionFields) {
+        this.partitionFields = partitionFields;
+    }
+
     /**
 	 * This method is used when a step is duplicated in Spoon. It needs to return a deep copy of this
 	 * step meta object. Be sure to create proper deep copies if the step configuration is stored in
@@ -180,7 +765,12 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 	 * @return a deep copy of this
 	 */
 	public Object clone() {
-		Object retval = super.clone();
+		StreamSchemaStepMeta retval = (StreamSchemaStepMeta) super.clone();
+		retval.stepWeights = new ArrayList<Integer>(stepWeights);
+		retval.sortFields = sortFields.clone();
+		retval.sortAscending = sortAscending.clone();
+		retval.distinctFields = distinctFields.clone();
+		retval.partitionFields = partitionFields.clone();
 		return retval;
 	}
 	
@@ -195,12 +785,56 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 	public String getXML() throws KettleValueException {
 		StringBuilder xml = new StringBuilder();
         xml.append( "    <steps>" + Const.CR );
-        for (StreamInterface infoStream : getStepIOMeta().getInfoStreams()) {
+        int[] weights = getStepWeights();
+        List<StreamInterface> infoStreams = getStepIOMeta().getInfoStreams();
+        for ( int i = 0; i < infoStreams.size(); i++ ) {
             xml.append( "      <step>" + Const.CR );
-            xml.append( "        " + XMLHandler.addTagValue( "name", infoStream.getStepname() ) );
+            xml.append( "        " + XMLHandler.addTagValue( "name", infoStreams.get( i ).getStepname() ) );
+            xml.append( "        " + XMLHandler.addTagValue( "weight", i < weights.length ? weights[i] : 1 ) );
             xml.append( "      </step>" + Const.CR );
         }
         xml.append("      </steps>" + Const.CR);
+        xml.append( "    " + XMLHandler.addTagValue( "mapping_threads", mappingThreads ) );
+        xml.append( "    " + XMLHandler.addTagValue( "preserve_stream_order", preserveStreamOrder ) );
+        xml.append( "    " + XMLHandler.addTagValue( "merge_mode", mergeMode.name() ) );
+        xml.append( "    " + XMLHandler.addTagValue( "scheduling_policy", schedulingPolicy.name() ) );
+        xml.append( "    " + XMLHandler.addTagValue( "ring_buffer_input", ringBufferInput ) );
+        xml.append( "    " + XMLHandler.addTagValue( "latency_sample_interval", latencySampleInterval ) );
+        xml.append( "    " + XMLHandler.addTagValue( "stall_timeout", stallTimeout ) );
+        xml.append( "    " + XMLHandler.addTagValue( "abort_on_stall", abortOnStall ) );
+        xml.append( "    " + XMLHandler.addTagValue( "design_time_layout", designTimeLayout ) );
+        xml.append( "    " + XMLHandler.addTagValue( "intern_cache_size", internCacheSize ) );
+        xml.append( "    " + XMLHandler.addTagValue( "spill_delay", spillDelay ) );
+        xml.append( "    " + XMLHandler.addTagValue( "rowset_timeout", rowSetTimeout ) );
+        xml.append( "    " + XMLHandler.addTagValue( "rowset_retry_interval", rowSetRetryInterval ) );
+        xml.append( "    " + XMLHandler.addTagValue( "cache_buffer_size", cacheBufferSize ) );
+        xml.append( "    " + XMLHandler.addTagValue( "off_heap_cache_size", offHeapCacheSize ) );
+        xml.append( "    " + XMLHandler.addTagValue( "distinct_memory", distinctMemory ) );
+        xml.append( "    " + XMLHandler.addTagValue( "time_field", timeField ) );
+        xml.append( "    " + XMLHandler.addTagValue( "max_lateness", maxLateness ) );
+        xml.append( "    " + XMLHandler.addTagValue( "time_order_buffer_rows", timeOrderBufferRows ) );
+        xml.append( "    <sort_fields>" + Const.CR );
+        for ( int i = 0; i < sortFields.length; i++ ) {
+            xml.append( "      <field>" + Const.CR );
+            xml.append( "        " + XMLHandler.addTagValue( "name", sortFields[i] ) );
+            xml.append( "        " + XMLHandler.addTagValue( "ascending", sortAscending[i] ) );
+            xml.append( "      </field>" + Const.CR );
+        }
+        xml.append( "    </sort_fields>" + Const.CR );
+        xml.append( "    <distinct_fields>" + Const.CR );
+        for ( String field : distinctFields ) {
+            xml.append( "      <field>" + Const.CR );
+            xml.append( "        " + XMLHandler.addTagValue( "name", field ) );
+            xml.append( "      </field>" + Const.CR );
+        }
+        xml.append( "    </distinct_fields>" + Const.CR );
+        xml.append( "    <partition_fields>" + Const.CR );
+        for ( String field : partitionFields ) {
+            xml.append( "      <field>" + Const.CR );
+            xml.append( "        " + XMLHandler.addTagValue( "name", field ) );
+            xml.append( "      </field>" + Const.CR );
+        }
+        xml.append( "    </partition_fields>" + Const.CR );
 		return xml.toString();
 	}
 
@@ -232,6 +866,7 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
             int nrsteps = XMLHandler.countNodes( steps, "step" );
 
             stepsToMerge.clear();
+            stepWeights.clear();
 
             // we need to add a stream for each step we want to merge to ensure it gets treated as an info stream
             for ( int i = 0; i < nrsteps; i++ ) {
@@ -244,8 +879,55 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
                 Node fnode = XMLHandler.getSubNodeByNr( steps, "step", i );
                 String name = XMLHandler.getTagValue(fnode, "name");
                 stepsToMerge.add(name);
+                stepWeights.add(Math.max(1, Const.toInt(XMLHandler.getTagValue(fnode, "weight"), 1)));
                 infoStreams.get(i).setSubject(name);
             }
+
+            mappingThreads = Const.NVL( XMLHandler.getTagValue( stepnode, "mapping_threads" ), "1" );
+            preserveStreamOrder = !"N".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "preserve_stream_order" ) );
+            mergeMode = MergeMode.getMergeMode( XMLHandler.getTagValue( stepnode, "merge_mode" ) );
+            schedulingPolicy = SchedulingPolicy.getSchedulingPolicy( XMLHandler.getTagValue( stepnode, "scheduling_policy" ) );
+            ringBufferInput = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "ring_buffer_input" ) );
+            latencySampleInterval = Const.NVL( XMLHandler.getTagValue( stepnode, "latency_sample_interval" ), "0" );
+            stallTimeout = Const.NVL( XMLHandler.getTagValue( stepnode, "stall_timeout" ), "0" );
+            abortOnStall = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "abort_on_stall" ) );
+            designTimeLayout = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "design_time_layout" ) );
+            internCacheSize = Const.NVL( XMLHandler.getTagValue( stepnode, "intern_cache_size" ), "0" );
+            spillDelay = Const.NVL( XMLHandler.getTagValue( stepnode, "spill_delay" ), "10" );
+            rowSetTimeout = Const.NVL( XMLHandler.getTagValue( stepnode, "rowset_timeout" ), "10000" );
+            rowSetRetryInterval = Const.NVL( XMLHandler.getTagValue( stepnode, "rowset_retry_interval" ), "1000" );
+            cacheBufferSize = Const.NVL( XMLHandler.getTagValue( stepnode, "cache_buffer_size" ), "8192" );
+            offHeapCacheSize = Const.NVL( XMLHandler.getTagValue( stepnode, "off_heap_cache_size" ), "0" );
+            distinctMemory = Const.NVL( XMLHandler.getTagValue( stepnode, "distinct_memory" ), "64" );
+            timeField = Const.NVL( XMLHandler.getTagValue( stepnode, "time_field" ), "" );
+            maxLateness = Const.NVL( XMLHandler.getTagValue( stepnode, "max_lateness" ), "0" );
+            timeOrderBufferRows = Const.NVL( XMLHandler.getTagValue( stepnode, "time_order_buffer_rows" ), "100000" );
+
+            Node sortNode = XMLHandler.getSubNode( stepnode, "sort_fields" );
+            int nrSortFields = XMLHandler.countNodes( sortNode, "field" );
+            sortFields = new String[nrSortFields];
+            sortAscending = new boolean[nrSortFields];
+            for ( int i = 0; i < nrSortFields; i++ ) {
+                Node fnode = XMLHandler.getSubNodeByNr( sortNode, "field", i );
+                sortFields[i] = XMLHandler.getTagValue( fnode, "name" );
+                sortAscending[i] = !"N".equalsIgnoreCase( XMLHandler.getTagValue( fnode, "ascending" ) );
+            }
+
+            Node distinctNode = XMLHandler.getSubNode( stepnode, "distinct_fields" );
+            int nrDistinctFields = XMLHandler.countNodes( distinctNode, "field" );
+            distinctFields = new String[nrDistinctFields];
+            for ( int i = 0; i < nrDistinctFields; i++ ) {
+                Node fnode = XMLHandler.getSubNodeByNr( distinctNode, "field", i );
+                distinctFields[i] = XMLHandler.getTagValue( fnode, "name" );
+            }
+
+            Node partitionNode = XMLHandler.getSubNode( stepnode, "partition_fields" );
+            int nrPartitionFields = XMLHandler.countNodes( partitionNode, "field" );
+            partitionFields = new String[nrPartitionFields];
+            for ( int i = 0; i < nrPartitionFields; i++ ) {
+                Node fnode = XMLHandler.getSubNodeByNr( partitionNode, "field", i );
+                partitionFields[i] = XMLHandler.getTagValue( fnode, "name" );
+            }
         } catch ( Exception e ) {
             throw new KettleXMLException( "Unable to load step info from XML", e );
         }
@@ -265,6 +947,39 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 		try{
             for (int i = 0; i < stepsToMerge.size(); i++) {
                 rep.saveJobEntryAttribute(id_transformation, id_step, i, stepsToMerge.get(i), "mergeStepName");
+            }
+            int[] weights = getStepWeights();
+            for (int i = 0; i < weights.length; i++) {
+                rep.saveStepAttribute(id_transformation, id_step, i, "mergeStepWeight", weights[i]);
+            }
+            rep.saveStepAttribute(id_transformation, id_step, "mapping_threads", mappingThreads);
+            rep.saveStepAttribute(id_transformation, id_step, "preserve_stream_order", preserveStreamOrder);
+            rep.saveStepAttribute(id_transformation, id_step, "merge_mode", mergeMode.name());
+            rep.saveStepAttribute(id_transformation, id_step, "scheduling_policy", schedulingPolicy.name());
+            rep.saveStepAttribute(id_transformation, id_step, "ring_buffer_input", ringBufferInput);
+            rep.saveStepAttribute(id_transformation, id_step, "latency_sample_interval", latencySampleInterval);
+            rep.saveStepAttribute(id_transformation, id_step, "stall_timeout", stallTimeout);
+            rep.saveStepAttribute(id_transformation, id_step, "abort_on_stall", abortOnStall);
+            rep.saveStepAttribute(id_transformation, id_step, "design_time_layout", designTimeLayout);
+            rep.saveStepAttribute(id_transformation, id_step, "intern_cache_size", internCacheSize);
+            rep.saveStepAttribute(id_transformation, id_step, "spill_delay", spillDelay);
+            rep.saveStepAttribute(id_transformation, id_step, "rowset_timeout", rowSetTimeout);
+            rep.saveStepAttribute(id_transformation, id_step, "rowset_retry_interval", rowSetRetryInterval);
+            rep.saveStepAttribute(id_transformation, id_step, "cache_buffer_size", cacheBufferSize);
+            rep.saveStepAttribute(id_transformation, id_step, "off_heap_cache_size", offHeapCacheSize);
+            rep.saveStepAttribute(id_transformation, id_step, "distinct_memory", distinctMemory);
+            rep.saveStepAttribute(id_transformation, id_step, "time_field", timeField);
+            rep.saveStepAttribute(id_transformation, id_step, "max_lateness", maxLateness);
+            rep.saveStepAttribute(id_transformation, id_step, "time_order_buffer_rows", timeOrderBufferRows);
+            for (int i = 0; i < sortFields.length; i++) {
+                rep.saveStepAttribute(id_transformation, id_step, i, "sort_field_name", sortFields[i]);
+                rep.saveStepAttribute(id_transformation, id_step, i, "sort_field_ascending", sortAscending[i]);
+            }
+            for (int i = 0; i < distinctFields.length; i++) {
+                rep.saveStepAttribute(id_transformation, id_step, i, "distinct_field_name", distinctFields[i]);
+            }
+            for (int i = 0; i < partitionFields.length; i++) {
+                rep.saveStepAttribute(id_transformation, id_step, i, "partition_field_name", partitionFields[i]);
             }
 		}
 		catch(Exception e){
@@ -292,8 +1007,45 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 			for ( int i = 0; i < nrSteps; i++ ) {
 				String name = rep.getStepAttributeString(id_step, i, "mergeStepName");
 				stepsToMerge.add(name);
+				stepWeights.add(Math.max(1, (int) rep.getStepAttributeInteger(id_step, i, "mergeStepWeight")));
 				infoStreams.get(i).setSubject(name);
 			}
+			mappingThreads = Const.NVL(rep.getStepAttributeString(id_step, "mapping_threads"), "1");
+			preserveStreamOrder = rep.getStepAttributeBoolean(id_step, 0, "preserve_stream_order", true);
+			mergeMode = MergeMode.getMergeMode(rep.getStepAttributeString(id_step, "merge_mode"));
+			schedulingPolicy = SchedulingPolicy.getSchedulingPolicy(rep.getStepAttributeString(id_step, "scheduling_policy"));
+			ringBufferInput = rep.getStepAttributeBoolean(id_step, 0, "ring_buffer_input", false);
+			latencySampleInterval = Const.NVL(rep.getStepAttributeString(id_step, "latency_sample_interval"), "0");
+			stallTimeout = Const.NVL(rep.getStepAttributeString(id_step, "stall_timeout"), "0");
+			abortOnStall = rep.getStepAttributeBoolean(id_step, 0, "abort_on_stall", false);
+			designTimeLayout = rep.getStepAttributeBoolean(id_step, 0, "design_time_layout", false);
+			internCacheSize = Const.NVL(rep.getStepAttributeString(id_step, "intern_cache_size"), "0");
+			spillDelay = Const.NVL(rep.getStepAttributeString(id_step, "spill_delay"), "10");
+			rowSetTimeout = Const.NVL(rep.getStepAttributeString(id_step, "rowset_timeout"), "10000");
+			rowSetRetryInterval = Const.NVL(rep.getStepAttributeString(id_step, "rowset_retry_interval"), "1000");
+			cacheBufferSize = Const.NVL(rep.getStepAttributeString(id_step, "cache_buffer_size"), "8192");
+			offHeapCacheSize = Const.NVL(rep.getStepAttributeString(id_step, "off_heap_cache_size"), "0");
+			distinctMemory = Const.NVL(rep.getStepAttributeString(id_step, "distinct_memory"), "64");
+			timeField = Const.NVL(rep.getStepAttributeString(id_step, "time_field"), "");
+			maxLateness = Const.NVL(rep.getStepAttributeString(id_step, "max_lateness"), "0");
+			timeOrderBufferRows = Const.NVL(rep.getStepAttributeString(id_step, "time_order_buffer_rows"), "100000");
+			int nrSortFields = rep.countNrStepAttributes(id_step, "sort_field_name");
+			sortFields = new String[nrSortFields];
+			sortAscending = new boolean[nrSortFields];
+			for (int i = 0; i < nrSortFields; i++) {
+				sortFields[i] = rep.getStepAttributeString(id_step, i, "sort_field_name");
+				sortAscending[i] = rep.getStepAttributeBoolean(id_step, i, "sort_field_ascending", true);
+			}
+			int nrDistinctFields = rep.countNrStepAttributes(id_step, "distinct_field_name");
+			distinctFields = new String[nrDistinctFields];
+			for (int i = 0; i < nrDistinctFields; i++) {
+				distinctFields[i] = rep.getStepAttributeString(id_step, i, "distinct_field_name");
+			}
+			int nrPartitionFields = rep.countNrStepAttributes(id_step, "partition_field_name");
+			partitionFields = new String[nrPartitionFields];
+			for (int i = 0; i < nrPartitionFields; i++) {
+				partitionFields[i] = rep.getStepAttributeString(id_step, i, "partition_field_name");
+			}
 		}
 		catch(Exception e){
 			throw new KettleException(BaseMessages.getString(PKG, "StreamSchemaStep.RepoLoadError"), e);
@@ -359,8 +1111,151 @@ public class StreamSchemaStepMeta extends BaseStepMeta implements StepMetaInterf
 		} else {
 			cr = new CheckResult(CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(PKG, "StreamSchemaStep.CheckResult.ReceivingRows.ERROR"), stepMeta);
 			remarks.add(cr);
-		}	
-    	
+		}
+
+		// look up the layout of every infostream and check for layouts that are expensive to merge
+		List<StreamInterface> infoStreams = getStepIOMeta().getInfoStreams();
+		RowMetaInterface[] infoRowMetas = new RowMetaInterface[infoStreams.size()];
+		boolean foundLayout = false;
+		for (int i = 0; i < infoStreams.size(); i++) {
+			StreamInterface stream = infoStreams.get(i);
+			StepMeta infoStep = stream.getStepMeta();
+			if (infoStep == null) {
+				remarks.add(new CheckResult(CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(PKG,
+						"StreamSchemaStep.CheckResult.MissingStep", stream.getStepname()), stepMeta));
+				continue;
+			}
+			try {
+				infoRowMetas[i] = transMeta.getStepFields(infoStep);
+				foundLayout = true;
+			} catch (KettleStepException e) {
+				remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG,
+						"StreamSchemaStep.CheckResult.UnknownLayout", infoStep.getName(), e.getMessage()), stepMeta));
+			}
+			String branch = findConditionalSource(transMeta, infoStep, stepMeta, new HashSet<StepMeta>());
+			if (branch != null) {
+				remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG,
+						"StreamSchemaStep.CheckResult.ConditionalStream", infoStep.getName(), branch), stepMeta));
+			}
+		}
+		if (!foundLayout) {
+			return;
+		}
+
+		SchemaMapper schemaMapping;
+		try {
+			schemaMapping = new SchemaMapper(infoRowMetas);
+		} catch (KettlePluginException e) {
+			remarks.add(new CheckResult(CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(PKG,
+					"StreamSchemaStep.CheckResult.MergeFailed", e.getMessage()), stepMeta));
+			return;
+		}
+		RowMetaInterface merged = schemaMapping.getRowMeta();
+		boolean expensive = false;
+
+		if (!schemaMapping.getConvertToString().isEmpty()) {
+			StringBuilder fields = new StringBuilder();
+			for (int pos : new TreeSet<Integer>(schemaMapping.getConvertToString())) {
+				String name = merged.getValueMeta(pos).getName();
+				fields.append(fields.length() > 0 ? ", " : "").append(name).append(" (");
+				appendFieldVariants(fields, infoStreams, infoRowMetas, name, false);
+				fields.append(')');
+			}
+			remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG,
+					"StreamSchemaStep.CheckResult.Conversions", schemaMapping.getConvertToString().size(), fields), stepMeta));
+			expensive = true;
+		}
+
+		StringBuilder storageConflicts = new StringBuilder();
+		for (int pos = 0; pos < merged.size(); pos++) {
+			String name = merged.getValueMeta(pos).getName();
+			int storageType = -1;
+			for (RowMetaInterface rowMeta : infoRowMetas) {
+				int index = rowMeta == null ? -1 : rowMeta.indexOfValue(name);
+				if (index < 0) {
+					continue;
+				}
+				int fieldStorage = rowMeta.getValueMeta(index).getStorageType();
+				if (storageType >= 0 && fieldStorage != storageType) {
+					storageConflicts.append(storageConflicts.length() > 0 ? ", " : "").append(name).append(" (");
+					appendFieldVariants(storageConflicts, infoStreams, infoRowMetas, name, true);
+					storageConflicts.append(')');
+					break;
+				}
+				storageType = fieldStorage;
+			}
+		}
+		if (storageConflicts.length() > 0) {
+			remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG,
+					"StreamSchemaStep.CheckResult.StorageConflicts", storageConflicts), stepMeta));
+			expensive = true;
+		}
+
+		if (merged.size() > WIDE_ROW_FIELDS) {
+			remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG,
+					"StreamSchemaStep.CheckResult.WideRow", merged.size(), WIDE_ROW_FIELDS), stepMeta));
+			expensive = true;
+		}
+
+		if (!expensive) {
+			remarks.add(new CheckResult(CheckResult.TYPE_RESULT_OK, BaseMessages.getString(PKG,
+					"StreamSchemaStep.CheckResult.Layout.OK", merged.size()), stepMeta));
+		}
+	}
+
+	/**
+	 * Walk back from a step to find a step that only sends part of its rows down this path: a step with targeted
+	 * output like Filter rows or Switch / Case, or error handling. The path may then never see a row, which leaves the
+	 * merge waiting for the layout of the stream and spilling the rows of the other streams to disk. The info step
+	 * itself is checked first, since it is the step most likely to branch.
+	 *
+	 * @param transMeta	the transformation
+	 * @param step		step to start from
+	 * @param next		step the rows of step go to
+	 * @param visited	steps already looked at
+	 * @return name of the step that branches or null if every row reaches the step
+	 */
+	private static String findConditionalSource(TransMeta transMeta, StepMeta step, StepMeta next,
+												Set<StepMeta> visited) {
+		if (!visited.add(step)) {
+			return null;
+		}
+		StepMetaInterface meta = step.getStepMetaInterface();
+		if (step.isSendingErrorRowsToStep(next)
+				|| (meta != null && !meta.getStepIOMeta().getTargetStreams().isEmpty())) {
+			return step.getName();
+		}
+		for (StepMeta previous : transMeta.findPreviousSteps(step)) {
+			String branch = findConditionalSource(transMeta, previous, step, visited);
+			if (branch != null) {
+				return branch;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Describe a field as every infostream sends it, like "step A: Integer, step B: String"
+	 *
+	 * @param text			text to append to
+	 * @param infoStreams	the infostreams
+	 * @param infoRowMetas	layout of each infostream, null if it isn't known
+	 * @param name			name of the field
+	 * @param storage		describe the storage type instead of the data type
+	 */
+	private static void appendFieldVariants(StringBuilder text, List<StreamInterface> infoStreams,
+											RowMetaInterface[] infoRowMetas, String name, boolean storage) {
+		boolean first = true;
+		for (int i = 0; i < infoRowMetas.length; i++) {
+			int index = infoRowMetas[i] == null ? -1 : infoRowMetas[i].indexOfValue(name);
+			if (index < 0) {
+				continue;
+			}
+			ValueMetaInterface field = infoRowMetas[i].getValueMeta(index);
+			text.append(first ? "" : ", ").append(infoStreams.get(i).getStepname()).append(": ")
+					.append(storage ? ValueMetaInterface.storageTypeCodes[field.getStorageType()] : field.getTypeDesc());
+			first = false;
+		}
 	}
 
 	@Override
@@ -0,0 +1,194 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Exposes the state of a running copy of the step over JMX, so a stalled merge can be looked at without turning on
+ * row level logging. Values are read from the step data without synchronization and can be slightly behind.
+ */
+public class StreamSchemaStepMonitor implements StreamSchemaStepMonitorMBean {
+
+	private static final String DOMAIN = "com.graphiq.kettle";
+
+	private final StreamSchemaStep step;
+	private final StreamSchemaStepData data;
+
+	/**
+	 * @param step step to monitor
+	 * @param data data of the step
+	 */
+	public StreamSchemaStepMonitor(StreamSchemaStep step, StreamSchemaStepData data) {
+		this.step = step;
+		this.data = data;
+	}
+
+	/**
+	 * Register a monitor for a step copy with the platform MBean server. Failures are logged, since monitoring isn't
+	 * worth failing the transformation for.
+	 *
+	 * @param step step to monitor
+	 * @param data data of the step
+	 * @param log log channel of the step
+	 * @return name the monitor was registered under, null if it couldn't be registered
+	 */
+	public static ObjectName register(StreamSchemaStep step, StreamSchemaStepData data, LogChannelInterface log) {
+		try {
+			String trans = step.getTrans() == null ? null : step.getTrans().getName();
+			StringBuilder name = new StringBuilder(DOMAIN).append(":type=StreamSchemaStep");
+			name.append(",transformation=").append(ObjectName.quote(String.valueOf(trans)));
+			name.append(",step=").append(ObjectName.quote(String.valueOf(step.getStepname())));
+			name.append(",copy=").append(step.getCopy());
+			// the same transformation can run more than once at the same time
+			name.append(",instance=").append(Integer.toHexString(System.identityHashCode(step)));
+			ObjectName objectName = new ObjectName(name.toString());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StreamSchemaStepMonitor(step, data), objectName);
+			return objectName;
+		} catch (Exception e) {
+			log.logBasic("Unable to register JMX monitor: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Unregister a monitor registered with {@link #register}
+	 *
+	 * @param objectName name the monitor was registered under, may be null
+	 * @param log log channel of the step
+	 */
+	public static void unregister(ObjectName objectName, LogChannelInterface log) {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (Exception e) {
+			log.logBasic("Unable to unregister JMX monitor: " + e.getMessage());
+		}
+	}
+
+	public String getPhase() {
+		return data.phase.name();
+	}
+
+	public String[] getStreamNames() {
+		String[] names = new String[data.metrics.getNumStreams()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = data.metrics.getStreamName(i);
+		}
+		return names;
+	}
+
+	public boolean[] getRowMetasFound() {
+		boolean[] found = new boolean[data.metrics.getNumStreams()];
+		RowMetaInterface[] rowMetas = data.rowMetas;
+		if (rowMetas != null) {
+			for (int i = 0; i < found.length && i < rowMetas.length; i++) {
+				found[i] = rowMetas[i] != null;
+			}
+		}
+		return found;
+	}
+
+	public long getNumBufferedRows() {
+		return data.numBufferedRows;
+	}
+
+	public long[] getSpillBytes() {
+		long[] bytes = new long[data.metrics.getNumStreams()];
+		RowSetCache cache = data.cache;
+		int[] rowSetStreams = data.rowSetStreams;
+		if (cache != null && rowSetStreams != null) {
+			// the metrics only get the sizes once discovery is over, the cache knows them while it is being written
+			for (int source = 0; source < rowSetStreams.length; source++) {
+				bytes[rowSetStreams[source]] += cache.getBytesWritten(source);
+			}
+		}
+		return bytes;
+	}
+
+	public long[] getRowsSpilled() {
+		long[] rows = new long[data.metrics.getNumStreams()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = data.metrics.getRowsSpilled(i);
+		}
+		return rows;
+	}
+
+	public long[] getRowsReplayed() {
+		long[] rows = new long[data.metrics.getNumStreams()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = data.metrics.getRowsReplayed(i);
+		}
+		return rows;
+	}
+
+	public double getReplayProgress() {
+		long spilled = 0;
+		long replayed = 0;
+		for (int i = 0; i < data.metrics.getNumStreams(); i++) {
+			spilled += data.metrics.getRowsSpilled(i);
+			replayed += data.metrics.getRowsReplayed(i);
+		}
+		return spilled == 0 ? 1.0 : (double) replayed / spilled;
+	}
+
+	public long[] getRowsReceived() {
+		long[] rows = new long[data.metrics.getNumStreams()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = data.metrics.getRowsReceived(i);
+		}
+		return rows;
+	}
+
+	public long getRowsWritten() {
+		return step.getLinesWritten();
+	}
+
+	public double getRowsPerSecond() {
+		long started = data.startMillis;
+		if (started == 0) {
+			return 0;
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - started);
+		return step.getLinesWritten() * 1000.0 / elapsed;
+	}
+
+	public String[] getLatencyHistograms() {
+		List<LatencyHistogram> histograms = StreamSchemaStep.getLatencyHistograms(data);
+		String[] summaries = new String[histograms.size()];
+		for (int i = 0; i < summaries.length; i++) {
+			summaries[i] = histograms.get(i).getSummary();
+		}
+		return summaries;
+	}
+}
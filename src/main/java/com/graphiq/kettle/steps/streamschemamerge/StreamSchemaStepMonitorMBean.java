@@ -0,0 +1,88 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+/**
+ * Live state of a running copy of the step, exposed over JMX
+ */
+public interface StreamSchemaStepMonitorMBean {
+
+	/**
+	 * @return what the step is doing: looking for rowsets, waiting for row metas, replaying cached rows or merging
+	 */
+	String getPhase();
+
+	/**
+	 * @return names of the steps sending the infostreams
+	 */
+	String[] getStreamNames();
+
+	/**
+	 * @return for each infostream, true if its row meta is known
+	 */
+	boolean[] getRowMetasFound();
+
+	/**
+	 * @return number of cached rows that haven't been replayed yet
+	 */
+	long getNumBufferedRows();
+
+	/**
+	 * @return bytes written to the row cache for each infostream
+	 */
+	long[] getSpillBytes();
+
+	/**
+	 * @return rows written to the row cache for each infostream
+	 */
+	long[] getRowsSpilled();
+
+	/**
+	 * @return rows read back from the row cache for each infostream
+	 */
+	long[] getRowsReplayed();
+
+	/**
+	 * @return fraction of the cached rows that has been replayed, 1 if nothing was cached
+	 */
+	double getReplayProgress();
+
+	/**
+	 * @return rows taken off the rowsets of each infostream
+	 */
+	long[] getRowsReceived();
+
+	/**
+	 * @return rows passed on by the step
+	 */
+	long getRowsWritten();
+
+	/**
+	 * @return rows passed on per second since the step started processing
+	 */
+	double getRowsPerSecond();
+
+	/**
+	 * @return summary of each latency histogram, empty if latencies aren't recorded
+	 */
+	String[] getLatencyHistograms();
+}
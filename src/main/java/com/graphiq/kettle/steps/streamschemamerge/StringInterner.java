@@ -0,0 +1,103 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of the strings the values of one field are converted to. When a field with few distinct values, like a
+ * status code or a flag, is converted to String on every row, each row would otherwise get its own copy of the same
+ * string. The cache hands out one shared instance per value and skips the conversion for values it has seen.
+ *
+ * The hit rate is sampled over blocks of lookups. A field with too many distinct values for the cache to pay off turns
+ * the cache off for good and frees it. The counters aren't synchronized, so with several mapping threads they are
+ * approximate, which is good enough to make that decision.
+ */
+public class StringInterner {
+
+	static final int SAMPLE_SIZE = 4096;  // lookups per hit rate sample
+	static final double MIN_HIT_RATE = 0.5;  // hit rate below which the cache is turned off
+
+	private final int maxEntries;
+	private final ConcurrentHashMap<Object, String> cache;
+	private volatile boolean enabled = true;
+	private int lookups;  // lookups in the current sample
+	private int hits;  // hits in the current sample
+
+	/**
+	 * @param maxEntries maximum number of distinct values kept, values seen after the cache is full are converted
+	 *                   every time
+	 */
+	public StringInterner(int maxEntries) {
+		this.maxEntries = maxEntries;
+		cache = new ConcurrentHashMap<Object, String>(Math.min(maxEntries, 1024));
+	}
+
+	/**
+	 * Convert a value to a String, reusing the string of an earlier equal value if there is one
+	 * @param value value to convert, not null
+	 * @return the value as a String
+	 */
+	public String toString(Object value) {
+		if (!enabled || value instanceof Date) {
+			// dates can be changed after they were used as a key, and rarely repeat anyway
+			return value.toString();
+		}
+		String converted = cache.get(value);
+		if (converted != null) {
+			hits++;
+		} else {
+			converted = value.toString();
+			if (cache.size() < maxEntries) {
+				String existing = cache.putIfAbsent(value, converted);
+				if (existing != null) {
+					converted = existing;
+				}
+			}
+		}
+		if (++lookups >= SAMPLE_SIZE) {
+			if (hits < SAMPLE_SIZE * MIN_HIT_RATE) {
+				enabled = false;
+				cache.clear();
+			}
+			lookups = 0;
+			hits = 0;
+		}
+		return converted;
+	}
+
+	/**
+	 * @return false if the cache was turned off because the field has too many distinct values
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return number of distinct values in the cache
+	 */
+	public int size() {
+		return cache.size();
+	}
+}
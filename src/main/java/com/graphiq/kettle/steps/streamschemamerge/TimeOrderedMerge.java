@@ -0,0 +1,253 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Puts the merged rows in event time order without sorting all of them. Every source is expected to be roughly in
+ * time order, no row arriving more than the allowed lateness after a later row of the same source. The watermark of a
+ * source is the latest time it sent minus the lateness, and a buffered row is passed on once its time is at or before
+ * the lowest watermark of the sources that may still send rows.
+ *
+ * Rows are held in a binary heap on their time, with rows of equal time coming out in the order they arrived. When
+ * more rows are buffered than allowed, for instance because one source is idle and holds the watermark back, the
+ * earliest row is passed on regardless. Rows without a time are passed on right away.
+ */
+public class TimeOrderedMerge {
+
+	private final ValueMetaInterface timeMeta;
+	private final int timeField;  // position of the time field in the merged rows
+	private final long lateness;  // milliseconds a row may arrive after later rows of the same source
+	private final int maxBuffered;
+
+	private final long[] latest;  // latest time sent by each source, Long.MIN_VALUE if it hasn't sent a time yet
+	private final boolean[] done;  // sources that won't send more rows
+
+	// heap of buffered rows, ordered on time and arrival
+	private long[] times = new long[64];
+	private long[] arrivals = new long[64];
+	private Object[][] rows = new Object[64][];
+	private int size;
+	private long arrived;
+
+	private long lastTime = Long.MIN_VALUE;  // time of the last row passed on
+	private long lateRows;  // rows passed on after a row with a later time
+	private long forcedRows;  // rows passed on before the watermark reached them
+
+	/**
+	 * @param rowMeta		row meta of the merged rows
+	 * @param timeField		position of the time field, a Date, Timestamp or Integer with milliseconds since the epoch
+	 * @param lateness		milliseconds a row may arrive after later rows of the same source
+	 * @param numSources	number of sources being merged
+	 * @param maxBuffered	number of rows buffered before the earliest row is passed on regardless of the watermark
+	 * @throws KettleException if the time field doesn't hold a time
+	 */
+	public TimeOrderedMerge(RowMetaInterface rowMeta, int timeField, long lateness, int numSources, int maxBuffered)
+			throws KettleException {
+		timeMeta = rowMeta.getValueMeta(timeField);
+		if (!timeMeta.isDate() && timeMeta.getType() != ValueMetaInterface.TYPE_INTEGER) {
+			throw new KettleException(String.format("Time field %s is %s instead of a Date, Timestamp or Integer",
+					timeMeta.getName(), timeMeta.getTypeDesc()));
+		}
+		this.timeField = timeField;
+		this.lateness = Math.max(0, lateness);
+		this.maxBuffered = Math.max(1, maxBuffered);
+		latest = new long[numSources];
+		Arrays.fill(latest, Long.MIN_VALUE);
+		done = new boolean[numSources];
+	}
+
+	/**
+	 * Buffer a row
+	 * @param source source the row came from
+	 * @param row merged row
+	 * @throws KettleValueException if the time can't be read
+	 */
+	public void add(int source, Object[] row) throws KettleValueException {
+		long time = time(row[timeField]);
+		if (time > latest[source]) {
+			latest[source] = time;
+		}
+		if (size == times.length) {
+			int capacity = size * 2;
+			times = Arrays.copyOf(times, capacity);
+			arrivals = Arrays.copyOf(arrivals, capacity);
+			rows = Arrays.copyOf(rows, capacity);
+		}
+		int pos = size++;
+		long arrival = arrived++;
+		// sift up
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (times[parent] < time || (times[parent] == time && arrivals[parent] < arrival)) {
+				break;
+			}
+			move(parent, pos);
+			pos = parent;
+		}
+		times[pos] = time;
+		arrivals[pos] = arrival;
+		rows[pos] = row;
+	}
+
+	/**
+	 * Mark a source as done, so it no longer holds the watermark back
+	 * @param source source that won't send more rows
+	 */
+	public void sourceDone(int source) {
+		done[source] = true;
+	}
+
+	/**
+	 * @param source a source
+	 * @return true if the source was marked as done
+	 */
+	public boolean isSourceDone(int source) {
+		return done[source];
+	}
+
+	/**
+	 * Take the earliest row if the watermark has reached it or too many rows are buffered
+	 * @return the row or null if no row can be passed on yet
+	 */
+	public Object[] poll() {
+		if (size == 0) {
+			return null;
+		}
+		if (times[0] > watermark()) {
+			if (size <= maxBuffered) {
+				return null;
+			}
+			forcedRows++;
+		}
+		return take();
+	}
+
+	/**
+	 * Take the earliest row regardless of the watermark, used once every source is done
+	 * @return the row or null if no rows are buffered
+	 */
+	public Object[] pollAny() {
+		return size == 0 ? null : take();
+	}
+
+	/**
+	 * @return the lowest watermark of the sources that may still send rows, Long.MAX_VALUE if they are all done
+	 */
+	public long watermark() {
+		long watermark = Long.MAX_VALUE;
+		for (int i = 0; i < latest.length; i++) {
+			if (!done[i]) {
+				// a source that hasn't sent a time yet could still send anything
+				long sourceMark = latest[i] == Long.MIN_VALUE ? Long.MIN_VALUE : latest[i] - lateness;
+				watermark = Math.min(watermark, sourceMark);
+			}
+		}
+		return watermark;
+	}
+
+	/**
+	 * @return number of buffered rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of rows that arrived later than the lateness allows and were passed on out of order
+	 */
+	public long getLateRows() {
+		return lateRows;
+	}
+
+	/**
+	 * @return number of rows passed on before the watermark reached them because the buffer was full
+	 */
+	public long getForcedRows() {
+		return forcedRows;
+	}
+
+	private long time(Object value) throws KettleValueException {
+		if (value == null) {
+			return Long.MIN_VALUE;
+		}
+		if (timeMeta.isDate()) {
+			Date date = timeMeta.getDate(value);
+			return date == null ? Long.MIN_VALUE : date.getTime();
+		}
+		Long millis = timeMeta.getInteger(value);
+		return millis == null ? Long.MIN_VALUE : millis;
+	}
+
+	private Object[] take() {
+		long time = times[0];
+		Object[] row = rows[0];
+		if (time != Long.MIN_VALUE) {
+			if (time < lastTime) {
+				lateRows++;
+			} else {
+				lastTime = time;
+			}
+		}
+		size--;
+		long lastTimeInHeap = times[size];
+		long lastArrival = arrivals[size];
+		Object[] lastRow = rows[size];
+		rows[size] = null;
+		if (size > 0) {
+			// sift the last row down from the top
+			int pos = 0;
+			int half = size >>> 1;
+			while (pos < half) {
+				int child = 2 * pos + 1;
+				int right = child + 1;
+				if (right < size && (times[right] < times[child]
+						|| (times[right] == times[child] && arrivals[right] < arrivals[child]))) {
+					child = right;
+				}
+				if (lastTimeInHeap < times[child] || (lastTimeInHeap == times[child] && lastArrival < arrivals[child])) {
+					break;
+				}
+				move(child, pos);
+				pos = child;
+			}
+			times[pos] = lastTimeInHeap;
+			arrivals[pos] = lastArrival;
+			rows[pos] = lastRow;
+		}
+		return row;
+	}
+
+	private void move(int from, int to) {
+		times[to] = times[from];
+		arrivals[to] = arrivals[from];
+		rows[to] = rows[from];
+	}
+}
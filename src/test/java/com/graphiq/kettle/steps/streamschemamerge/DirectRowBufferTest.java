@@ -0,0 +1,103 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class DirectRowBufferTest extends TestCase {
+
+    private static final int INTS_PER_CHUNK = DirectBufferPool.CHUNK_SIZE / 4;
+
+    public void testValuesComeBackInOrder() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(2L * DirectBufferPool.CHUNK_SIZE);
+        DirectRowBuffer buffer = new DirectRowBuffer(pool);
+        int n = INTS_PER_CHUNK + 10;
+        for (int i = 0; i < n; i++) {
+            assertTrue(buffer.writeInt(i));
+        }
+        assertEquals(n, buffer.getCount());
+        assertEquals(2L * DirectBufferPool.CHUNK_SIZE, pool.getBytesInUse());
+        buffer.finishWriting();
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, buffer.readInt());
+        }
+        buffer.dispose();
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    public void testWriteThatDoesNotFitIsUndone() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.CHUNK_SIZE);
+        DirectRowBuffer buffer = new DirectRowBuffer(pool);
+        for (int i = 0; i < INTS_PER_CHUNK; i++) {
+            assertTrue(buffer.writeInt(i));
+        }
+        assertFalse(buffer.writeInt(-1));
+        assertFalse(buffer.writeInt(-2));
+        assertEquals(INTS_PER_CHUNK, buffer.getCount());
+        assertEquals(DirectBufferPool.CHUNK_SIZE, pool.getBytesInUse());
+        buffer.finishWriting();
+        for (int i = 0; i < INTS_PER_CHUNK; i++) {
+            assertEquals(i, buffer.readInt());
+        }
+        try {
+            buffer.readInt();
+            fail("read past the last value");
+        } catch (Exception e) {
+            // expected
+        }
+        buffer.dispose();
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    public void testPoolReusesBuffersWithinItsLimit() {
+        DirectBufferPool pool = new DirectBufferPool(2L * DirectBufferPool.CHUNK_SIZE);
+        ByteBuffer first = pool.take();
+        ByteBuffer second = pool.take();
+        assertNull(pool.take());
+        pool.release(first);
+        assertSame(first, pool.take());
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(2L * DirectBufferPool.CHUNK_SIZE, pool.getBytesAllocated());
+        pool.dispose();
+        assertEquals(0, pool.getBytesAllocated());
+    }
+
+    public void testDisposedPoolKeepsNoBuffers() {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.CHUNK_SIZE);
+        ByteBuffer buffer = pool.take();
+        pool.dispose();
+        pool.release(buffer);
+        assertEquals(0, pool.getBytesAllocated());
+    }
+
+    public void testPoolBelowOneChunkGivesNothing() {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.CHUNK_SIZE - 1);
+        assertNull(pool.take());
+        assertFalse(new DirectRowBuffer(pool).writeInt(1));
+    }
+}
@@ -0,0 +1,81 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.variables.Variables;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class DistinctRowsTest extends TestCase {
+
+    /**
+     * Offer rows with the given keys and collect the keys of the rows that are passed on, right away or at the end
+     */
+    private Set<Long> distinct(DistinctRows rows, long[] keys) throws Exception {
+        Set<Long> passed = new HashSet<Long>();
+        for (long key : keys) {
+            Object[] row = new Object[]{key, "value " + key};
+            if (rows.add(row)) {
+                assertTrue("passed on twice: " + key, passed.add(key));
+            }
+        }
+        Object[] row;
+        while ((row = rows.nextDeferred()) != null) {
+            assertTrue("passed on twice: " + row[0], passed.add((Long) row[0]));
+        }
+        return passed;
+    }
+
+    public void testDropsDuplicates() throws Exception {
+        DistinctRows rows = new DistinctRows(new int[]{0, 1}, 1024 * 1024, new Variables(), new LogChannel("test"));
+        long[] keys = new long[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i % 100;
+        }
+        assertEquals(100, distinct(rows, keys).size());
+        assertEquals(900, rows.getDuplicates());
+        assertEquals(0, rows.getDeferred());
+        assertTrue(rows.getPeakBytes() <= 1024 * 1024);
+        rows.dispose();
+    }
+
+    public void testSpillsPartitionsOverBudget() throws Exception {
+        // the 5000 hashes would take 128 kB in tables half full, and briefly more while they grow
+        long budget = 64 * 1024;
+        DistinctRows rows = new DistinctRows(new int[]{0}, budget, new Variables(), new LogChannel("test"));
+        long[] keys = new long[15000];
+        for (int i = 0; i < keys.length; i++) {
+            // every key shows up three times, spread out so repeats arrive after partitions were spilled
+            keys[i] = (i * 7919L) % 5000;
+        }
+        Set<Long> passed = distinct(rows, keys);
+        assertEquals(5000, passed.size());
+        assertEquals(10000, rows.getDuplicates());
+        assertTrue(rows.getDeferred() > 0);
+        assertTrue("hash tables took " + rows.getPeakBytes() + " bytes", rows.getPeakBytes() <= budget);
+        rows.dispose();
+    }
+}
@@ -0,0 +1,54 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+import org.pentaho.metastore.api.IMetaStore;
+
+/**
+ * Dummy step that always reports the same fields, so tests can choose the design time layout of each stream. At
+ * runtime it passes on whatever rows it gets.
+ */
+public class FixedFieldsMeta extends DummyTransMeta {
+    private final RowMetaInterface fields;
+
+    public FixedFieldsMeta(RowMetaInterface fields) {
+        this.fields = fields;
+    }
+
+    public void getFields(RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info, StepMeta nextStep,
+                          VariableSpace space, Repository repository, IMetaStore metaStore)
+            throws KettleStepException {
+        inputRowMeta.clear();
+        for (ValueMetaInterface field : fields.getValueMetaList()) {
+            inputRowMeta.addValueMeta(field.clone());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransData;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InputSchedulerTest extends TestCase {
+
+    private StepInterface step;
+
+    @Override
+    protected void setUp() throws Exception {
+        KettleEnvironment.init();
+        TransMeta transMeta = new TransMeta();
+        StepMeta stepMeta = new StepMeta("Dummy", "scheduler", new DummyTransMeta());
+        transMeta.addStep(stepMeta);
+        step = new BaseStep(stepMeta, new DummyTransData(), 0, transMeta, new Trans(transMeta));
+    }
+
+    /**
+     * Create rowsets holding the given number of rows, each row holding the number of its rowset
+     */
+    private List<RowSet> createRowSets(int capacity, int... rows) {
+        List<RowSet> rowSets = new ArrayList<RowSet>();
+        for (int i = 0; i < rows.length; i++) {
+            RowSet rowSet = new RingBufferRowSet(capacity);
+            for (int j = 0; j < rows[i]; j++) {
+                rowSet.putRow(null, new Object[]{i});
+            }
+            rowSets.add(rowSet);
+        }
+        return rowSets;
+    }
+
+    private InputScheduler createScheduler(StreamSchemaStepMeta.SchedulingPolicy policy, List<RowSet> rowSets,
+                                           double... weights) {
+        return new InputScheduler(step, policy, rowSets, weights.length == 0 ? new double[rowSets.size()] : weights,
+                ((RingBufferRowSet) rowSets.get(0)).getCapacity());
+    }
+
+    /**
+     * Read a row and check it came from the rowset the scheduler reports
+     * @return position of the rowset the row was read from
+     */
+    private int read(InputScheduler scheduler) throws Exception {
+        Object[] row = scheduler.nextRow();
+        assertNotNull(row);
+        assertEquals(scheduler.getLastSource(), row[0]);
+        return scheduler.getLastSource();
+    }
+
+    private void finish(List<RowSet> rowSets) {
+        for (RowSet rowSet : rowSets) {
+            rowSet.setDone();
+        }
+    }
+
+    public void testWeightedSharesFollowWeights() throws Exception {
+        int capacity = 1024;
+        List<RowSet> rowSets = createRowSets(capacity, capacity, capacity, capacity);
+        double[] weights = {1, 3, 4};
+        InputScheduler scheduler = createScheduler(StreamSchemaStepMeta.SchedulingPolicy.WEIGHTED, rowSets, weights);
+        int[] reads = new int[rowSets.size()];
+        int total = 80000;
+        for (int i = 0; i < total; i++) {
+            int source = read(scheduler);
+            reads[source]++;
+            // keep every rowset full, so only the weights tell them apart
+            rowSets.get(source).putRow(null, new Object[]{source});
+        }
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals("share of rowset " + i, weights[i] / 8, (double) reads[i] / total, 0.01);
+        }
+    }
+
+    public void testPriorityDrainsFirstRowSet() throws Exception {
+        List<RowSet> rowSets = createRowSets(512, 250, 250);
+        finish(rowSets);
+        InputScheduler scheduler = createScheduler(StreamSchemaStepMeta.SchedulingPolicy.PRIORITY, rowSets);
+        for (int i = 0; i < 250; i++) {
+            assertEquals(0, read(scheduler));
+        }
+        for (int i = 0; i < 250; i++) {
+            assertEquals(1, read(scheduler));
+        }
+        assertNull(scheduler.nextRow());
+        assertEquals(0, scheduler.getNumLive());
+    }
+
+    public void testPriorityReturnsToFirstRowSet() throws Exception {
+        List<RowSet> rowSets = createRowSets(512, 0, 250);
+        InputScheduler scheduler = createScheduler(StreamSchemaStepMeta.SchedulingPolicy.PRIORITY, rowSets);
+        assertEquals(1, read(scheduler));
+        rowSets.get(0).putRow(null, new Object[]{0});
+        // the block of rows already chosen is read first
+        for (int i = 1; i < 100; i++) {
+            assertEquals(1, read(scheduler));
+        }
+        assertEquals(0, read(scheduler));
+    }
+
+    public void testBacklogPicksFullestRowSet() throws Exception {
+        List<RowSet> rowSets = createRowSets(512, 10, 300, 50);
+        finish(rowSets);
+        InputScheduler scheduler = createScheduler(StreamSchemaStepMeta.SchedulingPolicy.BACKLOG, rowSets);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(1, read(scheduler));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(2, read(scheduler));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, read(scheduler));
+        }
+        assertNull(scheduler.nextRow());
+    }
+
+    public void testRoundRobinReadsOneRowPerTurn() throws Exception {
+        List<RowSet> rowSets = createRowSets(16, 5, 5, 3);
+        finish(rowSets);
+        InputScheduler scheduler = createScheduler(StreamSchemaStepMeta.SchedulingPolicy.ROUND_ROBIN, rowSets);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, read(scheduler));
+            assertEquals(1, read(scheduler));
+            assertEquals(2, read(scheduler));
+        }
+        // the emptied rowset drops out of the turns
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0, read(scheduler));
+            assertEquals(1, read(scheduler));
+        }
+        assertNull(scheduler.nextRow());
+    }
+}
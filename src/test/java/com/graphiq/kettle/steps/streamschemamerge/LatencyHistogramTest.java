@@ -0,0 +1,59 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test", 1);
+        for (int i = 0; i < 990; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        // 100 falls in the bucket for 64 to 127
+        assertEquals(127, histogram.getPercentile(0.5));
+        assertEquals(127, histogram.getPercentile(0.99));
+        assertEquals(1000000, histogram.getPercentile(0.999));
+    }
+
+    public void testSampling() {
+        LatencyHistogram histogram = new LatencyHistogram("test", 3);  // rounded up to 4
+        for (int i = 0; i < 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(25, histogram.getCount());
+    }
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram("test", 1);
+        histogram.record(0);
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, new LatencyHistogram("empty", 1).getPercentile(0.99));
+    }
+}
@@ -0,0 +1,243 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a transformation of injector steps feeding the Stream Schema Merge step into a dummy step and reports the
+ * throughput, the rows and bytes spilled to disk and the peak heap use. Not a unit test, run it through main with
+ * these system properties:
+ *
+ * bench.streams		number of incoming streams (default 4)
+ * bench.fields			fields per stream, half of them shared by all streams (default 20)
+ * bench.rows			rows over all streams (default 1000000)
+ * bench.skew			how unevenly the rows are spread, stream i gets a share of 1 / (i + 1)^skew (default 0)
+ * bench.lateStart		milliseconds the last stream waits before sending rows, forcing the others to spill (default 0)
+ * bench.runs			number of times to run the transformation, the first one warms up (default 3)
+ */
+public class MergeThroughputBenchmark {
+
+    private static final String MERGE_STEP = "Stream Schema step";
+
+    private final int streams;
+    private final int fields;
+    private final long rows;
+    private final double skew;
+    private final long lateStart;
+
+    public MergeThroughputBenchmark(int streams, int fields, long rows, double skew, long lateStart) {
+        this.streams = streams;
+        this.fields = fields;
+        this.rows = rows;
+        this.skew = skew;
+        this.lateStart = lateStart;
+    }
+
+    public static void main(String[] args) throws Exception {
+        MergeThroughputBenchmark benchmark = new MergeThroughputBenchmark(
+                Integer.getInteger("bench.streams", 4),
+                Integer.getInteger("bench.fields", 20),
+                Long.getLong("bench.rows", 1000000L),
+                Double.parseDouble(System.getProperty("bench.skew", "0")),
+                Long.getLong("bench.lateStart", 0L));
+        int runs = Integer.getInteger("bench.runs", 3);
+        KettleEnvironment.init();
+        for (int i = 1; i <= runs; i++) {
+            System.out.println(String.format("run %d: %s", i, benchmark.run()));
+        }
+    }
+
+    /**
+     * Build and run the transformation once
+     * @return summary of the run
+     */
+    public String run() throws Exception {
+        TransMeta transMeta = new TransMeta();
+        transMeta.setName("benchmarkStreamSchemaMerge");
+        PluginRegistry registry = PluginRegistry.getInstance();
+
+        String[] injectorNames = new String[streams];
+        List<StepMeta> injectorSteps = new ArrayList<StepMeta>();
+        for (int i = 0; i < streams; i++) {
+            injectorNames[i] = "injector step " + i;
+            StepMeta injectorStep = TestUtilities.createInjectorStep(injectorNames[i], registry);
+            transMeta.addStep(injectorStep);
+            injectorSteps.add(injectorStep);
+        }
+
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        streamSchemaMeta.setStepsToMerge(injectorNames);
+        for (String injectorName : injectorNames) {
+            streamSchemaMeta.getStepIOMeta().addStream(
+                    new Stream(StreamInterface.StreamType.INFO, null, "Streams to Merge", StreamIcon.INFO, injectorName));
+        }
+        streamSchemaMeta.searchInfoAndTargetSteps(injectorSteps);
+        StepMeta streamSchemaStep = new StepMeta(registry.getPluginId(StepPluginType.class, streamSchemaMeta),
+                MERGE_STEP, streamSchemaMeta);
+        transMeta.addStep(streamSchemaStep);
+        for (StepMeta injectorStep : injectorSteps) {
+            transMeta.addTransHop(new TransHopMeta(injectorStep, streamSchemaStep));
+        }
+
+        StepMeta dummyStep = TestUtilities.createDummyStep("dummy step", registry);
+        transMeta.addStep(dummyStep);
+        transMeta.addTransHop(new TransHopMeta(streamSchemaStep, dummyStep));
+
+        Trans trans = new Trans(transMeta);
+        trans.prepareExecution(null);
+        List<Thread> producers = new ArrayList<Thread>();
+        long[] streamRows = spreadRows();
+        for (int i = 0; i < streams; i++) {
+            producers.add(createProducer(trans.addRowProducer(injectorNames[i], 0), i, streamRows[i]));
+        }
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        trans.startThreads();
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        trans.waitUntilFinished();
+        long nanos = System.nanoTime() - start;
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        long rowsSpilled = 0;
+        long spillBytes = 0;
+        for (StepMetaDataCombi combi : trans.getSteps()) {
+            if (combi.data instanceof StreamSchemaStepData) {
+                MergeMetrics metrics = ((StreamSchemaStepData) combi.data).metrics;
+                for (int i = 0; i < metrics.getNumStreams(); i++) {
+                    rowsSpilled += metrics.getRowsSpilled(i);
+                    spillBytes += metrics.getSpillBytes(i);
+                }
+            }
+        }
+        if (trans.getErrors() > 0) {
+            throw new IllegalStateException("The transformation finished with errors");
+        }
+        return String.format("%d rows in %d ms, %.0f rows/s, %d rows spilled (%d bytes), peak heap %d MB",
+                rows, nanos / 1000000, rows * 1e9 / nanos, rowsSpilled, spillBytes, peakHeap >> 20);
+    }
+
+    /**
+     * Spread the rows over the streams, stream i getting a share of 1 / (i + 1)^skew
+     * @return number of rows of each stream
+     */
+    private long[] spreadRows() {
+        double[] shares = new double[streams];
+        double total = 0;
+        for (int i = 0; i < streams; i++) {
+            shares[i] = 1.0 / Math.pow(i + 1, skew);
+            total += shares[i];
+        }
+        long[] streamRows = new long[streams];
+        long assigned = 0;
+        for (int i = 1; i < streams; i++) {
+            streamRows[i] = (long) (rows * shares[i] / total);
+            assigned += streamRows[i];
+        }
+        streamRows[0] = rows - assigned;  // the biggest stream takes the rounding
+        return streamRows;
+    }
+
+    /**
+     * Create the row meta of a stream. The first half of the fields is shared by all streams, the rest is only sent
+     * by this stream.
+     */
+    private RowMetaInterface createRowMeta(int stream) {
+        RowMetaInterface rowMeta = new RowMeta();
+        int shared = fields / 2;
+        for (int f = 0; f < fields; f++) {
+            String name = f < shared ? "shared_" + f : "stream" + stream + "_" + f;
+            int type = f % 4 == 3 ? ValueMetaInterface.TYPE_STRING : ValueMetaInterface.TYPE_INTEGER;
+            rowMeta.addValueMeta(new ValueMeta(name, type));
+        }
+        return rowMeta;
+    }
+
+    /**
+     * Create a thread sending the rows of one stream to its injector step
+     */
+    private Thread createProducer(final RowProducer producer, final int stream, final long count) {
+        final RowMetaInterface rowMeta = createRowMeta(stream);
+        final boolean late = stream == streams - 1 && lateStart > 0;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    if (late) {
+                        Thread.sleep(lateStart);
+                    }
+                    for (long r = 0; r < count; r++) {
+                        Object[] row = new Object[fields];
+                        for (int f = 0; f < fields; f++) {
+                            row[f] = f % 4 == 3 ? "value" + (r + f) : (Object) (r + f);
+                        }
+                        producer.putRow(rowMeta, row);
+                    }
+                } catch (InterruptedException e) {
+                    // stop sending rows
+                } finally {
+                    producer.finished();
+                }
+            }
+        }, "benchmark producer " + stream);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,279 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.variables.Variables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Performance regression gate, run by the perf-gate Maven profile. Measures a fixed set of workloads and compares
+ * them with the baseline file: the build fails when the throughput of a workload drops, or the bytes it allocates per
+ * operation rise, by more than the tolerance. A workload without a baseline fails too, otherwise a missing file
+ * would let every build pass. Baselines depend on the machine, so record them on the box the gate runs on with
+ * -Dperf.updateBaseline=true and copy the recorded file to the baseline file. The gate never writes the baseline file
+ * itself, the measured values always go to the results file.
+ *
+ * System properties:
+ *
+ * perf.baseline		baseline file
+ * perf.results		file the measured values are written to (default target/perf-baseline.properties)
+ * perf.tolerance		allowed change as a fraction of the baseline (default 0.15)
+ * perf.updateBaseline	only record the measured values, without checking them against the baseline
+ */
+public class PerformanceGate {
+
+    private static final long WARMUP_MILLIS = 3000;
+    private static final long ITERATION_MILLIS = 1000;
+    private static final int ITERATIONS = 5;
+
+    /**
+     * A workload measured by the gate, one call of run is one operation
+     */
+    private interface Workload {
+        void run() throws Exception;
+    }
+
+    private final Map<String, Workload> workloads = new LinkedHashMap<String, Workload>();
+    private Object sink;  // keeps the JIT from dropping the results of the workloads
+
+    public static void main(String[] args) throws Exception {
+        String baselinePath = System.getProperty("perf.baseline", "src/test/resources/perf-baseline.properties");
+        String resultsPath = System.getProperty("perf.results", "target/perf-baseline.properties");
+        double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.15"));
+        boolean update = Boolean.getBoolean("perf.updateBaseline");
+
+        KettleClientEnvironment.init();
+        PerformanceGate gate = new PerformanceGate();
+        gate.addWorkloads();
+        Properties measured = gate.measure();
+
+        File baselineFile = new File(baselinePath);
+        Properties baseline = new Properties();
+        if (baselineFile.exists()) {
+            InputStream in = new FileInputStream(baselineFile);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        File resultsFile = new File(resultsPath);
+        save(measured, resultsFile);
+        if (update) {
+            System.out.println(String.format("Measured values written to %s, copy them to %s to use them as the baseline",
+                    resultsFile, baselineFile));
+            return;
+        }
+
+        List<String> failures = new ArrayList<String>();
+        List<String> missing = new ArrayList<String>();
+        for (String key : measured.stringPropertyNames()) {
+            double value = Double.parseDouble(measured.getProperty(key));
+            String expected = baseline.getProperty(key);
+            if (expected == null) {
+                missing.add(key);
+                System.out.println(String.format("%-40s %15.1f  NO BASELINE", key, value));
+                continue;
+            }
+            double base = Double.parseDouble(expected);
+            double change = base == 0 ? 0 : (value - base) / base;
+            // throughput may not drop, allocations may not rise
+            boolean failed = key.endsWith(".opsPerSecond") ? change < -tolerance : value > base * (1 + tolerance) + 1;
+            System.out.println(String.format("%-40s %15.1f baseline %15.1f %+7.1f%%%s",
+                    key, value, base, change * 100, failed ? "  REGRESSION" : ""));
+            if (failed) {
+                failures.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException(String.format("No baseline in %s for %s, record one with "
+                    + "-Dperf.updateBaseline=true and copy %s to it", baselineFile, missing, resultsFile));
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(String.format("Performance regression beyond %.0f%% in %s",
+                    tolerance * 100, failures));
+        }
+    }
+
+    /**
+     * Set up the workloads: building the merged layout, mapping rows and spilling rows to disk and back
+     */
+    private void addWorkloads() throws Exception {
+        final RowMetaInterface[] rowMetas = new RowMetaInterface[8];
+        for (int i = 0; i < rowMetas.length; i++) {
+            rowMetas[i] = createRowMeta(i, 50);
+        }
+        workloads.put("schemaMapper", new Workload() {
+            public void run() throws Exception {
+                sink = new SchemaMapper(rowMetas);
+            }
+        });
+
+        int[] rowSetStreams = new int[rowMetas.length];
+        final Object[][] rows = new Object[rowMetas.length][];
+        for (int i = 0; i < rowMetas.length; i++) {
+            rowSetStreams[i] = i;
+            rows[i] = createRow(rowMetas[i], i);
+        }
+        final StreamRowMapper rowMapper = new StreamRowMapper(rowSetStreams);
+        rowMapper.setSchemaMapping(new SchemaMapper(rowMetas));
+        workloads.put("rowMapping", new Workload() {
+            private int next;
+
+            public void run() throws Exception {
+                int source = next++ & 7;
+                sink = rowMapper.mapRow(source, rows[source]);
+            }
+        });
+
+        final Variables space = new Variables();
+        space.initializeVariablesFrom(null);
+        final LogChannel log = new LogChannel("PerformanceGate");
+        final RowMetaInterface spillMeta = createRowMeta(0, 20);
+        final Object[] spillRow = createRow(spillMeta, 0);
+        final int spillRows = 1000;
+        workloads.put("spill1000Rows", new Workload() {
+            public void run() throws Exception {
+                RowSetCache cache = new RowSetCache(1, 8388608, space, log);
+                try {
+                    for (int i = 0; i < spillRows; i++) {
+                        cache.write(0, spillRow);
+                    }
+                    cache.finishWriting();
+                    for (int i = 0; i < spillRows; i++) {
+                        sink = cache.next();
+                    }
+                } finally {
+                    cache.dispose();
+                }
+            }
+        });
+    }
+
+    /**
+     * Measure every workload: warm it up, then keep the best throughput and the lowest allocation of the iterations
+     * so a single hiccup on the box doesn't fail the build
+     * @return operations per second and bytes allocated per operation of each workload
+     */
+    private Properties measure() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+
+        Properties results = new Properties();
+        for (Map.Entry<String, Workload> entry : workloads.entrySet()) {
+            Workload workload = entry.getValue();
+            runFor(workload, WARMUP_MILLIS);
+            double bestOps = 0;
+            double leastBytes = Double.MAX_VALUE;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long bytesBefore = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                long ops = runFor(workload, ITERATION_MILLIS);
+                long nanos = System.nanoTime() - start;
+                long bytes = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread) - bytesBefore;
+                bestOps = Math.max(bestOps, ops * 1e9 / nanos);
+                leastBytes = Math.min(leastBytes, (double) bytes / ops);
+            }
+            results.setProperty(entry.getKey() + ".opsPerSecond", String.format("%.1f", bestOps));
+            if (allocations != null) {
+                results.setProperty(entry.getKey() + ".bytesPerOp", String.format("%.1f", leastBytes));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run a workload for a while, checking the clock every 64 operations
+     * @return number of operations run
+     */
+    private long runFor(Workload workload, long millis) throws Exception {
+        long end = System.nanoTime() + millis * 1000000;
+        long ops = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                workload.run();
+            }
+            ops += 64;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    /**
+     * Create a stream layout with half of its fields shared by all streams and every fourth field a string. The first
+     * fields are strings in odd streams, so they get converted when rows are mapped.
+     */
+    private static RowMetaInterface createRowMeta(int stream, int fields) throws Exception {
+        RowMetaInterface rowMeta = new RowMeta();
+        for (int f = 0; f < fields; f++) {
+            String name = f < fields / 2 ? "shared_" + f : "stream" + stream + "_" + f;
+            int type = f % 4 == 3 || (f < 5 && stream % 2 == 1) ? ValueMetaInterface.TYPE_STRING
+                    : ValueMetaInterface.TYPE_INTEGER;
+            rowMeta.addValueMeta(ValueMetaFactory.createValueMeta(name, type));
+        }
+        return rowMeta;
+    }
+
+    private static Object[] createRow(RowMetaInterface rowMeta, long seed) {
+        Object[] row = new Object[rowMeta.size()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = rowMeta.getValueMeta(i).getType() == ValueMetaInterface.TYPE_STRING
+                    ? "value" + (seed + i) : (Object) (seed + i);
+        }
+        return row;
+    }
+
+    private static void save(Properties values, File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            values.store(out, "Stream Schema Merge performance measurements, machine specific");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class RingBufferRowSetTest extends TestCase {
+
+    public void testFillLevel() {
+        RingBufferRowSet rowSet = new RingBufferRowSet(3);
+        assertEquals(4, rowSet.getCapacity());
+        for (long i = 0; i < 4; i++) {
+            assertTrue(rowSet.putRowWait(null, new Object[]{i}, 1, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(4, rowSet.size());
+        assertEquals(1.0, rowSet.getFillLevel(), 0.0);
+        assertFalse(rowSet.putRowWait(null, new Object[]{4L}, 1, TimeUnit.MILLISECONDS));
+        assertEquals(0L, rowSet.getRowImmediate()[0]);
+        assertEquals(3, rowSet.size());
+        assertEquals(4, rowSet.getRowsPut());
+        assertEquals(1, rowSet.getRowsTaken());
+    }
+
+    public void testDoneAndStalled() {
+        RingBufferRowSet rowSet = new RingBufferRowSet(4);
+        assertNull(rowSet.getRowWait(1, TimeUnit.MILLISECONDS));
+        assertFalse(rowSet.isStalled(Long.MAX_VALUE));
+        assertTrue(rowSet.isStalled(-1));
+        rowSet.putRow(null, new Object[]{1L});
+        rowSet.setDone();
+        assertFalse(rowSet.isStalled(-1));
+        assertNotNull(rowSet.getRowWait(1, TimeUnit.MILLISECONDS));
+        assertNull(rowSet.getRowWait(1, TimeUnit.MILLISECONDS));
+    }
+
+    public void testManyProducers() throws Exception {
+        final RingBufferRowSet rowSet = new RingBufferRowSet(16);
+        final int producers = 12;
+        final int rowsPerProducer = 10000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final long producer = p;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    for (long i = 0; i < rowsPerProducer; i++) {
+                        while (!rowSet.putRowWait(null, new Object[]{producer, i}, 10, TimeUnit.MILLISECONDS)) {
+                            // keep trying
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        // rows of each producer have to arrive complete and in order
+        long[] next = new long[producers];
+        long received = 0;
+        while (received < (long) producers * rowsPerProducer) {
+            Object[] row = rowSet.getRowWait(10, TimeUnit.MILLISECONDS);
+            if (row != null) {
+                int producer = (int) (long) (Long) row[0];
+                assertEquals(next[producer]++, row[1]);
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, rowSet.size());
+        assertNull(rowSet.getRowImmediate());
+    }
+}
@@ -0,0 +1,99 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class RowMappingAllocationTest extends TestCase {
+
+    private static final int FIELDS = 200;  // wide enough that converted positions are outside the Integer cache
+    private static final int CONVERTED = 150;  // field that is an integer in one stream and a string in the other
+    private static final int ROWS = 200000;
+
+    private Object[] sink;  // keeps the JIT from dropping the allocations we measure
+
+    private RowMetaInterface createRowMeta(boolean stringField) {
+        RowMetaInterface rm = new RowMeta();
+        for (int i = 0; i < FIELDS; i++) {
+            int type = i == CONVERTED && stringField ? ValueMeta.TYPE_STRING : ValueMeta.TYPE_INTEGER;
+            rm.addValueMeta(new ValueMeta("f" + i, type));
+        }
+        return rm;
+    }
+
+    /**
+     * Map rows of the stream whose converted field already holds a string, so converting it doesn't create a new
+     * string and the output row should be the only allocation.
+     */
+    public void testMappingOnlyAllocatesOutputRow() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            return;  // the JVM can't count allocations
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+
+        KettleEnvironment.init();
+        StreamRowMapper rowMapper = new StreamRowMapper(new int[]{0, 1});
+        SchemaMapper schemaMapping = new SchemaMapper(new RowMetaInterface[]{createRowMeta(false), createRowMeta(true)});
+        rowMapper.setSchemaMapping(schemaMapping);
+        assertTrue(schemaMapping.getConvertToString().contains(CONVERTED));
+        int width = schemaMapping.getRowMeta().size();
+        Object[] row = new Object[FIELDS];
+        for (int i = 0; i < FIELDS; i++) {
+            row[i] = i == CONVERTED ? "text" : (Object) (long) i;
+        }
+
+        // warm up both loops so they're compiled before we count
+        for (int i = 0; i < ROWS; i++) {
+            sink = RowDataUtil.allocateRowData(width);
+            sink = rowMapper.mapRow(1, row);
+        }
+
+        long start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ROWS; i++) {
+            sink = RowDataUtil.allocateRowData(width);
+        }
+        long outputRowBytes = allocations.getThreadAllocatedBytes(thread) - start;
+
+        start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ROWS; i++) {
+            sink = rowMapper.mapRow(1, row);
+        }
+        long mappingBytes = allocations.getThreadAllocatedBytes(thread) - start;
+
+        assertEquals("text", sink[CONVERTED]);
+        // allow a little for the allocation counter itself
+        assertTrue(String.format("mapping allocated %d bytes per row, the output row takes %d",
+                mappingBytes / ROWS, outputRowBytes / ROWS), mappingBytes <= outputRowBytes + 4096);
+    }
+}
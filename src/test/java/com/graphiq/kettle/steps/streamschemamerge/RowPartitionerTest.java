@@ -0,0 +1,66 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+
+public class RowPartitionerTest extends TestCase {
+
+    private RowMetaInterface createRowMeta() {
+        RowMetaInterface rm = new RowMeta();
+        rm.addValueMeta(new ValueMeta("key", ValueMeta.TYPE_STRING));
+        rm.addValueMeta(new ValueMeta("value", ValueMeta.TYPE_INTEGER));
+        return rm;
+    }
+
+    public void testSameKeySamePartition() throws Exception {
+        RowPartitioner partitioner = new RowPartitioner(createRowMeta(), new int[]{0});
+        for (int i = 0; i < 100; i++) {
+            String key = "key" + (i % 10);
+            int expected = partitioner.partition(partitioner.hash(new Object[]{key, 0L}), 4);
+            assertEquals(expected, partitioner.partition(partitioner.hash(new Object[]{key, (long) i}), 4));
+        }
+    }
+
+    public void testRowsSpreadOverPartitions() throws Exception {
+        RowPartitioner partitioner = new RowPartitioner(createRowMeta(), new int[]{1});
+        int[] counts = new int[4];
+        for (long i = 0; i < 1000; i++) {
+            int partition = partitioner.partition(partitioner.hash(new Object[]{"a", i}), 4);
+            assertTrue(partition >= 0 && partition < 4);
+            counts[partition]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 0);
+        }
+    }
+
+    public void testNullKey() throws Exception {
+        RowPartitioner partitioner = new RowPartitioner(createRowMeta(), new int[]{0, 1});
+        int partition = partitioner.partition(partitioner.hash(new Object[]{null, null}), 3);
+        assertTrue(partition >= 0 && partition < 3);
+    }
+}
@@ -25,6 +25,7 @@ package com.graphiq.kettle.steps.streamschemamerge;
 import junit.framework.TestCase;
 import org.pentaho.di.core.KettleEnvironment;
 import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.plugins.StepPluginType;
 import org.pentaho.di.core.row.RowMeta;
@@ -45,6 +46,8 @@ import org.pentaho.di.trans.steps.selectvalues.SelectMetadataChange;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
@@ -93,7 +96,7 @@ public class SchemaMapperTest extends TestCase {
      * @param valuesMetas defined ValueMetaInterface
      * @return RowMetaInterface
      */
-    private RowMetaInterface createRowMetaInterface(ValueMetaInterface[] valuesMetas) {
+    private RowMetaInterface createRowMetaInterface(ValueMetaInterface... valuesMetas) {
         RowMetaInterface rm = new RowMeta();
 
         for (ValueMetaInterface aValuesMeta : valuesMetas) {
@@ -168,6 +171,18 @@ public class SchemaMapperTest extends TestCase {
      */
     private List<RowMetaAndData> test()
             throws Exception {
+        return test(1, 1, new ArrayList<RowStepCollector>());
+    }
+
+    /**
+     * Runs the transformation with the below input parameters
+     * @param copies number of copies of the Stream Schema Merge step to start
+     * @param repeat number of times the second injector sends its row
+     * @param mergeCollectors filled with a row collector for every copy of the Stream Schema Merge step
+     * @return Transformation Results
+     */
+    private List<RowMetaAndData> test(int copies, int repeat, List<RowStepCollector> mergeCollectors)
+            throws Exception {
         KettleEnvironment.init();
 
         // Create a new transformation
@@ -195,6 +210,7 @@ public class SchemaMapperTest extends TestCase {
         StepMeta streamSchemaStep = createStreamSchemaStep(streamSchemaStepName, registry,
                 new String[]{ injectorStepName1, injectorStepName2, injectorStepName3 },
                 Arrays.asList(injectorStep1, injectorStep2, injectorStep3));
+        streamSchemaStep.setCopies(copies);
         transMeta.addStep(streamSchemaStep);
 
         // TransHopMetas between injector steps and StreamSchema Step
@@ -232,6 +248,11 @@ public class SchemaMapperTest extends TestCase {
         StepInterface si = trans.getStepInterface(dummyStepName, 0);
         RowStepCollector dummyRowCollector = new RowStepCollector();
         si.addRowListener(dummyRowCollector);
+        for (int copy = 0; copy < copies; copy++) {
+            RowStepCollector mergeCollector = new RowStepCollector();
+            trans.getStepInterface(streamSchemaStepName, copy).addRowListener(mergeCollector);
+            mergeCollectors.add(mergeCollector);
+        }
 
         // Create row producers
         RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
@@ -246,8 +267,10 @@ public class SchemaMapperTest extends TestCase {
             rowProducer1.putRow(rowMetaAndData.getRowMeta(), rowMetaAndData.getData());
         }
         rowProducer1.finished();
-        for (RowMetaAndData rowMetaAndData : inputList2) {
-            rowProducer2.putRow(rowMetaAndData.getRowMeta(), rowMetaAndData.getData());
+        for (int i = 0; i < repeat; i++) {
+            for (RowMetaAndData rowMetaAndData : inputList2) {
+                rowProducer2.putRow(rowMetaAndData.getRowMeta(), rowMetaAndData.getData());
+            }
         }
         rowProducer2.finished();
         rowProducer3.finished();
@@ -268,6 +291,188 @@ public class SchemaMapperTest extends TestCase {
         }
     }
 
+    public void testStreamSchemaMultipleCopies() throws Exception {
+        // the injectors hand out rows to the copies in turn: the first copy gets a row of each stream, the second copy
+        // only the second row of injector 2, and both have to emit the same layout
+        List<RowStepCollector> mergeCollectors = new ArrayList<RowStepCollector>();
+        List<RowMetaAndData> transformationResults = test(2, 2, mergeCollectors);
+
+        for (RowStepCollector mergeCollector : mergeCollectors) {
+            assertFalse(mergeCollector.getRowsWritten().isEmpty());
+            for (RowMetaAndData row : mergeCollector.getRowsWritten()) {
+                RowMetaInterface rowMeta = row.getRowMeta();
+                assertEquals(columns1.length, rowMeta.size());
+                for (int i = 0; i < columns1.length; i++) {
+                    assertEquals(columns1[i], rowMeta.getValueMeta(i).getName());
+                    assertEquals(metaTypesTarget[i], rowMeta.getValueMeta(i).getType());
+                }
+            }
+        }
+
+        List<RowMetaAndData> expectedResults = createExpectedResults();
+        expectedResults.add(expectedResults.get(1));
+        // the copies run side by side, so put the rows in a known order before comparing them
+        Comparator<RowMetaAndData> byC2 = new Comparator<RowMetaAndData>() {
+            public int compare(RowMetaAndData row1, RowMetaAndData row2) {
+                return ((String) row1.getData()[1]).compareTo((String) row2.getData()[1]);
+            }
+        };
+        Collections.sort(transformationResults, byC2);
+        Collections.sort(expectedResults, byC2);
+        try {
+            checkValues(transformationResults, expectedResults);
+        } catch(TestFailedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a field stored as binary strings, the way lazy conversion reads it
+     */
+    private ValueMetaInterface createBinaryStringField(String name, int type) {
+        ValueMetaInterface field = new ValueMeta(name, type);
+        field.setStorageType(ValueMeta.STORAGE_TYPE_BINARY_STRING);
+        field.setStorageMetadata(new ValueMeta(name, ValueMeta.TYPE_STRING));
+        return field;
+    }
+
+    private ValueMetaInterface createIndexedField(String name, Object[] index) {
+        ValueMetaInterface field = new ValueMeta(name, ValueMeta.TYPE_STRING);
+        field.setStorageType(ValueMeta.STORAGE_TYPE_INDEXED);
+        field.setIndex(index);
+        return field;
+    }
+
+    public void testBinaryStringsStayBinary() throws Exception {
+        SchemaMapper mapper = new SchemaMapper(new RowMetaInterface[]{
+                createRowMetaInterface(createBinaryStringField("c1", ValueMeta.TYPE_STRING)),
+                createRowMetaInterface(createBinaryStringField("c1", ValueMeta.TYPE_STRING),
+                        new ValueMeta("c2", ValueMeta.TYPE_INTEGER))});
+        RowMetaInterface rowMeta = mapper.getRowMeta();
+        assertEquals(ValueMeta.STORAGE_TYPE_BINARY_STRING, rowMeta.getValueMeta(0).getStorageType());
+        assertEquals(ValueMeta.STORAGE_TYPE_NORMAL, rowMeta.getValueMeta(1).getStorageType());
+
+        byte[] bytes = "guava".getBytes("UTF-8");
+        assertSame(bytes, mapper.mapRow(0, new Object[]{bytes})[0]);
+        Object[] row = mapper.mapRow(1, new Object[]{bytes, 5L});
+        assertSame(bytes, row[0]);
+        assertEquals(5L, row[1]);
+        assertTrue(Arrays.equals(new int[]{0, 0}, mapper.getConversionsPerRow()));
+    }
+
+    public void testMixedStorageNormalizesOnlyBinaryStream() throws Exception {
+        SchemaMapper mapper = new SchemaMapper(new RowMetaInterface[]{
+                createRowMetaInterface(createBinaryStringField("c1", ValueMeta.TYPE_STRING)),
+                createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING))});
+        ValueMetaInterface c1 = mapper.getRowMeta().getValueMeta(0);
+        assertEquals(ValueMeta.STORAGE_TYPE_NORMAL, c1.getStorageType());
+        assertEquals(ValueMeta.TYPE_STRING, c1.getType());
+
+        assertEquals("guava", mapper.mapRow(0, new Object[]{"guava".getBytes("UTF-8")})[0]);
+        String value = "hov";
+        assertSame(value, mapper.mapRow(1, new Object[]{value})[0]);
+        assertTrue(Arrays.equals(new int[]{1, 0}, mapper.getConversionsPerRow()));
+    }
+
+    public void testBinaryFieldWithConflictingTypeBecomesString() throws Exception {
+        SchemaMapper mapper = new SchemaMapper(new RowMetaInterface[]{
+                createRowMetaInterface(createBinaryStringField("c1", ValueMeta.TYPE_INTEGER)),
+                createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING))});
+        ValueMetaInterface c1 = mapper.getRowMeta().getValueMeta(0);
+        assertEquals(ValueMeta.TYPE_STRING, c1.getType());
+        assertEquals(ValueMeta.STORAGE_TYPE_NORMAL, c1.getStorageType());
+        assertTrue(mapper.getConvertToString().contains(0));
+
+        // the bytes are read as an Integer first, not turned into a String by byte[].toString()
+        assertEquals("42", mapper.mapRow(0, new Object[]{"42".getBytes("UTF-8")})[0]);
+        assertEquals("hov", mapper.mapRow(1, new Object[]{"hov"})[0]);
+        assertNull(mapper.mapRow(0, new Object[]{null})[0]);
+    }
+
+    public void testIndexedStorageIsNormalized() throws Exception {
+        SchemaMapper mapper = new SchemaMapper(new RowMetaInterface[]{
+                createRowMetaInterface(createIndexedField("c1", new Object[]{"x", "y"})),
+                createRowMetaInterface(createIndexedField("c1", new Object[]{"y", "x"}))});
+        ValueMetaInterface c1 = mapper.getRowMeta().getValueMeta(0);
+        assertEquals(ValueMeta.STORAGE_TYPE_NORMAL, c1.getStorageType());
+
+        // the index of each stream is its own, so the same index can stand for different values
+        assertEquals("y", mapper.mapRow(0, new Object[]{1})[0]);
+        assertEquals("x", mapper.mapRow(1, new Object[]{1})[0]);
+        assertTrue(Arrays.equals(new int[]{1, 1}, mapper.getConversionsPerRow()));
+    }
+
+    /**
+     * Creates a mapper from the design time layout of two streams that still has to see the first rows
+     */
+    private SchemaMapper createDesignTimeMapper(RowMetaInterface first, RowMetaInterface second) throws Exception {
+        SchemaMapper mapper = new SchemaMapper(new RowMetaInterface[]{first, second});
+        mapper.requireVerification();
+        assertFalse(mapper.isVerified(0));
+        assertFalse(mapper.isVerified(1));
+        return mapper;
+    }
+
+    public void testVerifyMatchingLayout() throws Exception {
+        SchemaMapper mapper = createDesignTimeMapper(
+                createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING)),
+                createRowMetaInterface(new ValueMeta("c2", ValueMeta.TYPE_INTEGER)));
+        assertTrue(mapper.verifyStream(0, createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING))));
+        assertTrue(mapper.isVerified(0));
+        assertFalse(mapper.isVerified(1));
+        Object[] row = mapper.mapRow(0, new Object[]{"a"});
+        assertEquals("a", row[0]);
+        assertNull(row[1]);
+    }
+
+    public void testVerifyReorderedLayoutRemapsByName() throws Exception {
+        SchemaMapper mapper = createDesignTimeMapper(
+                createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING),
+                        new ValueMeta("c2", ValueMeta.TYPE_INTEGER)),
+                createRowMetaInterface(new ValueMeta("c3", ValueMeta.TYPE_STRING)));
+        RowMetaInterface outputRowMeta = mapper.getRowMeta();
+        assertFalse(mapper.verifyStream(0, createRowMetaInterface(new ValueMeta("c2", ValueMeta.TYPE_INTEGER),
+                new ValueMeta("c1", ValueMeta.TYPE_STRING))));
+        assertTrue(mapper.isVerified(0));
+        // rows may have been passed on already, so the output layout doesn't change
+        assertSame(outputRowMeta, mapper.getRowMeta());
+        Object[] row = mapper.mapRow(0, new Object[]{5L, "a"});
+        assertEquals("a", row[0]);
+        assertEquals(5L, row[1]);
+        assertNull(row[2]);
+        // once verified the stream isn't checked again
+        assertTrue(mapper.verifyStream(0, createRowMetaInterface(new ValueMeta("c3", ValueMeta.TYPE_STRING))));
+    }
+
+    public void testVerifyUnknownFieldFails() throws Exception {
+        SchemaMapper mapper = createDesignTimeMapper(
+                createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING)),
+                createRowMetaInterface(new ValueMeta("c2", ValueMeta.TYPE_INTEGER)));
+        try {
+            mapper.verifyStream(1, createRowMetaInterface(new ValueMeta("c2", ValueMeta.TYPE_INTEGER),
+                    new ValueMeta("c9", ValueMeta.TYPE_STRING)));
+            fail("A field that isn't known at design time can't be mapped");
+        } catch (KettleException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("c9"));
+        }
+        assertFalse(mapper.isVerified(1));
+    }
+
+    public void testVerifyStorageMismatchFails() throws Exception {
+        SchemaMapper mapper = createDesignTimeMapper(
+                createRowMetaInterface(createBinaryStringField("c1", ValueMeta.TYPE_STRING)),
+                createRowMetaInterface(createBinaryStringField("c1", ValueMeta.TYPE_STRING)));
+        assertEquals(ValueMeta.STORAGE_TYPE_BINARY_STRING, mapper.getRowMeta().getValueMeta(0).getStorageType());
+        try {
+            // binary strings are passed on as they are, a normal String doesn't fit in that field
+            mapper.verifyStream(0, createRowMetaInterface(new ValueMeta("c1", ValueMeta.TYPE_STRING)));
+            fail("A normal field can't be stored in a binary string field");
+        } catch (KettleException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("c1"));
+        }
+        assertFalse(mapper.isVerified(0));
+    }
+
     /**
      * Helper method to check that the values of the fields match
      * @param transResults output from transformation
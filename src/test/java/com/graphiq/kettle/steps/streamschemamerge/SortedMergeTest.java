@@ -0,0 +1,98 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SortedMergeTest extends TestCase {
+
+    private RowMetaInterface createRowMeta() {
+        RowMetaInterface rm = new RowMeta();
+        rm.addValueMeta(new ValueMeta("key", ValueMeta.TYPE_INTEGER));
+        rm.addValueMeta(new ValueMeta("source", ValueMeta.TYPE_STRING));
+        return rm;
+    }
+
+    /**
+     * Merge sorted sources the same way the step does: take the smallest row and replace it with the next row of
+     * the same source
+     * @param merge heap to merge with
+     * @param sources sorted key values of each source
+     * @return merged rows
+     */
+    private List<Object[]> merge(SortedMerge merge, long[][] sources) throws Exception {
+        int[] next = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i].length > 0) {
+                merge.add(i, new Object[]{sources[i][next[i]++], "s" + i});
+            }
+        }
+        List<Object[]> result = new ArrayList<Object[]>();
+        while (!merge.isEmpty()) {
+            result.add(merge.poll());
+            int source = merge.getLastSource();
+            if (next[source] < sources[source].length) {
+                merge.add(source, new Object[]{sources[source][next[source]++], "s" + source});
+            }
+        }
+        return result;
+    }
+
+    public void testAscendingMerge() throws Exception {
+        long[][] sources = new long[][]{{1, 4, 7}, {2, 5, 8}, {}, {3, 6, 9, 10}};
+        SortedMerge merge = new SortedMerge(createRowMeta(), new int[]{0}, new boolean[]{true}, sources.length);
+        List<Object[]> result = merge(merge, sources);
+        assertEquals(10, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals((long) (i + 1), result.get(i)[0]);
+        }
+    }
+
+    public void testDescendingMerge() throws Exception {
+        long[][] sources = new long[][]{{9, 5, 1}, {8, 2}};
+        SortedMerge merge = new SortedMerge(createRowMeta(), new int[]{0}, new boolean[]{false}, sources.length);
+        List<Object[]> result = merge(merge, sources);
+        long[] expected = new long[]{9, 8, 5, 2, 1};
+        assertEquals(expected.length, result.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], result.get(i)[0]);
+        }
+    }
+
+    public void testEqualKeysKeepSourceOrder() throws Exception {
+        long[][] sources = new long[][]{{1, 1}, {1}, {0, 1}};
+        SortedMerge merge = new SortedMerge(createRowMeta(), new int[]{0}, new boolean[]{true}, sources.length);
+        List<Object[]> result = merge(merge, sources);
+        String[] expected = new String[]{"s2", "s0", "s0", "s1", "s2"};
+        assertEquals(expected.length, result.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], result.get(i)[1]);
+        }
+    }
+}
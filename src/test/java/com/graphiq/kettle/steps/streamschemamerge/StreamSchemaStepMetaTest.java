@@ -0,0 +1,217 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepErrorMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamSchemaStepMetaTest extends TestCase {
+
+    private TransMeta transMeta;
+    private PluginRegistry registry;
+
+    @Override
+    protected void setUp() throws Exception {
+        KettleEnvironment.init();
+        transMeta = new TransMeta();
+        transMeta.setName("testStreamSchemaCheck");
+        registry = PluginRegistry.getInstance();
+    }
+
+    private StepMeta addFieldsStep(String name, ValueMetaInterface... fields) {
+        RowMetaInterface rowMeta = new RowMeta();
+        for (ValueMetaInterface field : fields) {
+            rowMeta.addValueMeta(field);
+        }
+        StepMeta step = new StepMeta("Dummy", name, new FixedFieldsMeta(rowMeta));
+        transMeta.addStep(step);
+        return step;
+    }
+
+    private StepMeta addFilterStep(String name) {
+        FilterRowsMeta filterMeta = new FilterRowsMeta();
+        filterMeta.setDefault();
+        StepMeta step = new StepMeta(registry.getPluginId(StepPluginType.class, filterMeta), name, filterMeta);
+        transMeta.addStep(step);
+        return step;
+    }
+
+    private StepMeta addMergeStep(StepMeta... inputSteps) {
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        String[] names = new String[inputSteps.length];
+        List<StepMeta> stepMetaList = new ArrayList<StepMeta>();
+        for ( int i = 0; i < inputSteps.length; i++ ) {
+            names[i] = inputSteps[i].getName();
+            stepMetaList.add(inputSteps[i]);
+            streamSchemaMeta.getStepIOMeta().addStream(
+                    new Stream( StreamInterface.StreamType.INFO, null, "Streams to Merge", StreamIcon.INFO, names[i] ) );
+        }
+        streamSchemaMeta.setStepsToMerge(names);
+        streamSchemaMeta.searchInfoAndTargetSteps(stepMetaList);
+        StepMeta step = new StepMeta(registry.getPluginId(StepPluginType.class, streamSchemaMeta), "Stream Schema step",
+                streamSchemaMeta);
+        transMeta.addStep(step);
+        for (StepMeta inputStep : inputSteps) {
+            transMeta.addTransHop(new TransHopMeta(inputStep, step));
+        }
+        return step;
+    }
+
+    private List<CheckResultInterface> check(StepMeta mergeStep) {
+        List<CheckResultInterface> remarks = new ArrayList<CheckResultInterface>();
+        StreamSchemaStepMeta meta = (StreamSchemaStepMeta) mergeStep.getStepMetaInterface();
+        meta.check(remarks, transMeta, mergeStep, null, transMeta.getPrevStepNames(mergeStep), new String[0], null,
+                transMeta, null, null);
+        return remarks;
+    }
+
+    /**
+     * Assert that check made a remark of the given type with the message for the key
+     */
+    private void assertRemark(List<CheckResultInterface> remarks, int type, String key, Object... parameters) {
+        String text = BaseMessages.getString(StreamSchemaStepMeta.class, key, parameters);
+        for (CheckResultInterface remark : remarks) {
+            if (text.equals(remark.getText())) {
+                assertEquals(text, type, remark.getType());
+                return;
+            }
+        }
+        fail("No remark \"" + text + "\" in " + texts(remarks));
+    }
+
+    private void assertNoRemark(List<CheckResultInterface> remarks, String key, Object... parameters) {
+        String text = BaseMessages.getString(StreamSchemaStepMeta.class, key, parameters);
+        assertFalse("Unexpected remark \"" + text + "\"", texts(remarks).contains(text));
+    }
+
+    private List<String> texts(List<CheckResultInterface> remarks) {
+        List<String> texts = new ArrayList<String>();
+        for (CheckResultInterface remark : remarks) {
+            texts.add(remark.getText());
+        }
+        return texts;
+    }
+
+    private ValueMetaInterface binaryString(String name) {
+        ValueMetaInterface field = new ValueMetaString(name);
+        field.setStorageType(ValueMetaInterface.STORAGE_TYPE_BINARY_STRING);
+        field.setStorageMetadata(new ValueMetaString(name));
+        return field;
+    }
+
+    public void testMatchingLayoutsAreOk() {
+        StepMeta a = addFieldsStep("a", new ValueMetaString("c1"), new ValueMetaInteger("c2"));
+        StepMeta b = addFieldsStep("b", new ValueMetaInteger("c2"), new ValueMetaString("c3"));
+        List<CheckResultInterface> remarks = check(addMergeStep(a, b));
+        assertRemark(remarks, CheckResultInterface.TYPE_RESULT_OK, "StreamSchemaStep.CheckResult.Layout.OK", 3);
+        for (CheckResultInterface remark : remarks) {
+            assertEquals(remark.getText(), CheckResultInterface.TYPE_RESULT_OK, remark.getType());
+        }
+    }
+
+    public void testInfoStepWithTargetedOutput() {
+        StepMeta a = addFieldsStep("a", new ValueMetaString("c1"));
+        StepMeta source = addFieldsStep("source", new ValueMetaString("c1"));
+        StepMeta filter = addFilterStep("filter");
+        transMeta.addTransHop(new TransHopMeta(source, filter));
+        List<CheckResultInterface> remarks = check(addMergeStep(a, filter));
+        assertRemark(remarks, CheckResultInterface.TYPE_RESULT_WARNING,
+                "StreamSchemaStep.CheckResult.ConditionalStream", "filter", "filter");
+        assertNoRemark(remarks, "StreamSchemaStep.CheckResult.ConditionalStream", "a", "a");
+    }
+
+    public void testInfoStepSendingErrorRows() {
+        StepMeta a = addFieldsStep("a", new ValueMetaString("c1"));
+        StepMeta b = addFieldsStep("b", new ValueMetaString("c1"));
+        StepMeta mergeStep = addMergeStep(a, b);
+        StepErrorMeta errorMeta = new StepErrorMeta(transMeta, b, mergeStep);
+        errorMeta.setEnabled(true);
+        b.setStepErrorMeta(errorMeta);
+        assertRemark(check(mergeStep), CheckResultInterface.TYPE_RESULT_WARNING,
+                "StreamSchemaStep.CheckResult.ConditionalStream", "b", "b");
+    }
+
+    public void testBranchFurtherUpstream() {
+        StepMeta a = addFieldsStep("a", new ValueMetaString("c1"));
+        StepMeta source = addFieldsStep("source", new ValueMetaString("c1"));
+        StepMeta filter = addFilterStep("filter");
+        StepMeta b = addFieldsStep("b", new ValueMetaString("c1"));
+        transMeta.addTransHop(new TransHopMeta(source, filter));
+        transMeta.addTransHop(new TransHopMeta(filter, b));
+        assertRemark(check(addMergeStep(a, b)), CheckResultInterface.TYPE_RESULT_WARNING,
+                "StreamSchemaStep.CheckResult.ConditionalStream", "b", "filter");
+    }
+
+    public void testConversionToString() {
+        StepMeta a = addFieldsStep("a", new ValueMetaInteger("c1"), new ValueMetaString("c2"));
+        StepMeta b = addFieldsStep("b", new ValueMetaString("c1"), new ValueMetaString("c2"));
+        List<CheckResultInterface> remarks = check(addMergeStep(a, b));
+        assertRemark(remarks, CheckResultInterface.TYPE_RESULT_WARNING, "StreamSchemaStep.CheckResult.Conversions", 1,
+                "c1 (a: Integer, b: String)");
+        assertNoRemark(remarks, "StreamSchemaStep.CheckResult.Layout.OK", 2);
+    }
+
+    public void testStorageConflict() {
+        StepMeta a = addFieldsStep("a", new ValueMetaString("c1"));
+        StepMeta b = addFieldsStep("b", binaryString("c1"));
+        List<CheckResultInterface> remarks = check(addMergeStep(a, b));
+        assertRemark(remarks, CheckResultInterface.TYPE_RESULT_WARNING,
+                "StreamSchemaStep.CheckResult.StorageConflicts", "c1 (a: normal, b: binary-string)");
+        assertNoRemark(remarks, "StreamSchemaStep.CheckResult.Layout.OK", 1);
+    }
+
+    public void testWideRow() {
+        int width = StreamSchemaStepMeta.WIDE_ROW_FIELDS + 1;
+        ValueMetaInterface[] fields = new ValueMetaInterface[width];
+        for (int i = 0; i < width; i++) {
+            fields[i] = new ValueMetaString("c" + i);
+        }
+        StepMeta a = addFieldsStep("a", fields);
+        StepMeta b = addFieldsStep("b", new ValueMetaString("c0"));
+        List<CheckResultInterface> remarks = check(addMergeStep(a, b));
+        assertRemark(remarks, CheckResultInterface.TYPE_RESULT_WARNING, "StreamSchemaStep.CheckResult.WideRow", width,
+                StreamSchemaStepMeta.WIDE_ROW_FIELDS);
+        assertNoRemark(remarks, "StreamSchemaStep.CheckResult.Layout.OK", width);
+    }
+}
@@ -0,0 +1,439 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class StreamSchemaStepTest extends TestCase {
+
+    final String injectorStepName1 = "injector step 1";
+    final String injectorStepName2 = "injector step 2";
+    final String streamSchemaStepName = "Stream Schema step";
+    final String dummyStepName = "dummy step";
+
+    @Override
+    protected void setUp() throws Exception {
+        KettleEnvironment.init();
+    }
+
+    private StepMeta createStreamSchemaStep(String name, PluginRegistry registry, String[] inputSteps,
+                                            List<StepMeta> stepMetaList, StreamSchemaStepMeta streamSchemaMeta) {
+        streamSchemaMeta.setStepsToMerge(inputSteps);
+        for ( int i = 0; i < inputSteps.length; i++ ) {
+            streamSchemaMeta.getStepIOMeta().addStream(
+                    new Stream( StreamInterface.StreamType.INFO, null, "Streams to Merge", StreamIcon.INFO, inputSteps[i] ) );
+        }
+        streamSchemaMeta.searchInfoAndTargetSteps(stepMetaList);
+
+        String uniqueListPid = registry.getPluginId(StepPluginType.class, streamSchemaMeta);
+
+        return new StepMeta(uniqueListPid, name, streamSchemaMeta);
+    }
+
+    /**
+     * Creates a transformation with two injectors feeding a Stream Schema Merge step, followed by a dummy step
+     * @param abortOnStall whether the merge step fails after a second without progress
+     * @return the transformation, prepared for execution
+     */
+    private Trans createTrans(boolean abortOnStall) throws Exception {
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        if (abortOnStall) {
+            streamSchemaMeta.setStallTimeout("1");
+            streamSchemaMeta.setAbortOnStall(true);
+        }
+        return createTrans(streamSchemaMeta);
+    }
+
+    /**
+     * Creates a transformation with two injectors feeding a Stream Schema Merge step, followed by a dummy step
+     * @param streamSchemaMeta settings of the merge step
+     * @return the transformation, prepared for execution
+     */
+    private Trans createTrans(StreamSchemaStepMeta streamSchemaMeta) throws Exception {
+        PluginRegistry registry = PluginRegistry.getInstance();
+        return createTrans(TestUtilities.createInjectorStep(injectorStepName1, registry),
+                TestUtilities.createInjectorStep(injectorStepName2, registry), streamSchemaMeta);
+    }
+
+    /**
+     * Creates a transformation with two steps feeding a Stream Schema Merge step, followed by a dummy step
+     * @param inputStep1 step named after injectorStepName1
+     * @param inputStep2 step named after injectorStepName2
+     * @param streamSchemaMeta settings of the merge step
+     * @return the transformation, prepared for execution
+     */
+    private Trans createTrans(StepMeta inputStep1, StepMeta inputStep2, StreamSchemaStepMeta streamSchemaMeta)
+            throws Exception {
+        TransMeta transMeta = new TransMeta();
+        transMeta.setName("testStreamSchemaStep");
+        PluginRegistry registry = PluginRegistry.getInstance();
+
+        transMeta.addStep(inputStep1);
+        transMeta.addStep(inputStep2);
+
+        StepMeta streamSchemaStep = createStreamSchemaStep(streamSchemaStepName, registry,
+                new String[]{ injectorStepName1, injectorStepName2 }, Arrays.asList(inputStep1, inputStep2),
+                streamSchemaMeta);
+        transMeta.addStep(streamSchemaStep);
+        transMeta.addTransHop(new TransHopMeta(inputStep1, streamSchemaStep));
+        transMeta.addTransHop(new TransHopMeta(inputStep2, streamSchemaStep));
+
+        StepMeta dummyStep = TestUtilities.createDummyStep(dummyStepName, registry);
+        transMeta.addStep(dummyStep);
+        transMeta.addTransHop(new TransHopMeta(streamSchemaStep, dummyStep));
+
+        Trans trans = new Trans(transMeta);
+        trans.prepareExecution(null);
+        return trans;
+    }
+
+    /**
+     * Creates a step that reports the given fields at design time and passes on the rows it gets
+     */
+    private StepMeta createFixedFieldsStep(String name, ValueMetaInterface... fields) {
+        RowMetaInterface rowMeta = new RowMeta();
+        for (ValueMetaInterface field : fields) {
+            rowMeta.addValueMeta(field);
+        }
+        return new StepMeta("Dummy", name, new FixedFieldsMeta(rowMeta));
+    }
+
+    private RowMetaInterface createRowMeta() {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMeta("c1", ValueMeta.TYPE_STRING));
+        return rowMeta;
+    }
+
+    /**
+     * Wait for the transformation to finish
+     * @return true if it finished within a minute
+     */
+    private boolean waitUntilFinished(final Trans trans) throws InterruptedException {
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                trans.waitUntilFinished();
+            }
+        });
+        waiter.start();
+        waiter.join(60000);
+        return !waiter.isAlive();
+    }
+
+    /**
+     * One stream never sends a row and never finishes, so the step waits for its layout until the watchdog fails it
+     */
+    public void testAbortOnStallWhileWaitingForLayout() throws Exception {
+        Trans trans = createTrans(true);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        rowProducer1.putRow(createRowMeta(), new Object[]{"hov"});
+        rowProducer1.finished();
+        // injector 2 neither sends a row nor finishes
+
+        assertTrue("the transformation kept waiting for the stalled stream", waitUntilFinished(trans));
+        assertTrue(trans.getErrors() > 0);
+    }
+
+    /**
+     * A paused step doesn't read any rows until it is resumed
+     */
+    public void testPauseWhileMerging() throws Exception {
+        Trans trans = createTrans(false);
+        RowStepCollector dummyRowCollector = new RowStepCollector();
+        trans.getStepInterface(dummyStepName, 0).addRowListener(dummyRowCollector);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        StepInterface streamSchemaStep = trans.getStepInterface(streamSchemaStepName, 0);
+        streamSchemaStep.pauseRunning();
+        RowMetaInterface rowMeta = createRowMeta();
+        for (int i = 0; i < 10; i++) {
+            rowProducer1.putRow(rowMeta, new Object[]{"hov"});
+            rowProducer2.putRow(rowMeta, new Object[]{"guava"});
+        }
+        rowProducer1.finished();
+        rowProducer2.finished();
+
+        Thread.sleep(500);
+        assertEquals(0, streamSchemaStep.getLinesRead());
+        assertTrue(dummyRowCollector.getRowsWritten().isEmpty());
+
+        streamSchemaStep.resumeRunning();
+        assertTrue(waitUntilFinished(trans));
+        assertEquals(0, trans.getErrors());
+        assertEquals(20, streamSchemaStep.getLinesRead());
+        assertEquals(20, dummyRowCollector.getRowsWritten().size());
+    }
+
+    /**
+     * With the layout known at design time the rows of a stream that arrive with their fields in another order are
+     * mapped by name
+     */
+    public void testDesignTimeLayoutRemapsReorderedStream() throws Exception {
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        streamSchemaMeta.setDesignTimeLayout(true);
+        Trans trans = createTrans(
+                createFixedFieldsStep(injectorStepName1, new ValueMeta("c1", ValueMeta.TYPE_STRING),
+                        new ValueMeta("c2", ValueMeta.TYPE_INTEGER)),
+                createFixedFieldsStep(injectorStepName2, new ValueMeta("c2", ValueMeta.TYPE_INTEGER)),
+                streamSchemaMeta);
+        RowStepCollector dummyRowCollector = new RowStepCollector();
+        trans.getStepInterface(dummyStepName, 0).addRowListener(dummyRowCollector);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        RowMetaInterface reordered = new RowMeta();
+        reordered.addValueMeta(new ValueMeta("c2", ValueMeta.TYPE_INTEGER));
+        reordered.addValueMeta(new ValueMeta("c1", ValueMeta.TYPE_STRING));
+        rowProducer1.putRow(reordered, new Object[]{5L, "hov"});
+        rowProducer1.finished();
+        RowMetaInterface rowMeta2 = new RowMeta();
+        rowMeta2.addValueMeta(new ValueMeta("c2", ValueMeta.TYPE_INTEGER));
+        rowProducer2.putRow(rowMeta2, new Object[]{7L});
+        rowProducer2.finished();
+
+        assertTrue(waitUntilFinished(trans));
+        assertEquals(0, trans.getErrors());
+        List<RowMetaAndData> rows = dummyRowCollector.getRowsWritten();
+        assertEquals(2, rows.size());
+        for (RowMetaAndData row : rows) {
+            assertEquals(Arrays.asList("c1", "c2"), Arrays.asList(row.getRowMeta().getFieldNames()));
+            if (row.getData()[0] != null) {
+                assertEquals("hov", row.getData()[0]);
+                assertEquals(5L, row.getData()[1]);
+            } else {
+                assertEquals(7L, row.getData()[1]);
+            }
+        }
+    }
+
+    /**
+     * A field that wasn't known at design time has no place in the output row, so the step fails
+     */
+    public void testDesignTimeLayoutUnknownFieldFails() throws Exception {
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        streamSchemaMeta.setDesignTimeLayout(true);
+        Trans trans = createTrans(
+                createFixedFieldsStep(injectorStepName1, new ValueMeta("c1", ValueMeta.TYPE_STRING)),
+                createFixedFieldsStep(injectorStepName2, new ValueMeta("c1", ValueMeta.TYPE_STRING)),
+                streamSchemaMeta);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        RowMetaInterface unknown = new RowMeta();
+        unknown.addValueMeta(new ValueMeta("c9", ValueMeta.TYPE_STRING));
+        rowProducer1.putRow(unknown, new Object[]{"hov"});
+        rowProducer1.finished();
+        rowProducer2.finished();
+
+        assertTrue(waitUntilFinished(trans));
+        assertTrue(trans.getErrors() > 0);
+    }
+
+    /**
+     * Injectors without field definitions report no fields, so the step waits for the first rows instead
+     */
+    public void testDesignTimeLayoutFallsBackWithoutFields() throws Exception {
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        streamSchemaMeta.setDesignTimeLayout(true);
+        Trans trans = createTrans(streamSchemaMeta);
+        RowStepCollector dummyRowCollector = new RowStepCollector();
+        trans.getStepInterface(dummyStepName, 0).addRowListener(dummyRowCollector);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        RowMetaInterface rowMeta = createRowMeta();
+        for (int i = 0; i < 10; i++) {
+            rowProducer1.putRow(rowMeta, new Object[]{"hov"});
+            rowProducer2.putRow(rowMeta, new Object[]{"guava"});
+        }
+        rowProducer1.finished();
+        rowProducer2.finished();
+
+        assertTrue(waitUntilFinished(trans));
+        assertEquals(0, trans.getErrors());
+        assertEquals(20, dummyRowCollector.getRowsWritten().size());
+    }
+
+    /**
+     * Settings for a union that maps rows on worker threads
+     */
+    private StreamSchemaStepMeta createMappingThreadsMeta(int mappingThreads, boolean preserveStreamOrder) {
+        StreamSchemaStepMeta streamSchemaMeta = new StreamSchemaStepMeta();
+        streamSchemaMeta.setMappingThreads(String.valueOf(mappingThreads));
+        streamSchemaMeta.setPreserveStreamOrder(preserveStreamOrder);
+        return streamSchemaMeta;
+    }
+
+    /**
+     * Layout of the rows sent by the mapping thread tests: the stream a row comes from and its sequence number
+     */
+    private RowMetaInterface createSequenceRowMeta() {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMeta("stream", ValueMeta.TYPE_STRING));
+        rowMeta.addValueMeta(new ValueMeta("seq", ValueMeta.TYPE_INTEGER));
+        return rowMeta;
+    }
+
+    /**
+     * Run a transformation that sends the given number of numbered rows into each injector
+     * @return the rows passed on by the merge step
+     */
+    private List<RowMetaAndData> runSequence(StreamSchemaStepMeta streamSchemaMeta, int rows) throws Exception {
+        Trans trans = createTrans(streamSchemaMeta);
+        RowStepCollector dummyRowCollector = new RowStepCollector();
+        trans.getStepInterface(dummyStepName, 0).addRowListener(dummyRowCollector);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        RowMetaInterface rowMeta = createSequenceRowMeta();
+        for (long i = 0; i < rows; i++) {
+            rowProducer1.putRow(rowMeta, new Object[]{injectorStepName1, i});
+            rowProducer2.putRow(rowMeta, new Object[]{injectorStepName2, i});
+        }
+        rowProducer1.finished();
+        rowProducer2.finished();
+
+        assertTrue(waitUntilFinished(trans));
+        assertEquals(0, trans.getErrors());
+        return dummyRowCollector.getRowsWritten();
+    }
+
+    /**
+     * With the stream order preserved every stream is mapped by a single worker, so its rows stay in order
+     */
+    public void testMappingThreadsPreserveStreamOrder() throws Exception {
+        int rows = 5000;
+        List<RowMetaAndData> output = runSequence(createMappingThreadsMeta(2, true), rows);
+        assertEquals(2 * rows, output.size());
+        Map<String, Long> next = new HashMap<String, Long>();
+        next.put(injectorStepName1, 0L);
+        next.put(injectorStepName2, 0L);
+        for (RowMetaAndData row : output) {
+            String stream = (String) row.getData()[0];
+            assertEquals("rows of " + stream + " out of order", next.get(stream), row.getData()[1]);
+            next.put(stream, (Long) row.getData()[1] + 1);
+        }
+    }
+
+    /**
+     * Without the stream order the workers share the rowsets, every row still has to come out exactly once
+     */
+    public void testMappingThreadsUnorderedKeepEveryRow() throws Exception {
+        int rows = 5000;
+        List<RowMetaAndData> output = runSequence(createMappingThreadsMeta(4, false), rows);
+        assertEquals(2 * rows, output.size());
+        Set<String> seen = new HashSet<String>();
+        for (RowMetaAndData row : output) {
+            assertTrue("duplicate row " + Arrays.toString(row.getData()),
+                    seen.add(row.getData()[0] + "/" + row.getData()[1]));
+        }
+        for (long i = 0; i < rows; i++) {
+            assertTrue(seen.contains(injectorStepName1 + "/" + i));
+            assertTrue(seen.contains(injectorStepName2 + "/" + i));
+        }
+    }
+
+    /**
+     * Stopping the transformation while the workers wait for rows that never come lets the step finish
+     */
+    public void testStopWhileMappingThreadsWaitForRows() throws Exception {
+        Trans trans = createTrans(createMappingThreadsMeta(2, false));
+        RowStepCollector dummyRowCollector = new RowStepCollector();
+        trans.getStepInterface(dummyStepName, 0).addRowListener(dummyRowCollector);
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        RowMetaInterface rowMeta = createSequenceRowMeta();
+        rowProducer1.putRow(rowMeta, new Object[]{injectorStepName1, 0L});
+        rowProducer2.putRow(rowMeta, new Object[]{injectorStepName2, 0L});
+        rowProducer1.putRow(rowMeta, new Object[]{injectorStepName1, 1L});
+        // neither injector finishes, so the workers keep waiting on their rowsets
+        for (int i = 0; i < 600 && dummyRowCollector.getRowsWritten().size() < 3; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(3, dummyRowCollector.getRowsWritten().size());
+
+        trans.stopAll();
+        assertTrue("the step kept waiting for its workers", waitUntilFinished(trans));
+    }
+
+    /**
+     * Stopping the transformation while the workers wait for room in the full hand-off queue lets the step finish
+     */
+    public void testStopWhileMappingThreadsWaitForQueue() throws Exception {
+        Trans trans = createTrans(createMappingThreadsMeta(2, false));
+        RowProducer rowProducer1 = trans.addRowProducer(injectorStepName1, 0);
+        RowProducer rowProducer2 = trans.addRowProducer(injectorStepName2, 0);
+        trans.startThreads();
+
+        // with the last step paused every buffer fills up: its input, the queue of the workers and the hops before
+        trans.getStepInterface(dummyStepName, 0).pauseRunning();
+        RowMetaInterface rowMeta = createSequenceRowMeta();
+        long sent = 0;
+        boolean accepted = true;
+        while (accepted) {
+            accepted = rowProducer1.putRowWait(rowMeta, new Object[]{injectorStepName1, sent}, 200, TimeUnit.MILLISECONDS);
+            accepted |= rowProducer2.putRowWait(rowMeta, new Object[]{injectorStepName2, sent}, 200, TimeUnit.MILLISECONDS);
+            sent++;
+        }
+        assertTrue(sent > trans.getTransMeta().getSizeRowset());
+
+        trans.stopAll();
+        assertTrue("the step kept waiting for its workers", waitUntilFinished(trans));
+    }
+}
@@ -0,0 +1,49 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+
+public class StringInternerTest extends TestCase {
+
+    public void testRepeatedValuesShareString() {
+        StringInterner interner = new StringInterner(100);
+        String first = interner.toString(Long.valueOf(1000));
+        for (int i = 0; i < 2 * StringInterner.SAMPLE_SIZE; i++) {
+            assertSame(first, interner.toString(Long.valueOf(1000)));
+        }
+        assertEquals("1000", first);
+        assertTrue(interner.isEnabled());
+        assertEquals(1, interner.size());
+    }
+
+    public void testTurnsOffForDistinctValues() {
+        StringInterner interner = new StringInterner(100);
+        for (int i = 0; i < StringInterner.SAMPLE_SIZE; i++) {
+            assertEquals(Integer.toString(i), interner.toString(i));
+        }
+        assertFalse(interner.isEnabled());
+        assertEquals(0, interner.size());
+        assertEquals("7", interner.toString(7));
+    }
+}
@@ -0,0 +1,98 @@
+/*! ******************************************************************************
+*
+* Pentaho Data Integration
+*
+* Copyright (C) 2002-2013 by Pentaho : http://www.pentaho.com
+*
+*******************************************************************************
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+******************************************************************************/
+
+package com.graphiq.kettle.steps.streamschemamerge;
+
+import junit.framework.TestCase;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimeOrderedMergeTest extends TestCase {
+
+    private RowMetaInterface createRowMeta() {
+        RowMetaInterface rm = new RowMeta();
+        rm.addValueMeta(new ValueMeta("time", ValueMeta.TYPE_INTEGER));
+        rm.addValueMeta(new ValueMeta("source", ValueMeta.TYPE_STRING));
+        return rm;
+    }
+
+    /**
+     * Interleave the sources row by row, passing rows on as the watermark allows, and flush the rest at the end
+     */
+    private List<Long> merge(TimeOrderedMerge merge, long[][] sources) throws Exception {
+        List<Long> result = new ArrayList<Long>();
+        int remaining = sources.length;
+        for (int pos = 0; remaining > 0; pos++) {
+            remaining = 0;
+            for (int source = 0; source < sources.length; source++) {
+                if (pos < sources[source].length) {
+                    merge.add(source, new Object[]{sources[source][pos], "s" + source});
+                    remaining++;
+                } else {
+                    merge.sourceDone(source);
+                }
+                Object[] row;
+                while ((row = merge.poll()) != null) {
+                    result.add((Long) row[0]);
+                }
+            }
+        }
+        Object[] row;
+        while ((row = merge.pollAny()) != null) {
+            result.add((Long) row[0]);
+        }
+        return result;
+    }
+
+    public void testOrdersRowsWithinLateness() throws Exception {
+        long[][] sources = new long[][]{{10, 5, 20, 15, 30}, {1, 12, 8, 25}, {}};
+        TimeOrderedMerge merge = new TimeOrderedMerge(createRowMeta(), 0, 5, sources.length, 1000);
+        List<Long> result = merge(merge, sources);
+        assertEquals(9, result.size());
+        for (int i = 1; i < result.size(); i++) {
+            assertTrue(result.get(i - 1) <= result.get(i));
+        }
+        assertEquals(0, merge.getLateRows());
+        assertEquals(0, merge.getForcedRows());
+    }
+
+    public void testIdleSourceIsBoundedByBuffer() throws Exception {
+        TimeOrderedMerge merge = new TimeOrderedMerge(createRowMeta(), 0, 0, 2, 3);
+        for (long time = 0; time < 10; time++) {
+            merge.add(0, new Object[]{time, "s0"});
+        }
+        // source 1 hasn't sent anything, so only the rows over the limit come out
+        int passed = 0;
+        while (merge.poll() != null) {
+            passed++;
+        }
+        assertEquals(7, passed);
+        assertEquals(3, merge.size());
+        assertEquals(7, merge.getForcedRows());
+        merge.sourceDone(1);
+        assertNotNull(merge.poll());
+    }
+}